@@ -0,0 +1,167 @@
+package com.xiplink.jira.git.revisions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.atlassian.jira.util.JiraKeyUtils;
+
+/**
+ * Compares the {@link IssueKeyScanner} with the way commit messages were scanned before it, upper-casing the decoded
+ * message and matching it with {@link JiraKeyUtils}, on a thousand generated commits of each kind:
+ * <ul>
+ * <li><code>subject</code>: a single line starting with a key.</li>
+ * <li><code>body</code>: a subject and a few paragraphs mentioning keys, URLs and strings like <code>UTF-8</code>.</li>
+ * <li><code>keyless</code>: a subject and paragraphs without any issue key, only strings like <code>UTF-8</code>
+ * that look like one unless the keys are limited to existing projects.</li>
+ * <li><code>merge</code>: a merge of a branch named after a key, with a list of conflicts.</li>
+ * </ul>
+ * JiraKeyUtils reads the project key pattern from JIRA's application properties, so <code>jiraKeyUtils</code> only
+ * runs where JIRA's components are available. <code>jiraKeyPattern</code> stands in for it anywhere else, with the
+ * regular expression JIRA matches with its default project key pattern.
+ * <p/>
+ * Run with <code>mvn -Pjmh test-compile exec:exec</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IssueKeyScannerBenchmark {
+    private static final int COMMITS = 1000;
+
+    private static final Pattern JIRA_KEY_PATTERN = Pattern.compile("(?<![&=\\?>\\^!~/])\\b("
+            + IssueKeyScanner.DEFAULT_PROJECT_KEY_PATTERN + "-[0-9]+)\\b");
+
+    private static final String[] PROJECTS = { "TST", "CORE", "WEB", "OPS" };
+
+    private static final String[] WORDS = { "the", "parser", "fails", "when", "an", "empty", "tag", "is", "read",
+            "from", "repository", "cache", "so", "we", "now", "check", "it", "before", "index", "and", "log", "a",
+            "warning", "instead", "UTF-8", "SHA-1", "x86_64", "getFileDiffs()", "null", "config", "release", "branch" };
+
+    @Param({ "subject", "body", "keyless", "merge" })
+    public String corpus;
+
+    private RevCommit[] commits;
+    private IssueKeyScanner scanner;
+    private IssueKeyScanner projectScanner;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(corpus.hashCode());
+        commits = new RevCommit[COMMITS];
+        for (int i = 0; i < COMMITS; i++) {
+            commits[i] = commit(message(random));
+        }
+        scanner = new IssueKeyScanner(true, null);
+        projectScanner = new IssueKeyScanner(true, Arrays.asList(PROJECTS));
+    }
+
+    @Benchmark
+    public void scanner(Blackhole blackhole) {
+        for (RevCommit commit : commits) {
+            blackhole.consume(scanner.getIssueKeys(commit));
+        }
+    }
+
+    @Benchmark
+    public void projectScanner(Blackhole blackhole) {
+        for (RevCommit commit : commits) {
+            blackhole.consume(projectScanner.getIssueKeys(commit));
+        }
+    }
+
+    @Benchmark
+    public void jiraKeyUtils(Blackhole blackhole) {
+        for (RevCommit commit : commits) {
+            blackhole.consume(JiraKeyUtils.getIssueKeysFromString(StringUtils.upperCase(commit.getFullMessage())));
+        }
+    }
+
+    @Benchmark
+    public void jiraKeyPattern(Blackhole blackhole) {
+        for (RevCommit commit : commits) {
+            Matcher matcher = JIRA_KEY_PATTERN.matcher(StringUtils.upperCase(commit.getFullMessage()));
+            List<String> keys = new ArrayList<String>();
+            while (matcher.find()) {
+                keys.add(matcher.group(1));
+            }
+            blackhole.consume(keys);
+        }
+    }
+
+    private String message(Random random) {
+        StringBuilder message = new StringBuilder();
+        if ("subject".equals(corpus)) {
+            message.append(key(random)).append(' ');
+            words(message, random, 4 + random.nextInt(8), false);
+        } else if ("merge".equals(corpus)) {
+            message.append("Merge branch 'feature/").append(key(random)).append("-").append(WORDS[random.nextInt(
+                    WORDS.length)]).append("' into master\n\nConflicts:\n");
+            for (int i = random.nextInt(6); i >= 0; i--) {
+                message.append("\tsrc/main/java/com/example/").append(WORDS[random.nextInt(WORDS.length)]).append(
+                        ".java\n");
+            }
+        } else {
+            boolean keys = "body".equals(corpus);
+            if (keys) {
+                message.append(key(random)).append(' ');
+            }
+            words(message, random, 4 + random.nextInt(8), false);
+            for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                message.append("\n\n");
+                words(message, random, 20 + random.nextInt(40), keys);
+            }
+            if (keys && random.nextBoolean()) {
+                message.append("\n\nSee https://jira.example.com/browse/").append(key(random));
+            }
+        }
+        return message.toString();
+    }
+
+    private static void words(StringBuilder message, Random random, int count, boolean keys) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                message.append(i % 12 == 0 ? '\n' : ' ');
+            }
+            message.append(keys && random.nextInt(25) == 0 ? key(random) : WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    private static String key(Random random) {
+        return PROJECTS[random.nextInt(PROJECTS.length)] + "-" + (1 + random.nextInt(5000));
+    }
+
+    private static RevCommit commit(String message) throws Exception {
+        PersonIdent ident = new PersonIdent("author", "author@example.com", 1325419200000L, 0);
+        CommitBuilder builder = new CommitBuilder();
+        builder.setTreeId(ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbecba94"));
+        builder.setAuthor(ident);
+        builder.setCommitter(ident);
+        builder.setMessage(message);
+        return RevCommit.parse(builder.build());
+    }
+}
@@ -0,0 +1,148 @@
+package com.xiplink.jira.git;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * A topologically sorted walk from several branch tips at once, which records on every commit the tips that reach
+ * it. Children are always produced before their parents, so a commit's labels are complete by the time it is
+ * returned from {@link #next()}, and are then handed down to its parents.
+ * <p/>
+ * Commits reachable from the head branch are labelled with the head branch only, like the per-branch indexing used
+ * to start other branches at their merge base with HEAD.
+ * <p/>
+ * Label sets are immutable and shared along chains of commits, so a linear history costs one set, not one per
+ * commit.
+ */
+class BranchLabellingRevWalk extends RevWalk {
+	private final List<String> branchNames = new ArrayList<String>();
+	private final String headBranch;
+
+	private int headIndex = -1;
+	private BranchSet headOnly;
+	// Unions already computed, so that repeated merges of the same branches share a single set.
+	private final Map<BitSet, BranchSet> unions = new HashMap<BitSet, BranchSet>();
+
+	BranchLabellingRevWalk(Repository repository, String headBranch) {
+		super(repository);
+		this.headBranch = headBranch;
+		sort(RevSort.TOPO);
+	}
+
+	/**
+	 * Starts the walk at the tip of a branch, labelling it (and through it its ancestors) with the branch name.
+	 */
+	void markBranchStart(String branchName, RevCommit tip) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		BitSet bits = new BitSet();
+		bits.set(branchNames.size());
+		branchNames.add(branchName);
+
+		BranchSet branch = new BranchSet(bits);
+		if (branchName.equals(headBranch)) {
+			headIndex = branchNames.size() - 1;
+			headOnly = branch;
+		}
+
+		label((LabelledCommit) tip, branch);
+		markStart(tip);
+	}
+
+	/**
+	 * @return the names of the branches the commit is reachable from. Only complete once the commit has been
+	 *         returned by {@link #next()}.
+	 */
+	Collection<String> getBranches(RevCommit commit) {
+		BranchSet labels = ((LabelledCommit) commit).labels;
+		return labels != null ? labels.getNames() : Collections.<String>emptyList();
+	}
+
+	public RevCommit next() throws MissingObjectException, IncorrectObjectTypeException, IOException {
+		LabelledCommit commit = (LabelledCommit) super.next();
+		if (commit != null && commit.labels != null) {
+			for (RevCommit parent : commit.getParents()) {
+				label((LabelledCommit) parent, commit.labels);
+			}
+		}
+		return commit;
+	}
+
+	protected RevCommit createCommit(AnyObjectId id) {
+		return new LabelledCommit(id);
+	}
+
+	private void label(LabelledCommit commit, BranchSet labels) {
+		commit.labels = union(commit.labels, labels);
+	}
+
+	private BranchSet union(BranchSet a, BranchSet b) {
+		if (a == null || a == b) {
+			return collapse(b);
+		}
+
+		BitSet bits = (BitSet) a.bits.clone();
+		bits.or(b.bits);
+		if (bits.equals(a.bits)) {
+			return a;
+		}
+		if (bits.equals(b.bits)) {
+			return collapse(b);
+		}
+
+		BranchSet union = unions.get(bits);
+		if (union == null) {
+			union = collapse(new BranchSet(bits));
+			unions.put(bits, union);
+		}
+		return union;
+	}
+
+	private BranchSet collapse(BranchSet labels) {
+		if (headOnly != null && labels != headOnly && labels.bits.get(headIndex)) {
+			return headOnly;
+		}
+		return labels;
+	}
+
+	private class BranchSet {
+		private final BitSet bits;
+		private List<String> names;
+
+		BranchSet(BitSet bits) {
+			this.bits = bits;
+		}
+
+		List<String> getNames() {
+			if (names == null) {
+				List<String> result = new ArrayList<String>(bits.cardinality());
+				for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+					result.add(branchNames.get(i));
+				}
+				names = Collections.unmodifiableList(result);
+			}
+			return names;
+		}
+	}
+
+	private static class LabelledCommit extends RevCommit {
+		private BranchSet labels;
+
+		LabelledCommit(AnyObjectId id) {
+			super(id);
+		}
+	}
+}
@@ -0,0 +1,594 @@
+package com.xiplink.jira.git;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps a record per commit on disk, so that what was worked out from the commit is at hand after a restart without
+ * reading the repository again. Used for the summaries of the indexed commits, as the second tier of the
+ * {@link CommitSummaryCache}, and for the generations of the {@link FileDiffCache}.
+ * <p/>
+ * Records are appended to a data file and found through a hash table in an index file, both of which are memory
+ * mapped, so a lookup reads the mapped pages directly. As a record only depends on the commit's id, a store is
+ * shared by all the repositories.
+ * <ul>
+ * <li>The data file holds a header with the end of the records and the generation of the store, then one record
+ * per commit: its 20 byte id, its commit time, the length of its value and the value, as encoded by the caller. It is
+ * mapped in chunks of {@link #CHUNK_SIZE} bytes, which never move once mapped; only the last one is mapped again, to a
+ * larger size, when a record doesn't fit in it. A record never spans two chunks: one that doesn't fit in the rest of
+ * a chunk starts the next one, and the gap is marked by a zero id.</li>
+ * <li>The index file holds a header with the number of slots and of commits, then the slots, each with a commit id
+ * and the offset of its record in the data file, 0 for an empty slot. It is probed linearly and doubled in place when
+ * it gets more than 60% full. The number of commits is -1 while the slots are rewritten.</li>
+ * </ul>
+ * A record is always written before the slot that points to it, and a lookup checks the id of the record it finds.
+ * If the index can't be trusted when the store is opened, it is rebuilt from the data file. Files are never deleted
+ * or renamed while they are mapped, which the platforms that lock mapped files wouldn't allow.
+ */
+public class CommitRecordStore {
+	private static Logger log = Logger.getLogger(CommitRecordStore.class);
+
+	public static final String DATA_FILE = "commits.dat";
+	public static final String INDEX_FILE = "commits.idx";
+
+	/**
+	 * The size of the chunks the data file is mapped in, which bounds the size of a record.
+	 */
+	public static final int CHUNK_SIZE = 1 << 26;
+
+	private static final int CHUNK_SHIFT = 26;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+	// The size the last chunk is first mapped with, doubled as records are appended.
+	private static final int INITIAL_MAPPING_SIZE = 1 << 16;
+
+	private static final int DATA_MAGIC = 0x47435344; // GCSD
+	private static final int INDEX_MAGIC = 0x47435349; // GCSI
+	private static final int VERSION = 2;
+
+	private static final int DATA_END_POSITION = 8;
+	private static final int DATA_GENERATION_POSITION = 16;
+	private static final int DATA_HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = Constants.OBJECT_ID_LENGTH + 8;
+	private static final int INDEX_COUNT_POSITION = 12;
+	private static final int INDEX_HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = Constants.OBJECT_ID_LENGTH + 8;
+	private static final int INITIAL_CAPACITY = 1 << 14;
+
+	private static final byte[] ZEROS = new byte[8192];
+
+	private final File directory;
+
+	// Lookups share the read lock, appends take the write lock.
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final RandomAccessFile dataFile;
+	private final FileChannel dataChannel;
+	private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+	private long end;
+	private long generation;
+
+	private RandomAccessFile indexFile;
+	private MappedByteBuffer index;
+	private int capacity;
+	private int count;
+
+	private CommitRecordStore(File directory) throws IOException {
+		this.directory = directory;
+		this.dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+		this.dataChannel = dataFile.getChannel();
+	}
+
+	/**
+	 * Opens the store kept in a directory, creating it if it doesn't exist.
+	 */
+	public static CommitRecordStore open(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+
+		CommitRecordStore store = new CommitRecordStore(directory);
+		try {
+			store.load();
+		} catch (IOException e) {
+			store.close();
+			throw e;
+		}
+		return store;
+	}
+
+	private void load() throws IOException {
+		long length = dataChannel.size();
+		ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+		if (length < DATA_HEADER_SIZE || readFully(dataChannel, header, 0) < DATA_HEADER_SIZE
+				|| header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION
+				|| header.getLong(DATA_END_POSITION) < DATA_HEADER_SIZE || header.getLong(DATA_END_POSITION) > length) {
+			if (length > 0) {
+				log.warn("Discarding the commit records in " + directory + ", their format is unknown");
+			}
+			dataChannel.truncate(0);
+			ByteBuffer chunk = getChunk(0, DATA_HEADER_SIZE);
+			chunk.putInt(0, DATA_MAGIC);
+			chunk.putInt(4, VERSION);
+			end = DATA_HEADER_SIZE;
+			generation = 0;
+			writeDataHeader();
+			createIndex(INITIAL_CAPACITY);
+			return;
+		}
+
+		end = header.getLong(DATA_END_POSITION);
+		generation = header.getLong(DATA_GENERATION_POSITION);
+		int lastChunk = (int) ((length - 1) >>> CHUNK_SHIFT);
+		for (int i = 0; i <= lastChunk; i++) {
+			getChunk(i, (int) Math.min(length - ((long) i << CHUNK_SHIFT), CHUNK_SIZE));
+		}
+		if (!openIndex()) {
+			log.info("Rebuilding the index of the commit records in " + directory);
+			rebuildIndex();
+		}
+	}
+
+	private void writeDataHeader() {
+		chunks[0].putLong(DATA_END_POSITION, end);
+		chunks[0].putLong(DATA_GENERATION_POSITION, generation);
+	}
+
+	/**
+	 * Returns the mapping of a chunk of the data file, mapping it again if it doesn't cover the given size. Only the
+	 * chunk after the last one can be added. Must be called holding the write lock, or while loading.
+	 */
+	private MappedByteBuffer getChunk(int chunkIndex, int size) throws IOException {
+		if (chunkIndex == chunks.length) {
+			MappedByteBuffer[] grown = new MappedByteBuffer[chunkIndex + 1];
+			System.arraycopy(chunks, 0, grown, 0, chunks.length);
+			chunks = grown;
+		}
+
+		MappedByteBuffer chunk = chunks[chunkIndex];
+		if (chunk == null || chunk.capacity() < size) {
+			int mappingSize = chunk != null ? chunk.capacity() : INITIAL_MAPPING_SIZE;
+			while (mappingSize < size) {
+				mappingSize = (int) Math.min(mappingSize * 2L, CHUNK_SIZE);
+			}
+			chunk = dataChannel.map(FileChannel.MapMode.READ_WRITE, (long) chunkIndex << CHUNK_SHIFT, mappingSize);
+			chunks[chunkIndex] = chunk;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Maps the existing index file, if it looks sound.
+	 */
+	private boolean openIndex() throws IOException {
+		File file = new File(directory, INDEX_FILE);
+		if (!file.isFile() || file.length() < INDEX_HEADER_SIZE) {
+			return false;
+		}
+
+		indexFile = new RandomAccessFile(file, "rw");
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE);
+		capacity = index.getInt(8);
+		count = index.getInt(INDEX_COUNT_POSITION);
+		if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION || capacity <= 0
+				|| Integer.bitCount(capacity) != 1 || indexFile.length() < INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE
+				|| count < 0 || count > capacity) {
+			// left open and mapped, the rebuilt index goes in the same file
+			return false;
+		}
+		mapIndex(capacity);
+		return true;
+	}
+
+	/**
+	 * Indexes all the complete records of the data file again, dropping a record cut short by a crash.
+	 */
+	private void rebuildIndex() throws IOException {
+		createIndex(INITIAL_CAPACITY);
+
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		long offset = DATA_HEADER_SIZE;
+		while (offset < end) {
+			int chunkIndex = (int) (offset >>> CHUNK_SHIFT);
+			int position = (int) (offset & CHUNK_MASK);
+			ByteBuffer chunk = chunkIndex < chunks.length ? chunks[chunkIndex].duplicate() : null;
+			if (chunk == null) {
+				break;
+			}
+			if (position + RECORD_HEADER_SIZE > chunk.capacity() || isGap(chunk, position)) {
+				offset = getNextChunkOffset(offset);
+				continue;
+			}
+
+			int length = chunk.getInt(position + Constants.OBJECT_ID_LENGTH + 4);
+			long recordEnd = offset + RECORD_HEADER_SIZE + length;
+			if (length < 0 || position + RECORD_HEADER_SIZE + length > chunk.capacity() || recordEnd > end) {
+				break;
+			}
+
+			chunk.position(position);
+			chunk.get(id);
+			if (findSlot(id, 0) < 0) {
+				add(id, offset);
+			}
+			offset = recordEnd;
+		}
+
+		if (offset < end) {
+			log.warn("Dropping an incomplete commit record at the end of " + new File(directory, DATA_FILE));
+			end = offset;
+			writeDataHeader();
+		}
+	}
+
+	private static boolean isGap(ByteBuffer chunk, int position) {
+		for (int i = 0; i < Constants.OBJECT_ID_LENGTH; i++) {
+			if (chunk.get(position + i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long getNextChunkOffset(long offset) {
+		return (offset | CHUNK_MASK) + 1;
+	}
+
+	/**
+	 * Empties the index file, which is created if need be, and makes it the given size.
+	 */
+	private void createIndex(int newCapacity) throws IOException {
+		if (indexFile == null) {
+			indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+		}
+		mapIndex(newCapacity);
+		index.putInt(INDEX_COUNT_POSITION, -1);
+		clearSlots();
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(4, VERSION);
+		index.putInt(8, newCapacity);
+		count = 0;
+		index.putInt(INDEX_COUNT_POSITION, count);
+	}
+
+	/**
+	 * Maps the header and the given number of slots of the index file, extending it if it is shorter. The previous
+	 * mapping, if any, is left to the garbage collector.
+	 */
+	private void mapIndex(int newCapacity) throws IOException {
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+		capacity = newCapacity;
+	}
+
+	private void clearSlots() {
+		ByteBuffer slots = index.duplicate();
+		slots.position(INDEX_HEADER_SIZE);
+		while (slots.hasRemaining()) {
+			slots.put(ZEROS, 0, Math.min(ZEROS.length, slots.remaining()));
+		}
+	}
+
+	private void closeIndex() throws IOException {
+		if (indexFile != null) {
+			if (index != null) {
+				index.force();
+			}
+			indexFile.close();
+			indexFile = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * Doubles the index in place: the mapping is extended over the same file, and the records are indexed again.
+	 */
+	private void growIndex() throws IOException {
+		// keep the indexed records aside while the slots are rewritten
+		byte[] ids = new byte[count * Constants.OBJECT_ID_LENGTH];
+		long[] offsets = new long[count];
+		int n = 0;
+		for (int slot = 0; slot < capacity && n < count; slot++) {
+			int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+			long offset = index.getLong(position + Constants.OBJECT_ID_LENGTH);
+			if (offset != 0) {
+				for (int i = 0; i < Constants.OBJECT_ID_LENGTH; i++) {
+					ids[n * Constants.OBJECT_ID_LENGTH + i] = index.get(position + i);
+				}
+				offsets[n++] = offset;
+			}
+		}
+
+		// a crash from here on has the index rebuilt from the data file
+		index.putInt(INDEX_COUNT_POSITION, -1);
+		index.force();
+
+		mapIndex(capacity * 2);
+		clearSlots();
+		index.putInt(8, capacity);
+		for (int i = 0; i < n; i++) {
+			insert(ids, i * Constants.OBJECT_ID_LENGTH, offsets[i]);
+		}
+		count = n;
+		index.putInt(INDEX_COUNT_POSITION, count);
+	}
+
+	/**
+	 * @return the slot holding the id starting at <code>idOffset</code>, or <code>-(slot + 1)</code> of the empty slot
+	 *         where it would go.
+	 */
+	private int findSlot(byte[] id, int idOffset) {
+		int hash = ((id[idOffset] & 0xff) << 24) | ((id[idOffset + 1] & 0xff) << 16)
+				| ((id[idOffset + 2] & 0xff) << 8) | (id[idOffset + 3] & 0xff);
+		int mask = capacity - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+			if (index.getLong(position + Constants.OBJECT_ID_LENGTH) == 0) {
+				return -(slot + 1);
+			}
+
+			boolean same = true;
+			for (int i = 0; i < Constants.OBJECT_ID_LENGTH && same; i++) {
+				same = index.get(position + i) == id[idOffset + i];
+			}
+			if (same) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Indexes a record, growing the index first if it would get too full.
+	 */
+	private void add(byte[] id, long offset) throws IOException {
+		if ((count + 1) * 10L > capacity * 6L) {
+			growIndex();
+		}
+		insert(id, 0, offset);
+		index.putInt(INDEX_COUNT_POSITION, ++count);
+	}
+
+	private void insert(byte[] id, int idOffset, long offset) {
+		int slot = -(findSlot(id, idOffset) + 1);
+		int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+		for (int i = 0; i < Constants.OBJECT_ID_LENGTH; i++) {
+			index.put(position + i, id[idOffset + i]);
+		}
+		// the offset marks the slot as used, so it goes last
+		index.putLong(position + Constants.OBJECT_ID_LENGTH, offset);
+	}
+
+	/**
+	 * @return the record of a commit, or null if it isn't stored. Its value is a view of the mapped data file, which
+	 *         stays valid until the store is {@link #clear(long) cleared}.
+	 */
+	Record get(AnyObjectId commitId) {
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		commitId.copyRawTo(id, 0);
+
+		lock.readLock().lock();
+		try {
+			if (index == null) {
+				return null;
+			}
+
+			int slot = findSlot(id, 0);
+			if (slot < 0) {
+				return null;
+			}
+			long offset = index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + Constants.OBJECT_ID_LENGTH);
+			int chunkIndex = (int) (offset >>> CHUNK_SHIFT);
+			int position = (int) (offset & CHUNK_MASK);
+			if (offset < DATA_HEADER_SIZE || offset + RECORD_HEADER_SIZE > end || chunkIndex >= chunks.length
+					|| position + RECORD_HEADER_SIZE > chunks[chunkIndex].capacity()) {
+				return null;
+			}
+
+			ByteBuffer record = chunks[chunkIndex].duplicate();
+			record.position(position);
+			for (int i = 0; i < id.length; i++) {
+				if (record.get() != id[i]) {
+					// the slot outlived its record, e.g. after a crash
+					return null;
+				}
+			}
+			int commitTime = record.getInt();
+			int length = record.getInt();
+			if (length < 0 || offset + RECORD_HEADER_SIZE + length > end
+					|| record.position() + length > record.capacity()) {
+				return null;
+			}
+			record.limit(record.position() + length);
+			return new Record(record.slice().asReadOnlyBuffer(), commitTime);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return whether a commit has a record.
+	 */
+	public boolean contains(AnyObjectId commitId) {
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		commitId.copyRawTo(id, 0);
+
+		lock.readLock().lock();
+		try {
+			return index != null && findSlot(id, 0) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores the record of a commit, unless it has one already or it is larger than a chunk.
+	 */
+	public void append(AnyObjectId commitId, int commitTime, byte[] value) throws IOException {
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		commitId.copyRawTo(id, 0);
+
+		lock.writeLock().lock();
+		try {
+			if (index == null || findSlot(id, 0) >= 0) {
+				return;
+			}
+			int size = RECORD_HEADER_SIZE + value.length;
+			if (size > CHUNK_SIZE) {
+				log.debug("The record of commit " + commitId.name() + " takes " + size + " bytes, it isn't stored");
+				return;
+			}
+
+			long offset = end;
+			if ((offset & CHUNK_MASK) + size > CHUNK_SIZE) {
+				markGap(offset);
+				offset = getNextChunkOffset(offset);
+			}
+			int position = (int) (offset & CHUNK_MASK);
+			ByteBuffer record = getChunk((int) (offset >>> CHUNK_SHIFT), position + size).duplicate();
+			record.position(position);
+			record.put(id).putInt(commitTime).putInt(value.length).put(value);
+			end = offset + size;
+			writeDataHeader();
+
+			add(id, offset);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the rest of a chunk as unused, for a record that doesn't fit in it. The bytes there may be those of
+	 * records from before the store was cleared.
+	 */
+	private void markGap(long offset) {
+		int chunkIndex = (int) (offset >>> CHUNK_SHIFT);
+		int position = (int) (offset & CHUNK_MASK);
+		// past the mapping, the file was never written
+		int length = Math.min(Constants.OBJECT_ID_LENGTH, chunks[chunkIndex].capacity() - position);
+		if (length > 0) {
+			ByteBuffer gap = chunks[chunkIndex].duplicate();
+			gap.position(position);
+			gap.put(ZEROS, 0, length);
+		}
+	}
+
+	/**
+	 * Drops all the records, keeping the files and their size on disk. The values of the records looked up before
+	 * are overwritten as new records are appended.
+	 * 
+	 * @param generation the number of the store from now on, which its owner can tell its stores apart with.
+	 */
+	public void clear(long generation) {
+		lock.writeLock().lock();
+		try {
+			if (index == null) {
+				return;
+			}
+			index.putInt(INDEX_COUNT_POSITION, -1);
+			end = DATA_HEADER_SIZE;
+			this.generation = generation;
+			writeDataHeader();
+			clearSlots();
+			count = 0;
+			index.putInt(INDEX_COUNT_POSITION, count);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of commits stored.
+	 */
+	public int getCount() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes the records take in the data file.
+	 */
+	public long getDataSize() {
+		lock.readLock().lock();
+		try {
+			return end;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number given to the store when it was last cleared, 0 if it never was.
+	 */
+	public long getGeneration() {
+		lock.readLock().lock();
+		try {
+			return generation;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closeIndex();
+			for (MappedByteBuffer chunk : chunks) {
+				if (chunk != null) {
+					chunk.force();
+				}
+			}
+			dataFile.close();
+		} catch (IOException e) {
+			log.warn("Could not close the commit records in " + directory, e);
+		} finally {
+			chunks = new MappedByteBuffer[0];
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int read = 0;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		return read;
+	}
+
+	/**
+	 * The record of a commit, with its value encoded as by the caller.
+	 */
+	static final class Record {
+		final ByteBuffer value;
+		final int commitTime;
+
+		Record(ByteBuffer value, int commitTime) {
+			this.value = value;
+			this.commitTime = commitTime;
+		}
+
+		/**
+		 * @return a copy of the value, which outlives the mapping.
+		 */
+		byte[] copyValue() {
+			byte[] copy = new byte[value.remaining()];
+			value.duplicate().get(copy);
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.xiplink.jira.git;
+
+import java.util.Date;
+
+/**
+ * What the commit tabs show of a commit, as stored in the revision index, so that listing commits doesn't need to
+ * read them from the repository.
+ */
+public class CommitSummary {
+	private final String id;
+	private final String message;
+	private final String author;
+	private final String committer;
+	private final Date commitTime;
+
+	public CommitSummary(String id, String message, String author, String committer, Date commitTime) {
+		this.id = id;
+		this.message = message;
+		this.author = author;
+		this.committer = committer;
+		this.commitTime = commitTime;
+	}
+
+	/**
+	 * @return the full commit id.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getAuthor() {
+		return author;
+	}
+
+	public String getCommitter() {
+		return committer;
+	}
+
+	/**
+	 * @return the commit time, or null if the commit has none.
+	 */
+	public Date getCommitTime() {
+		return commitTime;
+	}
+}
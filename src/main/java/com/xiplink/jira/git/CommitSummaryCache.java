@@ -0,0 +1,388 @@
+package com.xiplink.jira.git;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the {@link CommitSummary} of the commits that were looked up recently, for all the repositories at once,
+ * within a single budget.
+ * <p/>
+ * A cached commit is keyed by its repository and its binary id and holds its message, author and committer names as
+ * UTF-8 in a single byte array, plus its commit time, rather than the {@link RevCommit} with its raw buffer, parents
+ * and the objects of the walk that parsed it. The cache is bounded by the estimated number of bytes it holds rather
+ * than by the number of commits, as commit messages vary a lot in size.
+ * <p/>
+ * Commits missing from the heap are looked up in the {@link CommitRecordStore} on disk, if there is one, which holds
+ * the indexed commits across restarts.
+ * <p/>
+ * Eviction is fair across repositories: each repository keeps its commits in access order, and the least recently
+ * used commit of the repository holding the most goes first. As the budget is shared equally between the repositories
+ * that have commits cached, that repository holds more than its share. A repository that is looked at a lot can use
+ * the share of those that aren't, but can't push out the few commits of the others. Evicting a commit takes time in
+ * the number of repositories, not of commits.
+ */
+public class CommitSummaryCache {
+	private static Logger log = Logger.getLogger(CommitSummaryCache.class);
+
+	/**
+	 * The default budget, in megabytes, unless a quarter of the heap is less.
+	 */
+	public static final int DEFAULT_MAX_MEGABYTES = 64;
+
+	// Estimated bytes held by an entry besides its encoded fields: the map entry, the id, the entry and its array.
+	private static final int ENTRY_OVERHEAD = 144;
+
+	private final long maxWeight;
+	// The commits of each repository are in its occupancy. All guarded by the lock on occupancies.
+	private final Map<Long, Occupancy> occupancies = new HashMap<Long, Occupancy>();
+	private int size;
+	private long weight;
+
+	private volatile CommitRecordStore store;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong storeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxWeight the estimated number of bytes the cache may hold.
+	 */
+	public CommitSummaryCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * @return the budget for a cache sized by default, for the current heap.
+	 */
+	public static long getDefaultMaxWeight() {
+		return Math.min(DEFAULT_MAX_MEGABYTES * 1024L * 1024L, Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Sets the store looked up for the commits that aren't in the heap, or null for none.
+	 */
+	public void setStore(CommitRecordStore store) {
+		this.store = store;
+	}
+
+	public CommitRecordStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Keeps the summary of a parsed commit in the store, if there is one, so that it is at hand after a restart.
+	 */
+	public void store(RevCommit commit) throws IOException {
+		CommitRecordStore currentStore = store;
+		if (currentStore != null) {
+			currentStore.append(commit, commit.getCommitTime(), encode(commit));
+		}
+	}
+
+	/**
+	 * @return the summary of a commit of a repository, or null if it is neither cached nor stored.
+	 */
+	public CommitSummary get(long repoId, AnyObjectId id) {
+		Entry entry;
+		synchronized (occupancies) {
+			Occupancy occupancy = getOrCreateOccupancy(repoId);
+			entry = occupancy.entries.get(id);
+			if (entry != null) {
+				occupancy.hits++;
+			} else {
+				occupancy.misses++;
+			}
+		}
+
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.decode();
+		}
+
+		CommitRecordStore currentStore = store;
+		if (currentStore != null) {
+			CommitRecordStore.Record record = currentStore.get(id);
+			if (record != null) {
+				storeHits.incrementAndGet();
+				// the entry is kept on the heap, unlike the record
+				return put(new Entry(repoId, id.copy(), record.copyValue(), record.commitTime));
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the summary of a parsed commit of a repository, evicting commits if the cache gets too heavy.
+	 *
+	 * @return the summary.
+	 */
+	public CommitSummary put(long repoId, RevCommit commit) {
+		// copy the id, the commit itself holds on to its walk
+		return put(new Entry(repoId, commit.copy(), encode(commit), commit.getCommitTime()));
+	}
+
+	private CommitSummary put(Entry entry) {
+		synchronized (occupancies) {
+			Occupancy occupancy = getOrCreateOccupancy(entry.repoId);
+
+			Entry previous = occupancy.entries.put(entry.id, entry);
+			if (previous != null) {
+				removed(occupancy, previous);
+			}
+			size++;
+			weight += entry.getWeight();
+			occupancy.weight += entry.getWeight();
+
+			evict(occupancy);
+		}
+		return entry.decode();
+	}
+
+	// must be called holding the lock on occupancies
+	private Occupancy getOrCreateOccupancy(long repoId) {
+		Occupancy occupancy = occupancies.get(repoId);
+		if (occupancy == null) {
+			occupancy = new Occupancy();
+			occupancies.put(repoId, occupancy);
+		}
+		return occupancy;
+	}
+
+	/**
+	 * Evicts commits until the cache is within its budget, except the one just added to a repository, which is the most
+	 * recently used of its commits. Must be called holding the lock on occupancies.
+	 */
+	private void evict(Occupancy addedTo) {
+		while (weight > maxWeight) {
+			Occupancy heaviest = null;
+			for (Occupancy occupancy : occupancies.values()) {
+				int evictable = occupancy.entries.size() - (occupancy == addedTo ? 1 : 0);
+				if (evictable > 0 && (heaviest == null || occupancy.weight > heaviest.weight)) {
+					heaviest = occupancy;
+				}
+			}
+			if (heaviest == null) {
+				// never evict what was just added, even if it alone is over the budget
+				return;
+			}
+
+			Iterator<Entry> eldest = heaviest.entries.values().iterator();
+			Entry victim = eldest.next();
+			eldest.remove();
+			removed(heaviest, victim);
+			heaviest.evictions++;
+			evictions.incrementAndGet();
+		}
+	}
+
+	// must be called holding the lock on occupancies, after taking the entry out of the map
+	private void removed(Occupancy occupancy, Entry entry) {
+		size--;
+		weight -= entry.getWeight();
+		occupancy.weight -= entry.getWeight();
+	}
+
+	/**
+	 * Drops the commits of a repository, e.g. when it is removed or reconfigured.
+	 */
+	public void clear(long repoId) {
+		synchronized (occupancies) {
+			Occupancy occupancy = occupancies.remove(repoId);
+			if (occupancy != null) {
+				size -= occupancy.entries.size();
+				weight -= occupancy.weight;
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (occupancies) {
+			occupancies.clear();
+			size = 0;
+			weight = 0;
+		}
+	}
+
+	/**
+	 * @return what a repository holds in the cache and how it used it, since its commits were last dropped.
+	 */
+	public Occupancy getOccupancy(long repoId) {
+		synchronized (occupancies) {
+			Occupancy occupancy = occupancies.get(repoId);
+			return occupancy != null ? occupancy.copy() : new Occupancy();
+		}
+	}
+
+	public int getSize() {
+		synchronized (occupancies) {
+			return size;
+		}
+	}
+
+	/**
+	 * @return the estimated number of bytes held.
+	 */
+	public long getWeight() {
+		synchronized (occupancies) {
+			return weight;
+		}
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups missing from the heap that the store answered.
+	 */
+	public long getStoreHits() {
+		return storeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Encodes the fields of a commit's summary.
+	 */
+	private static byte[] encode(RevCommit commit) {
+		PersonIdent author = commit.getAuthorIdent();
+		PersonIdent committer = commit.getCommitterIdent();
+		return encode(commit.getFullMessage(), author != null ? author.getName() : null,
+				committer != null ? committer.getName() : null);
+	}
+
+	/**
+	 * Encodes the fields as consecutive UTF-8 strings, each preceded by its length in bytes, -1 standing for null.
+	 */
+	private static byte[] encode(String... fields) {
+		byte[][] encoded = new byte[fields.length][];
+		int length = 0;
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] != null) {
+				encoded[i] = Constants.encode(fields[i]);
+				length += encoded[i].length;
+			}
+			length += 4;
+		}
+
+		byte[] data = new byte[length];
+		int offset = 0;
+		for (byte[] field : encoded) {
+			int fieldLength = field != null ? field.length : -1;
+			data[offset++] = (byte) (fieldLength >>> 24);
+			data[offset++] = (byte) (fieldLength >>> 16);
+			data[offset++] = (byte) (fieldLength >>> 8);
+			data[offset++] = (byte) fieldLength;
+			if (field != null) {
+				System.arraycopy(field, 0, data, offset, field.length);
+				offset += field.length;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * The share of the cache a repository holds.
+	 */
+	public static final class Occupancy {
+		// in access order, the least recently used first; not copied
+		private final LinkedHashMap<AnyObjectId, Entry> entries = new LinkedHashMap<AnyObjectId, Entry>(16, 0.75f,
+				true);
+		private int size;
+		private long weight;
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		Occupancy copy() {
+			Occupancy copy = new Occupancy();
+			copy.size = entries.size();
+			copy.weight = weight;
+			copy.hits = hits;
+			copy.misses = misses;
+			copy.evictions = evictions;
+			return copy;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the estimated number of bytes held.
+		 */
+		public long getWeight() {
+			return weight;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getEvictions() {
+			return evictions;
+		}
+	}
+
+	private static final class Entry {
+		private final long repoId;
+		private final ObjectId id;
+		private final byte[] data;
+		private final int commitTime;
+
+		Entry(long repoId, ObjectId id, byte[] data, int commitTime) {
+			this.repoId = repoId;
+			this.id = id;
+			this.data = data;
+			this.commitTime = commitTime;
+		}
+
+		int getWeight() {
+			return ENTRY_OVERHEAD + data.length;
+		}
+
+		CommitSummary decode() {
+			String[] fields = new String[3];
+			int offset = 0;
+			for (int i = 0; i < fields.length; i++) {
+				int length = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+						| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+				offset += 4;
+				if (length >= 0) {
+					fields[i] = RawParseUtils.decode(data, offset, offset + length);
+					offset += length;
+				}
+			}
+			return new CommitSummary(id.name(), fields[0], fields[1], fields[2], new Date(commitTime * 1000L));
+		}
+	}
+}
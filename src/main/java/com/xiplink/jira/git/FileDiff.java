@@ -11,28 +11,56 @@
 package com.xiplink.jira.git;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.List;
 
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.RawParseUtils;
 
+/**
+ * A file changed by a commit. Only holds plain values rather than the commit and the diff entry, so that the file
+ * diffs of a commit can be cached and stored once computed, see {@link FileDiffCache}.
+ */
 public class FileDiff {
 
+    /**
+     * Which files of a merge commit count as changed.
+     */
+    public enum MergePolicy {
+        /**
+         * The files that differ from the first parent, i.e. everything the merge brought into the branch.
+         */
+        FIRST_PARENT,
+        /**
+         * The files that differ from every parent, i.e. the ones the merge itself had to resolve.
+         */
+        COMBINED
+    }
+
+    private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+
+    private final String revision;
+    private final String parentRevision;
     private final int number;
-    private final RevCommit commit;
-    private DiffEntry diffEntry;
+    private final String path;
+    private final ChangeType change;
+    private final ObjectId[] blobs;
+    private final FileMode[] modes;
 
-    private static ObjectId[] trees(final RevCommit commit) {
-        final ObjectId[] r = new ObjectId[commit.getParentCount() + 1];
+    private static ObjectId[] trees(final RevCommit commit, final MergePolicy mergePolicy) {
+        final int parents = mergePolicy == MergePolicy.FIRST_PARENT ? 1 : commit.getParentCount();
+        final ObjectId[] r = new ObjectId[parents + 1];
         for (int i = 0; i < r.length - 1; i++) {
             r[i] = commit.getParent(i).getTree().getId();
         }
@@ -40,64 +68,126 @@ public class FileDiff {
         return r;
     }
 
-    static FileDiff[] compute(final TreeWalk walk, final RevCommit commit)
+    /**
+     * Computes a page of the files changed by a commit, whose parents must have been parsed. Only the diffs on the
+     * page are built, the files past it are merely counted, and the walk stops once <code>maxCount</code> files were
+     * counted, so a commit touching a huge number of files costs no more than the page and the count budget.
+     */
+    static FileDiffPage compute(final TreeWalk walk, final RevCommit commit, final MergePolicy mergePolicy,
+            final int offset, final int size, final int maxCount)
             throws MissingObjectException, IncorrectObjectTypeException,
             CorruptObjectException, IOException {
-        final ArrayList<FileDiff> r = new ArrayList<FileDiff>();
+        final ArrayList<FileDiff> r = new ArrayList<FileDiff>(Math.min(size, 1024));
+        final String revision = commit.getId().name();
+        final String parentRevision = commit.getParentCount() > 0 ? commit.getParent(0).getId().name() : null;
 
         if (commit.getParentCount() > 0) {
-            walk.reset(trees(commit));
+            walk.reset(trees(commit, mergePolicy));
         } else {
             walk.reset();
             walk.addTree(new EmptyTreeIterator());
             walk.addTree(commit.getTree());
         }
 
-        if (walk.getTreeCount() <= 2) {
-            List<DiffEntry> entries = DiffEntry.scan(walk);
-            int number = 0;
-            for (DiffEntry entry : entries) {
-                final FileDiff d = new FileDiff(commit, entry, number);
-                r.add(d);
-                number++;
+        final long end = (long) offset + size;
+        final long budget = Math.max(end, maxCount);
+        final int nTree = walk.getTreeCount();
+        final int myTree = nTree - 1;
+        int count = 0;
+        boolean more = false;
+        while (walk.next()) {
+            final ChangeType[] changes = nTree <= 2 ? twoTreeChanges(walk) : mergeChanges(walk, myTree);
+            if (changes.length == 0) {
+                continue;
+            }
+            if (count >= budget) {
+                more = true;
+                break;
             }
-        } else { // DiffEntry does not support walks with more than two trees
-            final int nTree = walk.getTreeCount();
-            final int myTree = nTree - 1;
-            while (walk.next()) {
-                if (matchAnyParent(walk, myTree)) {
-                    continue;
-                }
 
-                final FileDiffForMerges d = new FileDiffForMerges(commit);
-                d.path = walk.getPathString();
-                int m0 = 0;
-                for (int i = 0; i < myTree; i++) {
-                    m0 |= walk.getRawMode(i);
-                }
-                final int m1 = walk.getRawMode(myTree);
-                d.change = ChangeType.MODIFY;
-                if (m0 == 0 && m1 != 0) {
-                    d.change = ChangeType.ADD;
-                } else if (m0 != 0 && m1 == 0) {
-                    d.change = ChangeType.DELETE;
-                } else if (m0 != m1 && walk.idEqual(0, myTree)) {
-                    d.change = ChangeType.MODIFY; // there is no ChangeType.TypeChanged
-                }
-                d.blobs = new ObjectId[nTree];
-                d.modes = new FileMode[nTree];
-                for (int i = 0; i < nTree; i++) {
-                    d.blobs[i] = walk.getObjectId(i);
-                    d.modes[i] = walk.getFileMode(i);
+            for (ChangeType change : changes) {
+                if (count >= offset && count < end) {
+                    r.add(nTree <= 2 ? twoTreeDiff(walk, revision, parentRevision, count, change, changes.length > 1)
+                            : mergeDiff(walk, revision, parentRevision, change));
                 }
-                r.add(d);
+                count++;
             }
+        }
+
+        return new FileDiffPage(r.toArray(new FileDiff[r.size()]), offset, count, !more);
+    }
 
+    /**
+     * The changes of the current entry of a walk over a commit and its parent, the same as
+     * {@link DiffEntry#scan(TreeWalk)} would make of it: a file whose type changed is deleted and added back.
+     */
+    private static ChangeType[] twoTreeChanges(final TreeWalk walk) {
+        final FileMode oldMode = walk.getFileMode(0);
+        final FileMode newMode = walk.getFileMode(1);
+        if (oldMode == FileMode.MISSING) {
+            return new ChangeType[] { ChangeType.ADD };
+        } else if (newMode == FileMode.MISSING) {
+            return new ChangeType[] { ChangeType.DELETE };
+        } else if (!walk.idEqual(0, 1)) {
+            if ((oldMode.getBits() & FileMode.TYPE_MASK) == (newMode.getBits() & FileMode.TYPE_MASK)) {
+                return new ChangeType[] { ChangeType.MODIFY };
+            }
+            return new ChangeType[] { ChangeType.DELETE, ChangeType.ADD };
+        } else if (oldMode != newMode) {
+            return new ChangeType[] { ChangeType.MODIFY };
         }
+        return new ChangeType[0];
+    }
 
-        final FileDiff[] tmp = new FileDiff[r.size()];
-        r.toArray(tmp);
-        return tmp;
+    private static FileDiff twoTreeDiff(final TreeWalk walk, final String revision, final String parentRevision,
+            final int number, final ChangeType change, final boolean typeChanged) {
+        ObjectId oldId = walk.getObjectId(0);
+        ObjectId newId = walk.getObjectId(1);
+        FileMode oldMode = walk.getFileMode(0);
+        FileMode newMode = walk.getFileMode(1);
+        if (typeChanged && change == ChangeType.DELETE) {
+            newId = ObjectId.zeroId();
+            newMode = FileMode.MISSING;
+        } else if (typeChanged && change == ChangeType.ADD) {
+            oldId = ObjectId.zeroId();
+            oldMode = FileMode.MISSING;
+        }
+        return new FileDiff(revision, parentRevision, number, walk.getPathString(), change,
+                new ObjectId[] { oldId, newId }, new FileMode[] { oldMode, newMode });
+    }
+
+    // DiffEntry does not support walks with more than two trees
+    private static ChangeType[] mergeChanges(final TreeWalk walk, final int myTree) {
+        if (matchAnyParent(walk, myTree)) {
+            return new ChangeType[0];
+        }
+
+        int m0 = 0;
+        for (int i = 0; i < myTree; i++) {
+            m0 |= walk.getRawMode(i);
+        }
+        final int m1 = walk.getRawMode(myTree);
+        ChangeType change = ChangeType.MODIFY;
+        if (m0 == 0 && m1 != 0) {
+            change = ChangeType.ADD;
+        } else if (m0 != 0 && m1 == 0) {
+            change = ChangeType.DELETE;
+        } else if (m0 != m1 && walk.idEqual(0, myTree)) {
+            change = ChangeType.MODIFY; // there is no ChangeType.TypeChanged
+        }
+        return new ChangeType[] { change };
+    }
+
+    private static FileDiff mergeDiff(final TreeWalk walk, final String revision, final String parentRevision,
+            final ChangeType change) {
+        final int nTree = walk.getTreeCount();
+        final ObjectId[] blobs = new ObjectId[nTree];
+        final FileMode[] modes = new FileMode[nTree];
+        for (int i = 0; i < nTree; i++) {
+            blobs[i] = walk.getObjectId(i);
+            modes[i] = walk.getFileMode(i);
+        }
+        return new FileDiff(revision, parentRevision, 0, walk.getPathString(), change, blobs, modes);
     }
 
     private static boolean matchAnyParent(final TreeWalk walk, final int myTree) {
@@ -110,82 +200,160 @@ public class FileDiff {
         return false;
     }
 
-    public RevCommit getCommit() {
-        return commit;
+    /**
+     * @return the change, number and blobs of the diff as a single string, which {@link #fromStored} turns back into
+     *         the diff along with its path and revisions.
+     */
+    public String toStored() {
+        StringBuilder stored = new StringBuilder(change.name()).append(' ').append(number);
+        for (int i = 0; i < blobs.length; i++) {
+            stored.append(' ').append(blobs[i].name()).append(':')
+                    .append(i < modes.length ? Integer.toOctalString(modes[i].getBits()) : "0");
+        }
+        return stored.toString();
     }
 
-    public String getPath() {
-        if (ChangeType.DELETE.equals(diffEntry.getChangeType())) {
-            return diffEntry.getOldPath();
+    /**
+     * Builds a diff from what {@link #toStored()} returned, or returns null if that isn't valid.
+     */
+    public static FileDiff fromStored(final String revision, final String parentRevision, final String path,
+            final String stored) {
+        try {
+            final String[] parts = stored.split(" ");
+            final ObjectId[] blobs = new ObjectId[parts.length - 2];
+            final FileMode[] modes = new FileMode[blobs.length];
+            for (int i = 0; i < blobs.length; i++) {
+                final int separator = parts[i + 2].indexOf(':');
+                blobs[i] = ObjectId.fromString(parts[i + 2].substring(0, separator));
+                modes[i] = FileMode.fromBits(Integer.parseInt(parts[i + 2].substring(separator + 1), 8));
+            }
+            return new FileDiff(revision, parentRevision, Integer.parseInt(parts[1]), path,
+                    ChangeType.valueOf(parts[0]), blobs, modes);
+        } catch (RuntimeException e) {
+            return null;
         }
-        return diffEntry.getNewPath();
     }
 
-    public ChangeType getChange() {
-        return diffEntry.getChangeType();
-    }
+    /**
+     * Encodes the file diffs of a commit as: the parent revision, the number of diffs, then for each diff its number,
+     * change type, path, and its blobs with their modes. Revisions and blobs take 20 bytes, a missing parent 20 zero
+     * bytes.
+     */
+    static byte[] encode(final FileDiff[] diffs) {
+        int length = Constants.OBJECT_ID_LENGTH + 4;
+        final byte[][] paths = new byte[diffs.length][];
+        for (int i = 0; i < diffs.length; i++) {
+            paths[i] = Constants.encode(diffs[i].path);
+            length += 4 + 1 + 4 + paths[i].length + 1
+                    + diffs[i].blobs.length * (Constants.OBJECT_ID_LENGTH + 4);
+        }
 
-    public ObjectId[] getBlobs() {
-        List<ObjectId> objectIds = new ArrayList<ObjectId>();
-        if (diffEntry.getOldId() != null) {
-            objectIds.add(diffEntry.getOldId().toObjectId());
+        final byte[] data = new byte[length];
+        int offset = 0;
+        if (diffs.length > 0 && diffs[0].parentRevision != null) {
+            ObjectId.fromString(diffs[0].parentRevision).copyRawTo(data, offset);
         }
-        if (diffEntry.getNewId() != null) {
-            objectIds.add(diffEntry.getNewId().toObjectId());
+        offset += Constants.OBJECT_ID_LENGTH;
+        NB.encodeInt32(data, offset, diffs.length);
+        offset += 4;
+        for (int i = 0; i < diffs.length; i++) {
+            final FileDiff diff = diffs[i];
+            NB.encodeInt32(data, offset, diff.number);
+            offset += 4;
+            data[offset++] = (byte) diff.change.ordinal();
+            NB.encodeInt32(data, offset, paths[i].length);
+            offset += 4;
+            System.arraycopy(paths[i], 0, data, offset, paths[i].length);
+            offset += paths[i].length;
+            // merges have a blob per parent, blobs and modes always come in pairs
+            data[offset++] = (byte) diff.blobs.length;
+            for (int j = 0; j < diff.blobs.length; j++) {
+                diff.blobs[j].copyRawTo(data, offset);
+                offset += Constants.OBJECT_ID_LENGTH;
+                NB.encodeInt32(data, offset, j < diff.modes.length ? diff.modes[j].getBits() : 0);
+                offset += 4;
+            }
         }
-        return objectIds.toArray(new ObjectId[]{});
+        return data;
     }
 
-    public FileMode[] getModes() {
-        List<FileMode> modes = new ArrayList<FileMode>();
-        if (diffEntry.getOldMode() != null) {
-            modes.add(diffEntry.getOldMode());
-        }
-        if (diffEntry.getOldMode() != null) {
-            modes.add(diffEntry.getOldMode());
+    /**
+     * Decodes the file diffs of a commit, as encoded by {@link #encode(FileDiff[])}, straight from the buffer they are
+     * stored in. Only the bytes of the paths are copied, to make strings of them.
+     */
+    static FileDiff[] decode(final String revision, final ByteBuffer stored) {
+        final ByteBuffer data = stored.duplicate();
+        final ObjectId parent = getObjectId(data);
+        final String parentRevision = ObjectId.zeroId().equals(parent) ? null : parent.name();
+        final FileDiff[] diffs = new FileDiff[data.getInt()];
+        byte[] pathBytes = new byte[256];
+        for (int i = 0; i < diffs.length; i++) {
+            final int number = data.getInt();
+            final ChangeType change = CHANGE_TYPES[data.get()];
+            final int pathLength = data.getInt();
+            if (pathLength > pathBytes.length) {
+                pathBytes = new byte[Math.max(pathLength, pathBytes.length * 2)];
+            }
+            data.get(pathBytes, 0, pathLength);
+            final String path = RawParseUtils.decode(pathBytes, 0, pathLength);
+            final ObjectId[] blobs = new ObjectId[data.get()];
+            final FileMode[] modes = new FileMode[blobs.length];
+            for (int j = 0; j < blobs.length; j++) {
+                blobs[j] = getObjectId(data);
+                modes[j] = FileMode.fromBits(data.getInt());
+            }
+            diffs[i] = new FileDiff(revision, parentRevision, number, path, change, blobs, modes);
         }
-        return modes.toArray(new FileMode[]{});
+        return diffs;
     }
 
-    public int getNumber() {
-        return number;
+    private static ObjectId getObjectId(final ByteBuffer data) {
+        return ObjectId.fromRaw(new int[] { data.getInt(), data.getInt(), data.getInt(), data.getInt(),
+                data.getInt() });
     }
 
-    FileDiff(final RevCommit c, final DiffEntry entry, final int num) {
-        diffEntry = entry;
-        commit = c;
-        number = num;
+    /**
+     * @return the id of the commit.
+     */
+    public String getRevision() {
+        return revision;
     }
 
-    private static class FileDiffForMerges extends FileDiff {
+    /**
+     * @return the id of the first parent of the commit, or <code>null</code> for a root commit.
+     */
+    public String getParentRevision() {
+        return parentRevision;
+    }
 
-        private String path;
-        private ChangeType change;
-        private ObjectId[] blobs;
-        private FileMode[] modes;
+    public String getPath() {
+        return path;
+    }
 
-        private FileDiffForMerges(final RevCommit c) {
-            super(c, null, 0);
-        }
+    public ChangeType getChange() {
+        return change;
+    }
 
-        @Override
-        public String getPath() {
-            return path;
-        }
+    public ObjectId[] getBlobs() {
+        return blobs;
+    }
 
-        @Override
-        public ChangeType getChange() {
-            return change;
-        }
+    public FileMode[] getModes() {
+        return modes;
+    }
 
-        @Override
-        public ObjectId[] getBlobs() {
-            return blobs;
-        }
+    public int getNumber() {
+        return number;
+    }
 
-        @Override
-        public FileMode[] getModes() {
-            return modes;
-        }
+    private FileDiff(final String revision, final String parentRevision, final int number, final String path,
+            final ChangeType change, final ObjectId[] blobs, final FileMode[] modes) {
+        this.revision = revision;
+        this.parentRevision = parentRevision;
+        this.number = number;
+        this.path = path;
+        this.change = change;
+        this.blobs = blobs;
+        this.modes = modes;
     }
 }
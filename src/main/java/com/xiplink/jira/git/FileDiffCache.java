@@ -0,0 +1,247 @@
+package com.xiplink.jira.git;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the {@link FileDiff}s of the commits that were shown recently on disk, as the files a commit
+ * changed never change. Like the commit summaries, they are keyed by the commit's id alone and shared by all the
+ * repositories.
+ * <p/>
+ * The diffs are kept in two generations of {@link CommitRecordStore}s, which bounds the disk they take without
+ * removing records from a store. New diffs go to the current generation; once it is full, the previous generation is
+ * cleared and becomes the current one, and the full one becomes the previous one. Diffs found in the previous
+ * generation are copied to the current one, so the commits that are looked at survive the next roll. The stores keep
+ * their directories, the current one being the one with the higher {@link CommitRecordStore#getGeneration()}.
+ * <p/>
+ * The cache does nothing until it is opened, which the revision indexer does next to its index.
+ */
+public class FileDiffCache {
+	private static Logger log = Logger.getLogger(FileDiffCache.class);
+
+	/**
+	 * The default budget for both generations, in megabytes.
+	 */
+	public static final int DEFAULT_MAX_MEGABYTES = 64;
+
+	private static final String[] GENERATION_DIRECTORIES = { "generation-1", "generation-2" };
+
+	private final long maxGenerationSize;
+
+	// Lookups and appends share the read lock, the stores have their own; rolling the generations takes the write lock,
+	// so the diffs of a lookup are decoded before the store they are in can be cleared.
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private CommitRecordStore current;
+	private CommitRecordStore previous;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong rolls = new AtomicLong();
+
+	/**
+	 * @param maxSize the number of bytes both generations may take on disk.
+	 */
+	public FileDiffCache(long maxSize) {
+		this.maxGenerationSize = maxSize / 2;
+	}
+
+	/**
+	 * Opens the generations kept in a directory, creating them if they don't exist.
+	 */
+	public void open(File directory) throws IOException {
+		lock.writeLock().lock();
+		try {
+			closeStores();
+			current = CommitRecordStore.open(new File(directory, GENERATION_DIRECTORIES[0]));
+			try {
+				previous = CommitRecordStore.open(new File(directory, GENERATION_DIRECTORIES[1]));
+			} catch (IOException e) {
+				closeStores();
+				throw e;
+			}
+			if (previous.getGeneration() > current.getGeneration()) {
+				CommitRecordStore newer = previous;
+				previous = current;
+				current = newer;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closeStores();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// must be called holding the write lock
+	private void closeStores() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		if (previous != null) {
+			previous.close();
+			previous = null;
+		}
+	}
+
+	/**
+	 * @return whether the diffs of a commit are cached.
+	 */
+	public boolean contains(AnyObjectId id) {
+		lock.readLock().lock();
+		try {
+			return (current != null && current.contains(id)) || (previous != null && previous.contains(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the diffs of a commit, or null if they aren't cached.
+	 */
+	public FileDiff[] get(AnyObjectId id) {
+		CommitRecordStore.Record record = null;
+		FileDiff[] diffs = null;
+		byte[] kept = null;
+
+		lock.readLock().lock();
+		try {
+			if (current != null) {
+				record = current.get(id);
+				if (record == null && previous != null) {
+					record = previous.get(id);
+					if (record != null) {
+						// keep it for the next generation, once the lock is given back
+						kept = record.copyValue();
+					}
+				}
+			}
+			if (record != null) {
+				diffs = FileDiff.decode(id.name(), record.value);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (diffs == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (kept != null) {
+			append(id, record.commitTime, kept);
+		}
+		return diffs;
+	}
+
+	/**
+	 * Caches the diffs of a commit, rolling the generations if the current one is full.
+	 */
+	public void put(AnyObjectId id, FileDiff[] diffs) {
+		// the records keep no commit time, the diffs are all that is looked up
+		append(id, 0, FileDiff.encode(diffs));
+	}
+
+	private void append(AnyObjectId id, int commitTime, byte[] value) {
+		boolean full;
+		lock.readLock().lock();
+		try {
+			if (current == null) {
+				return;
+			}
+			current.append(id, commitTime, value);
+			full = current.getDataSize() > maxGenerationSize;
+		} catch (IOException e) {
+			log.warn("Could not store the file diffs of commit " + id.name(), e);
+			return;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (full) {
+			roll();
+		}
+	}
+
+	private void roll() {
+		lock.writeLock().lock();
+		try {
+			if (current == null || current.getDataSize() <= maxGenerationSize) {
+				// rolled by another thread in the meantime
+				return;
+			}
+
+			// cleared in place, as the files of a store may still be mapped
+			CommitRecordStore cleared = previous;
+			cleared.clear(current.getGeneration() + 1);
+			previous = current;
+			current = cleared;
+			rolls.incrementAndGet();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isOpen() {
+		lock.readLock().lock();
+		try {
+			return current != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of commits whose diffs are cached, in both generations.
+	 */
+	public int getCount() {
+		lock.readLock().lock();
+		try {
+			return (current != null ? current.getCount() : 0) + (previous != null ? previous.getCount() : 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes both generations take on disk.
+	 */
+	public long getSize() {
+		lock.readLock().lock();
+		try {
+			return (current != null ? current.getDataSize() : 0) + (previous != null ? previous.getDataSize() : 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getMaxSize() {
+		return maxGenerationSize * 2;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of times the previous generation was dropped.
+	 */
+	public long getRolls() {
+		return rolls.get();
+	}
+}
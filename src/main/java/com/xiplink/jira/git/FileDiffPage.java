@@ -0,0 +1,75 @@
+package com.xiplink.jira.git;
+
+/**
+ * A page of the files changed by a commit, along with how many files it changed in all. The tabs show the first page
+ * of each commit and load the next ones on demand, as a single commit can touch tens of thousands of files.
+ */
+public class FileDiffPage {
+	/**
+	 * The number of changed files shown at a time.
+	 */
+	public static final int DEFAULT_SIZE = 100;
+
+	/**
+	 * The number of changed files counted when they are worked out from the repository, past which the total is only
+	 * known to be higher.
+	 */
+	public static final int MAX_COUNT = 10000;
+
+	private final FileDiff[] diffs;
+	private final int offset;
+	private final int total;
+	private final boolean totalKnown;
+
+	/**
+	 * @param total the number of files the commit changed, or the number that were counted if not all were.
+	 * @param totalKnown whether all the files were counted.
+	 */
+	public FileDiffPage(FileDiff[] diffs, int offset, int total, boolean totalKnown) {
+		this.diffs = diffs;
+		this.offset = offset;
+		this.total = total;
+		this.totalKnown = totalKnown;
+	}
+
+	/**
+	 * @return the page of the given diffs, which are all the files a commit changed.
+	 */
+	public static FileDiffPage of(FileDiff[] all, int offset, int size) {
+		int from = Math.min(Math.max(offset, 0), all.length);
+		int to = (int) Math.min((long) from + size, all.length);
+		FileDiff[] diffs = new FileDiff[to - from];
+		System.arraycopy(all, from, diffs, 0, diffs.length);
+		return new FileDiffPage(diffs, from, all.length, true);
+	}
+
+	public FileDiff[] getDiffs() {
+		return diffs;
+	}
+
+	/**
+	 * @return the position of the first diff of the page among all the files the commit changed.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public boolean isTotalKnown() {
+		return totalKnown;
+	}
+
+	/**
+	 * @return whether the commit changed more files past this page.
+	 */
+	public boolean hasNext() {
+		return getNextOffset() < total || !totalKnown;
+	}
+
+	public int getNextOffset() {
+		return offset + diffs.length;
+	}
+}
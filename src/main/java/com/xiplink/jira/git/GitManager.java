@@ -9,16 +9,37 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.AnyObjectId;
 
 import com.opensymphony.module.propertyset.PropertySet;
 import com.xiplink.jira.git.linkrenderer.GitLinkRenderer;
 
 public interface GitManager {
     Map<String,String> getBranches();
-    RevCommit getMergeBase(String baseId, String branchId);
-	Collection<RevCommit> getLogEntries(String fromRev, String toRev);
-	RevCommit getLogEntry(String revision);
+
+	/**
+	 * Walks every commit reachable from the given branch tips but from none of the given uninteresting commits,
+	 * visiting each commit once, parents before children, and passing it to the handler together with the branches
+	 * that reach it. Commits reachable from the head branch are only attributed to the head branch.
+	 * <p/>
+	 * Commits are handed over in batches, only one of which is held in memory with its message at any time; the
+	 * handler is told after each batch where a later walk could resume. The handler is called without holding the
+	 * repository's lock, so it may wait for other threads reading the repository.
+	 *
+	 * @param tips new branch tips, commit id by branch name.
+	 * @param uninterestingIds ids of commits that have been walked before, typically previously indexed tips.
+	 * @param headBranch the name of the branch HEAD points at, or null.
+	 * @param handler receives the new commits.
+	 * @throws IOException if the repository cannot be read, or the handler fails.
+	 */
+	void walkLogEntries(Map<String, String> tips, Collection<String> uninterestingIds, String headBranch,
+			LogEntryHandler handler) throws IOException;
+	CommitSummary getLogEntry(String revision);
+
+	/**
+	 * @return the cache of the commits looked up through {@link #getLogEntry(String)}, shared by all the repositories.
+	 */
+	CommitSummaryCache getCommitCache();
 	long getId();
 	String getDisplayName();
 	String getRoot();
@@ -35,7 +56,18 @@ public interface GitManager {
 	PropertySet getProperties();
 	void fetch();
 	
-	FileDiff[] getFileDiffs(String revision);
+	/**
+	 * @return a page of the files changed by a commit. The files past the page are only counted, up to
+	 *         {@link FileDiffPage#MAX_COUNT}, unless they are all cached already.
+	 */
+	FileDiffPage getFileDiffs(String revision, int offset, int size);
+
+	/**
+	 * Works out the files changed by a commit, without going through the cache of file diffs.
+	 *
+	 * @param mergePolicy which files of a merge commit count as changed.
+	 */
+	FileDiff[] computeFileDiffs(AnyObjectId commitId, FileDiff.MergePolicy mergePolicy) throws IOException;
 
     String getRefId(String refName) throws IOException;
 }
\ No newline at end of file
@@ -6,16 +6,11 @@
 package com.xiplink.jira.git;
 
 import com.atlassian.core.exception.InfrastructureException;
-import com.atlassian.jira.util.JiraKeyUtils;
-import com.atlassian.jira.util.collect.LRUMap;
 import com.opensymphony.module.propertyset.PropertySet;
-import com.opensymphony.util.TextUtils;
 import com.xiplink.jira.git.linkrenderer.GitLinkRenderer;
 import com.xiplink.jira.git.linkrenderer.LinkFormatRenderer;
 import com.xiplink.jira.git.linkrenderer.NullLinkRenderer;
-import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.AnyObjectId;
@@ -27,10 +22,7 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevFlag;
-import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
@@ -44,9 +36,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.eclipse.jgit.lib.Constants.R_HEADS;
 import static org.eclipse.jgit.lib.Constants.R_REMOTES;
@@ -61,12 +55,21 @@ public class GitManagerImpl implements GitManager {
 
 	private static Logger log = Logger.getLogger(GitManagerImpl.class);
 
+	// Number of commits walkLogEntries() reads with their bodies before handing the handler a checkpoint.
+	private static final int LOG_ENTRY_BATCH_SIZE = 10000;
+
 	private GitLinkRenderer linkRenderer;
-	private Map<String, RevCommit> logEntryCache;
+	private final CommitSummaryCache commitCache;
+	private final FileDiffCache fileDiffCache;
+
+	// Reads of the repository share the read lock, each with its own RevWalk and so its own ObjectReader. Only
+	// reconfiguring, activating and deactivating the repository take the write lock. A read that fails deactivates
+	// the repository after giving the read lock back, as the lock can't be upgraded.
+	private final ReentrantReadWriteLock repositoryLock = new ReentrantReadWriteLock();
 	private Repository repository;
 
-	private boolean active;
-	private String inactiveMessage = "unknown";
+	private volatile boolean active;
+	private volatile String inactiveMessage = "unknown";
 	private final long id;
 
 	private PropertySet properties;
@@ -74,26 +77,57 @@ public class GitManagerImpl implements GitManager {
 	private ViewLinkFormat viewLinkFormat = null;
 	private boolean isViewLinkSet = false;
 
-	public GitManagerImpl(long id, PropertySet props) {
+	/**
+	 * @param commitCache the cache of commit summaries shared by all the repositories.
+	 * @param fileDiffCache the cache of file diffs shared by all the repositories.
+	 */
+	public GitManagerImpl(long id, PropertySet props, CommitSummaryCache commitCache, FileDiffCache fileDiffCache) {
 		this.id = id;
 		this.properties = props;
+		this.commitCache = commitCache;
+		this.fileDiffCache = fileDiffCache;
 		setup();
 	}
 
-	public synchronized void update(GProperties props) {
-		deactivate("updating");
+	public void update(GProperties props) {
+		repositoryLock.writeLock().lock();
+		try {
+			deactivate("updating");
+			// the root may have changed, and with it the commits
+			commitCache.clear(id);
 
-		GProperties.Util.fillPropertySet(props, properties);
-		isViewLinkSet = false; /* If we don't reset this flag, we get svn-190 */
+			GProperties.Util.fillPropertySet(props, properties);
+			isViewLinkSet = false; /* If we don't reset this flag, we get svn-190 */
 
-		setup();
+			setup();
+		} finally {
+			repositoryLock.writeLock().unlock();
+		}
+	}
 
+	/**
+	 * Takes the read lock and returns the repository, or returns null without holding the lock if the repository
+	 * isn't active. Every repository returned here must be given back through {@link #releaseRepository()}.
+	 */
+	private Repository acquireRepository() {
+		repositoryLock.readLock().lock();
+		if (!active || repository == null) {
+			repositoryLock.readLock().unlock();
+			return null;
+		}
+		return repository;
+	}
+
+	private void releaseRepository() {
+		repositoryLock.readLock().unlock();
 	}
 
 	public Map<String,String> getBranches(){
         Map<String,String> branches = new HashMap<String, String>();
-		if(this.repository != null){
-				Collection<Ref> refs = this.repository.getAllRefs().values();
+		Repository repository = acquireRepository();
+		if(repository != null){
+			try {
+				Collection<Ref> refs = repository.getAllRefs().values();
 				for (Ref ref : refs) {
 					if(isRealHead(ref)){
 						String branchId = ref.getObjectId().getName();
@@ -102,13 +136,25 @@ public class GitManagerImpl implements GitManager {
                         branches.put(shortName, branchId);
 					}
 				}
+			} finally {
+				releaseRepository();
+			}
 		}
 		return branches;
 	}
 
     public String getRefId(String refName) throws IOException {
-        Ref ref = repository.getRef(refName);
-        return (ref != null ? ref.getObjectId().getName() : null);
+        Repository repository = acquireRepository();
+        if (repository == null) {
+            return null;
+        }
+
+        try {
+            Ref ref = repository.getRef(refName);
+            return (ref != null ? ref.getObjectId().getName() : null);
+        } finally {
+            releaseRepository();
+        }
     }
 
     private boolean isRealHead(Ref ref) {
@@ -131,148 +177,182 @@ public class GitManagerImpl implements GitManager {
 		else
 			linkRenderer = new NullLinkRenderer();
 
-		// Now setup revision indexing if they want it
-		if (isRevisionIndexing()) {
-			// Setup the log message cache
-			int cacheSize = 10000;
-
-			if (getRevisioningCacheSize() > 0) {
-				cacheSize = getRevisioningCacheSize();
-			}
-
-			logEntryCache = LRUMap.newLRUMap(cacheSize);
-		}
-
 		activate();
 	}
 
-    private RevCommit parseCommit(RevWalk walk, String revId) throws Exception {
-        ObjectId rev = repository.resolve(revId);
-        RevCommit commit = walk.parseCommit(rev);
-        return commit;
-    }
-
-    private void markStart(RevWalk walk, String revId) throws Exception {
-        RevCommit commit = parseCommit(walk, revId);
-        walk.markStart(commit);
-    }
-
-    private void markUninteresting(RevWalk walk, String revId) throws Exception {
-        RevCommit commit = parseCommit(walk, revId);
-        walk.markUninteresting(commit);
-    }
-
-    public synchronized RevCommit getMergeBase(String baseId, String branchId) {
-        RevCommit base = null;
-
-        // if connection isn't up, don't even try
-        if (!isActive()) {
-            return base;
-        }
-
-		try {
-			repository.scanForRepoChanges();
-
-			if (log.isDebugEnabled()) {
-				log.debug("Fetching merge base from repository=" + getRoot() + "  for " + baseId + " and " + branchId);
-			}
-
-			RevWalk walk = new RevWalk(repository);
-            walk.setRevFilter(RevFilter.MERGE_BASE);
-
-            markStart(walk, baseId);
-            markStart(walk, branchId);
-
-            Iterator<RevCommit> it = walk.iterator();
-            while (it.hasNext()) {
-                base = it.next();
-            }
-
-		} catch (Exception e) {
-			log.error("Error retrieving changes from the repository.", e);
-			deactivate(e.getMessage());
-		}
-
-		return base;
-	}
-
-	public synchronized Collection<RevCommit> getLogEntries(String fromRev, String toRev) {
-		final Collection<RevCommit> logEntries = new ArrayList<RevCommit>();
-
+	public void walkLogEntries(Map<String, String> tips, Collection<String> uninterestingIds,
+			String headBranch, LogEntryHandler handler) throws IOException {
 		// if connection isn't up, don't even try
-		if (!isActive()) {
-			return logEntries;
+		if (tips.isEmpty()) {
+			return;
+		}
+		Repository repository = acquireRepository();
+		if (repository == null) {
+			return;
 		}
 
-        
-        if(toRev.equals(fromRev)) {
-            return logEntries;
-        }
-
+		// The read lock is given back between batches, so that a writer waiting to reconfigure or deactivate the
+		// repository, and the readers queued behind it, don't wait for the whole walk. It is never held while the
+		// handler runs.
+		boolean locked = true;
+		BranchLabellingRevWalk walk = null;
 		try {
 			repository.scanForRepoChanges();
 
 			if (log.isDebugEnabled()) {
-				log.debug("Fetching log from repository=" + getRoot() + "  for " + fromRev + ".." + toRev);
+				log.debug("Walking " + tips.size() + " branches of repository=" + getRoot() + " past "
+						+ uninterestingIds.size() + " indexed commits");
 			}
 
-			RevWalk walk = new RevWalk(repository);
+			// The first pass only works out which commits are new and which branches reach them, without keeping any
+			// commit bodies. The second pass reads the bodies back a batch at a time, oldest first, so that everything
+			// handed over is always closed under ancestry and can be checkpointed.
+			walk = new BranchLabellingRevWalk(repository, headBranch);
+			walk.setRetainBody(false);
+			for (Map.Entry<String, String> tip : tips.entrySet()) {
+				RevCommit commit = lookupTip(walk, tip.getValue());
+				if (commit != null) {
+					walk.markBranchStart(tip.getKey(), commit);
+				}
+			}
+			for (String uninterestingId : uninterestingIds) {
+				RevCommit commit = lookupTip(walk, uninterestingId);
+				if (commit != null) {
+					walk.markUninteresting(commit);
+				}
+			}
 
-			if (fromRev != null) {
-				markUninteresting(walk, fromRev);
+			List<RevCommit> commits = new ArrayList<RevCommit>();
+			for (RevCommit commit = walk.next(); commit != null; commit = walk.next()) {
+				commits.add(commit);
+				if (commits.size() % LOG_ENTRY_BATCH_SIZE == 0) {
+					releaseRepository();
+					locked = false;
+					reacquireRepository(repository);
+					locked = true;
+				}
 			}
+			walk.release();
 
-            markStart(walk, toRev);
+			Set<RevCommit> heads = new HashSet<RevCommit>();
+			for (int end = commits.size(); end > 0; end -= LOG_ENTRY_BATCH_SIZE) {
+				if (!locked) {
+					reacquireRepository(repository);
+					locked = true;
+				}
 
-			for (final RevCommit logEntry : walk) {
-//				if (log.isDebugEnabled()) {
-//					log.debug("Retrieved #" + logEntry.getId() + " : " + logEntry.getShortMessage());
-//				}
+				int start = Math.max(0, end - LOG_ENTRY_BATCH_SIZE);
+				List<RevCommit> batch = new ArrayList<RevCommit>(end - start);
+				RevWalk bodies = new RevWalk(repository);
+				try {
+					for (int i = end - 1; i >= start; i--) {
+						batch.add(bodies.parseCommit(commits.get(i)));
+					}
+				} finally {
+					bodies.release();
+				}
+				releaseRepository();
+				locked = false;
+
+				// The handler waits for the threads extracting the commits, which read the repository too. Were the
+				// lock still held, they could queue behind a writer waiting for this walk, and never be done.
+				for (int i = end - 1; i >= start; i--) {
+					RevCommit commit = commits.set(i, null);
+					handler.handle(batch.get(end - 1 - i), walk.getBranches(commit));
+
+					heads.add(commit);
+					for (RevCommit parent : commit.getParents()) {
+						heads.remove(parent);
+					}
+				}
 
-				if (TextUtils.stringSet(logEntry.getFullMessage())
-						&& JiraKeyUtils.isKeyInString(StringUtils.upperCase(logEntry.getFullMessage()))) {
-					logEntries.add(logEntry);
+				List<String> headIds = new ArrayList<String>(heads.size());
+				for (RevCommit head : heads) {
+					headIds.add(head.getId().getName());
 				}
+				handler.batchCompleted(headIds);
+			}
+		} finally {
+			if (walk != null) {
+				walk.release();
 			}
+			if (locked) {
+				releaseRepository();
+			}
+		}
+	}
 
-		} catch (Exception e) {
-			log.error("Error retrieving changes from the repository.", e);
-			deactivate(e.getMessage());
+	/**
+	 * Takes the read lock again for a walk that gave it back, provided the repository is still the one it walks.
+	 *
+	 * @throws IOException if the repository was deactivated or reconfigured in the meantime, without holding the lock.
+	 */
+	private void reacquireRepository(Repository walked) throws IOException {
+		Repository current = acquireRepository();
+		if (current != walked) {
+			if (current != null) {
+				releaseRepository();
+			}
+			throw new IOException("Repository " + getRoot() + " was deactivated or reconfigured during the walk");
 		}
-		// temp log comment
-		if (log.isDebugEnabled()) {
-			log.debug("Log entries size = " + logEntries.size() + " for " + getRoot());
+	}
+
+	/**
+	 * Parses a branch tip, or returns null if it no longer exists, e.g. after a forced push and a gc.
+	 */
+	private RevCommit lookupTip(RevWalk walk, String revId) throws IOException {
+		try {
+			return walk.parseCommit(ObjectId.fromString(revId));
+		} catch (MissingObjectException e) {
+			log.debug("Skipping missing commit " + revId + " in repository=" + getRoot());
+			return null;
+		} catch (IncorrectObjectTypeException e) {
+			log.debug("Skipping non-commit " + revId + " in repository=" + getRoot());
+			return null;
 		}
-		return logEntries;
 	}
 
-	public synchronized RevCommit getLogEntry(String revision) {
-		if (!isActive()) {
+	public CommitSummary getLogEntry(String revision) {
+		Repository repository = acquireRepository();
+		if (repository == null) {
 			throw new IllegalStateException("The connection to the repository is not active");
 		}
-		RevCommit logEntry = logEntryCache.get(revision);
 
-		if (logEntry == null) {
-			try {
+		CommitSummary logEntry = null;
+		Exception failure = null;
+		try {
+			// full ids are looked up in the cache without asking the repository
+			ObjectId retrieveStart = ObjectId.isId(revision) ? ObjectId.fromString(revision) : repository.resolve(revision);
+			if (retrieveStart != null) {
+				logEntry = commitCache.get(id, retrieveStart);
+			}
+
+			if (logEntry == null) {
 				if (log.isDebugEnabled()) {
 					log.debug("No cache - retrieving log message for revision: " + revision);
 				}
 
-				ObjectId retrieveStart = repository.resolve(revision);
-
 				RevWalk walk = new RevWalk(repository);
-
-				RevCommit entry = walk.parseCommit(retrieveStart);
-				logEntry = entry;
-				ensureCached(entry);
-
-			} catch (Exception e) {
-				log.error("Error retrieving logs: " + e, e);
-				deactivate(e.getMessage());
-				throw new InfrastructureException(e);
+				try {
+					RevCommit entry = walk.parseCommit(retrieveStart);
+					logEntry = commitCache.put(id, entry);
+				} finally {
+					walk.release();
+				}
+			} else if (log.isDebugEnabled()) {
+				log.debug("Found cached log message for revision: " + revision);
 			}
-		} else if (log.isDebugEnabled()) {
-			log.debug("Found cached log message for revision: " + revision);
+		} catch (Exception e) {
+			log.error("Error retrieving logs: " + e, e);
+			logEntry = null;
+			failure = e;
+		} finally {
+			releaseRepository();
+		}
+
+		if (failure != null) {
+			deactivate(failure.getMessage());
+			throw new InfrastructureException(failure);
 		}
 		return logEntry;
 	}
@@ -281,13 +361,8 @@ public class GitManagerImpl implements GitManager {
 		return id;
 	}
 
-	/**
-	 * Make sure a single log message is cached.
-	 */
-	private void ensureCached(RevCommit logEntry) {
-		synchronized (logEntryCache) {
-			logEntryCache.put(logEntry.getId().name(), logEntry);
-		}
+	public CommitSummaryCache getCommitCache() {
+		return commitCache;
 	}
 
 	public PropertySet getProperties() {
@@ -324,6 +399,21 @@ public class GitManagerImpl implements GitManager {
 	}
 
     public void activate() {
+        repositoryLock.writeLock().lock();
+        try {
+            open();
+        } finally {
+            repositoryLock.writeLock().unlock();
+        }
+    }
+
+    private void open() {
+        if (repository != null) {
+            // don't leak the one we had, e.g. when a failed activation is retried
+            repository.close();
+            repository = null;
+        }
+
         File root = new File(getRoot());
         RepositoryBuilder builder = new RepositoryBuilder().addCeilingDirectory(root).findGitDir(root);
         if (builder.getGitDir() == null) {
@@ -360,12 +450,17 @@ public class GitManagerImpl implements GitManager {
     }
 
 	private void deactivate(String message) {
-		if (repository != null) {
-			repository.close();
-			repository = null;
+		repositoryLock.writeLock().lock();
+		try {
+			if (repository != null) {
+				repository.close();
+				repository = null;
+			}
+			active = false;
+			inactiveMessage = message;
+		} finally {
+			repositoryLock.writeLock().unlock();
 		}
-		active = false;
-		inactiveMessage = message;
 	}
 
 	public ViewLinkFormat getViewLinkFormat() {
@@ -398,53 +493,93 @@ public class GitManagerImpl implements GitManager {
 		return linkRenderer;
 	}
 
-	public FileDiff[] getFileDiffs(String revision) {
-		try {
-			RevWalk argWalk = new RevWalk(repository);
-
-			argWalk.sort(RevSort.COMMIT_TIME_DESC, true);
-			argWalk.sort(RevSort.BOUNDARY, true);
+	public FileDiffPage getFileDiffs(String revision, int offset, int size) {
+		// full ids are looked up in the cache without asking the repository
+		ObjectId commitId = ObjectId.isId(revision) ? ObjectId.fromString(revision) : null;
+		if (commitId != null) {
+			FileDiff[] diffs = fileDiffCache.get(commitId);
+			if (diffs != null) {
+				return FileDiffPage.of(diffs, offset, size);
+			}
+		}
 
-			AnyObjectId headId = repository.resolve(Constants.HEAD);
-			RevCommit headCommit = argWalk.parseCommit(headId);
-			RevCommit entry = argWalk.parseCommit(repository.resolve(revision));
+		Repository repository = acquireRepository();
+		if (repository == null) {
+			log.error("Couldn't find filediffs for revision " + revision + ", the repository isn't active");
+			return new FileDiffPage(new FileDiff[0], offset, 0, true);
+		}
 
-			RevCommit c = entry;
-			if (c.has(RevFlag.UNINTERESTING))
-				argWalk.markUninteresting(c);
-			else
-				argWalk.markStart(c);
+		try {
+			if (commitId == null) {
+				commitId = repository.resolve(revision);
+				FileDiff[] diffs = fileDiffCache.get(commitId);
+				if (diffs != null) {
+					return FileDiffPage.of(diffs, offset, size);
+				}
+			}
 
-			return walk(headCommit, argWalk.next());
+			FileDiffPage page = computeFileDiffs(repository, commitId, FileDiff.MergePolicy.COMBINED, offset, size,
+					FileDiffPage.MAX_COUNT);
+			// only cache the commits that fit on the first page, the others would be computed in full
+			if (offset == 0 && !page.hasNext()) {
+				fileDiffCache.put(commitId, page.getDiffs());
+			}
+			return page;
 		} catch (Exception e) {
 			log.error("Couldn't find filediffs for revision " + revision, e);
-			return new FileDiff[0];
+			return new FileDiffPage(new FileDiff[0], offset, 0, true);
+		} finally {
+			releaseRepository();
 		}
 	}
 
-	private FileDiff[] walk(RevCommit headCommit, RevCommit entry) throws MissingObjectException,
-			IncorrectObjectTypeException, CorruptObjectException, IOException {
-		RevWalk currentWalk = new RevWalk(repository);
-		currentWalk.sort(RevSort.COMMIT_TIME_DESC, true);
-		currentWalk.sort(RevSort.BOUNDARY, true);
-
+	public FileDiff[] computeFileDiffs(AnyObjectId commitId, FileDiff.MergePolicy mergePolicy) throws IOException {
+		Repository repository = acquireRepository();
+		if (repository == null) {
+			throw new IOException("The connection to the repository is not active");
+		}
 		try {
-			currentWalk.markStart(headCommit);
-		} catch (IOException e) {
-			log.error("Couldn't find filediffs for head" + headCommit, e);
-			throw e;
+			return computeFileDiffs(repository, commitId, mergePolicy, 0, Integer.MAX_VALUE, Integer.MAX_VALUE)
+					.getDiffs();
+		} finally {
+			releaseRepository();
 		}
+	}
 
-		final TreeWalk fileWalker = new TreeWalk(repository);
-		fileWalker.setRecursive(true);
-
-		currentWalk.setTreeFilter(TreeFilter.ALL);
-		fileWalker.setFilter(TreeFilter.ANY_DIFF);
+	private FileDiffPage computeFileDiffs(Repository repository, AnyObjectId commitId,
+			FileDiff.MergePolicy mergePolicy, int offset, int size, int maxCount) throws IOException {
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk fileWalker = new TreeWalk(repository);
+		try {
+			RevCommit commit = walk.parseCommit(commitId);
+			// the diff needs the trees of the parents
+			for (RevCommit parent : commit.getParents()) {
+				walk.parseHeaders(parent);
+			}
 
-		return FileDiff.compute(fileWalker, entry);
+			fileWalker.setRecursive(true);
+			fileWalker.setFilter(TreeFilter.ANY_DIFF);
+			return FileDiff.compute(fileWalker, commit, mergePolicy, offset, size, maxCount);
+		} finally {
+			fileWalker.release();
+			walk.release();
+		}
 	}
 
 	public void fetch() {
+		Repository repository = acquireRepository();
+		if (repository == null) {
+			return;
+		}
+
+		try {
+			fetch(repository);
+		} finally {
+			releaseRepository();
+		}
+	}
+
+	private void fetch(Repository repository) {
 
 		try {
 			Transport tn = Transport.open(repository, getOrigin());
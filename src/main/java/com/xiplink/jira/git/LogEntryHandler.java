@@ -0,0 +1,26 @@
+package com.xiplink.jira.git;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Receives the commits visited by {@link GitManager#walkLogEntries}.
+ */
+public interface LogEntryHandler {
+	/**
+	 * @param logEntry a commit that is new since the last walk.
+	 * @param branches the names of the new branch tips the commit is reachable from.
+	 */
+	void handle(RevCommit logEntry, Collection<String> branches) throws IOException;
+
+	/**
+	 * Called after each batch of commits. The commits handed over so far are closed under ancestry, down to the
+	 * uninteresting commits of the walk, so a later walk that also treats the given heads as uninteresting continues
+	 * exactly where this one stopped.
+	 *
+	 * @param heads ids of the newest commits handed over so far, the ones none of the others descend from.
+	 */
+	void batchCompleted(Collection<String> heads) throws IOException;
+}
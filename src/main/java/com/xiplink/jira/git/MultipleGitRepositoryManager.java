@@ -15,6 +15,8 @@ public interface MultipleGitRepositoryManager extends Startable {
 	String GIT_REVISION_INDEXING_KEY = "revision.indexing";
 	String GIT_REVISION_CACHE_SIZE_KEY = "revision.cache.size";
 	String GIT_BRANCH_INDEXED_REVISION = "branch.";
+	String GIT_INDEXING_CHECKPOINT = "indexing.checkpoint";
+	String GIT_LAST_INDEXED = "indexing.last";
 
 	String GIT_LINKFORMAT_TYPE = "linkformat.type";
 	String GIT_LINKFORMAT_CHANGESET = "linkformat.changeset";
@@ -30,6 +32,16 @@ public interface MultipleGitRepositoryManager extends Startable {
 
 	RevisionIndexer getRevisionIndexer();
 
+	/**
+	 * @return the cache of commit summaries shared by all the repositories.
+	 */
+	CommitSummaryCache getCommitCache();
+
+	/**
+	 * @return the cache of file diffs shared by all the repositories.
+	 */
+	FileDiffCache getFileDiffCache();
+
 	/**
 	 * Returns a Collection of GitManager instances, one for each
 	 * repository.
@@ -4,14 +4,17 @@ import com.atlassian.core.exception.InfrastructureException;
 import com.atlassian.jira.config.util.IndexPathManager;
 import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.issue.changehistory.ChangeHistoryManager;
+import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.jira.project.version.VersionManager;
 import com.atlassian.jira.propertyset.JiraPropertySetFactory;
 import com.atlassian.jira.security.PermissionManager;
 import com.atlassian.jira.service.ServiceManager;
 import com.opensymphony.module.propertyset.PropertyException;
 import com.opensymphony.module.propertyset.PropertySet;
+import com.xiplink.jira.git.revisions.IndexingCoordinator;
 import com.xiplink.jira.git.revisions.RevisionIndexer;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -25,7 +28,7 @@ import java.util.Map;
  * @author Dylan Etkin
  * @see GitManager
  */
-public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryManager {
+public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryManager, DisposableBean {
 	private static Logger log = Logger.getLogger(MultipleGitRepositoryManagerImpl.class);
 
 	public static final String APP_PROPERTY_PREFIX = "jira.plugins.git";
@@ -35,11 +38,24 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 
 	public static final long FIRST_REPO_ID = 1;
 
+	/**
+	 * The system property that sets the budget of the commit cache shared by all the repositories, in megabytes.
+	 */
+	public static final String COMMIT_CACHE_SIZE_PROPERTY = "jira.plugins.git.commit.cache.size";
+
+	/**
+	 * The system property that sets how much disk the cached file diffs of all the repositories may take, in
+	 * megabytes.
+	 */
+	public static final String FILE_DIFF_CACHE_SIZE_PROPERTY = "jira.plugins.git.filediff.cache.size";
+
 	private PropertySet pluginProperties;
 
 	private Map<Long, GitManager> managerMap = new HashMap<Long, GitManager>();
 	private RevisionIndexer revisionIndexer;
 	private JiraPropertySetFactory jiraPropertySetFactory;
+	private final CommitSummaryCache commitCache = new CommitSummaryCache(getCommitCacheMaxWeight());
+	private final FileDiffCache fileDiffCache = new FileDiffCache(getFileDiffCacheMaxSize());
 
 	private long lastRepoId;
 
@@ -47,6 +63,8 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
             VersionManager versionManager,
             IssueManager issueManager,
             PermissionManager permissionManager,
+            PermissionVerdictCache permissionCache,
+            ProjectManager projectManager,
             ChangeHistoryManager changeHistoryManager,
             JiraPropertySetFactory jiraPropertySetFactory,
             ServiceManager serviceManager,
@@ -55,7 +73,32 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 		this.jiraPropertySetFactory = jiraPropertySetFactory;
 
 		managerMap = loadGitManagers();
-		revisionIndexer = new RevisionIndexer(this, versionManager, issueManager, permissionManager, serviceManager, indexPathManager);
+		revisionIndexer = new RevisionIndexer(this, versionManager, issueManager, permissionManager, permissionCache,
+				projectManager, serviceManager, indexPathManager);
+	}
+
+	private static long getCommitCacheMaxWeight() {
+		String megabytes = System.getProperty(COMMIT_CACHE_SIZE_PROPERTY);
+		if (megabytes != null) {
+			try {
+				return Long.parseLong(megabytes.trim()) * 1024L * 1024L;
+			} catch (NumberFormatException e) {
+				log.warn("Invalid value for " + COMMIT_CACHE_SIZE_PROPERTY + ": " + megabytes);
+			}
+		}
+		return CommitSummaryCache.getDefaultMaxWeight();
+	}
+
+	private static long getFileDiffCacheMaxSize() {
+		String megabytes = System.getProperty(FILE_DIFF_CACHE_SIZE_PROPERTY);
+		if (megabytes != null) {
+			try {
+				return Long.parseLong(megabytes.trim()) * 1024L * 1024L;
+			} catch (NumberFormatException e) {
+				log.warn("Invalid value for " + FILE_DIFF_CACHE_SIZE_PROPERTY + ": " + megabytes);
+			}
+		}
+		return FileDiffCache.DEFAULT_MAX_MEGABYTES * 1024L * 1024L;
 	}
 
 	/**
@@ -112,7 +155,7 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 			if (properties.getKeys().size() == 0)
 				return null;
 
-			return new GitManagerImpl(index, properties);
+			return new GitManagerImpl(index, properties, commitCache, fileDiffCache);
 		} catch (IllegalArgumentException e) {
 			log.error("Error creating GitManager " + index
 					+ ". Probably was missing a required field (e.g., repository name or root). Skipping it.", e);
@@ -151,7 +194,8 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 		}
 
 		PropertySet set = jiraPropertySetFactory.buildCachingPropertySet(REPO_PROPERTY, new Long(repoId), true);
-		GitManager gitManager = new GitManagerImpl(repoId, GProperties.Util.fillPropertySet(properties, set));
+		GitManager gitManager = new GitManagerImpl(repoId, GProperties.Util.fillPropertySet(properties, set),
+				commitCache, fileDiffCache);
 
 		managerMap.put(new Long(gitManager.getId()), gitManager);
 		if (isIndexingRevisions()) {
@@ -175,6 +219,7 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 
 		try {
 			managerMap.remove(new Long(repoId));
+			commitCache.clear(repoId);
 
 			// would like to just call remove() but this version doesn't appear to have that, remove all of it's
 			// properties instead
@@ -203,9 +248,20 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 			for (String key : keys) {
 				original.getProperties().remove(key);
 			}
+			if (original.getProperties().exists(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT)) {
+				original.getProperties().remove(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT);
+			}
+			if (original.getProperties().exists(MultipleGitRepositoryManager.GIT_LAST_INDEXED)) {
+				original.getProperties().remove(MultipleGitRepositoryManager.GIT_LAST_INDEXED);
+			}
 		} catch (PropertyException e) {
 			throw new InfrastructureException("Could not remove last indexed revisions", e);
 		}
+
+		if (revisionIndexer != null) {
+			// reindex the repository from scratch rather than waiting for the next periodic update
+			revisionIndexer.requestIndexUpdate(original, IndexingCoordinator.Priority.ADMIN);
+		}
 	}
 
 	public boolean isIndexingRevisions() {
@@ -216,6 +272,14 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 		return revisionIndexer;
 	}
 
+	public CommitSummaryCache getCommitCache() {
+		return commitCache;
+	}
+
+	public FileDiffCache getFileDiffCache() {
+		return fileDiffCache;
+	}
+
 	public Collection<GitManager> getRepositoryList() {
 		return managerMap.values();
 	}
@@ -229,4 +293,10 @@ public class MultipleGitRepositoryManagerImpl implements MultipleGitRepositoryMa
 			getRevisionIndexer().start();
 		}
 	}
+
+	public void destroy() throws Exception {
+		if (isIndexingRevisions()) {
+			getRevisionIndexer().stop();
+		}
+	}
 }
@@ -0,0 +1,330 @@
+package com.xiplink.jira.git;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.crowd.event.group.GroupMembershipCreatedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.event.ClearCacheEvent;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.permission.PermissionSchemeManager;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.scheme.Scheme;
+import com.atlassian.jira.scheme.SchemeEntity;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.Permissions;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the answers of {@link PermissionManager} for the "View Version Control" permission, which the tabs and the
+ * revision queries ask over and over for the same users, projects and issues.
+ * <p/>
+ * Whether a user may see the commits of an issue without a security level usually depends on the issue's project,
+ * and on whether the user is its assignee or reporter. Verdicts are therefore cached by user and by that fingerprint
+ * of the issue rather than by issue, so one check answers for all the similar issues of a project. Grants to a user or
+ * group custom field, or of any type outside {@link #FINGERPRINTED_GRANT_TYPES}, depend on other fields of the issue:
+ * the verdicts about the issues of a project whose permission scheme has such a grant are cached by issue instead. So
+ * are the verdicts about issues on a security level, as a level can itself grant access through a custom field, a
+ * project role or the current user. The other inputs of a permission check aren't part of the key, so verdicts also
+ * expire:
+ * <ul>
+ * <li>after {@link #DEFAULT_TIME_TO_LIVE_MILLIS}, which bounds how long a change to a permission scheme or to the
+ * members of a project role can go unnoticed;</li>
+ * <li>for a whole project, when one of its issues changes, as grants can depend on any field of the issue;</li>
+ * <li>all at once, when group memberships change or JIRA clears its caches.</li>
+ * </ul>
+ * The cache holds at most {@link #DEFAULT_MAX_SIZE} verdicts and evicts the least recently used ones first. A verdict
+ * worked out while its project was being cleared isn't kept, as it may predate the change.
+ */
+public class PermissionVerdictCache implements InitializingBean, DisposableBean {
+	private static Logger log = Logger.getLogger(PermissionVerdictCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000L;
+
+	/**
+	 * The types of permission grants that only depend on the user, the project and the fingerprint of the issue.
+	 */
+	public static final Collection<String> FINGERPRINTED_GRANT_TYPES = new HashSet<String>(Arrays.asList("group",
+			"user", "lead", "projectrole", "reporter", "assignee"));
+
+	private final PermissionManager permissionManager;
+	private final PermissionSchemeManager permissionSchemeManager;
+	private final EventPublisher eventPublisher;
+	private final int maxSize;
+	private final long timeToLiveMillis;
+
+	// All guarded by the lock on verdicts. Whether the issue verdicts of a project can be cached by fingerprint
+	private final Map<Long, Verdict> fingerprinted = new HashMap<Long, Verdict>();
+	// Incremented by every clear, and the value it had when each project, or all of them, were last cleared
+	private long generation;
+	private long allClearedGeneration;
+	private final Map<Long, Long> clearedGenerations = new HashMap<Long, Long>();
+
+	private final Map<String, Verdict> verdicts;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public PermissionVerdictCache(PermissionManager permissionManager, PermissionSchemeManager permissionSchemeManager,
+			EventPublisher eventPublisher) {
+		this(permissionManager, permissionSchemeManager, eventPublisher, DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE_MILLIS);
+	}
+
+	public PermissionVerdictCache(PermissionManager permissionManager, PermissionSchemeManager permissionSchemeManager,
+			EventPublisher eventPublisher, int maxSize, long timeToLiveMillis) {
+		this.permissionManager = permissionManager;
+		this.permissionSchemeManager = permissionSchemeManager;
+		this.eventPublisher = eventPublisher;
+		this.maxSize = maxSize;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+				if (size() > PermissionVerdictCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public void afterPropertiesSet() {
+		eventPublisher.register(this);
+	}
+
+	public void destroy() {
+		eventPublisher.unregister(this);
+	}
+
+	/**
+	 * @return true if the user may see the commits of the issue.
+	 */
+	public boolean hasPermission(Issue issue, User user) {
+		Project project = issue.getProjectObject();
+		Long projectId = project != null ? project.getId() : null;
+		String key;
+		if (issue.getSecurityLevelId() == null && isFingerprinted(project)) {
+			key = getUserKey(user) + "|issue|" + projectId + '|' + issue.getAssigneeId() + '|' + issue.getReporterId();
+		} else {
+			key = getUserKey(user) + "|issue-id|" + issue.getId();
+		}
+
+		Boolean verdict = get(key);
+		if (verdict == null) {
+			long generation = getGeneration();
+			verdict = Boolean.valueOf(permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, issue, user));
+			put(key, projectId, verdict, generation);
+		}
+		return verdict.booleanValue();
+	}
+
+	/**
+	 * @return true if the user may see the commits of the project.
+	 */
+	public boolean hasPermission(Project project, User user) {
+		String key = getUserKey(user) + "|project|" + project.getId();
+
+		Boolean verdict = get(key);
+		if (verdict == null) {
+			long generation = getGeneration();
+			verdict = Boolean.valueOf(permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, project, user));
+			put(key, project.getId(), verdict, generation);
+		}
+		return verdict.booleanValue();
+	}
+
+	/**
+	 * @return whether the permission scheme of the project only grants the permission in ways the fingerprint of an
+	 *         issue accounts for. Unknown if the scheme can't be read, and then false.
+	 */
+	private boolean isFingerprinted(Project project) {
+		if (project == null) {
+			return false;
+		}
+
+		long generation;
+		synchronized (verdicts) {
+			Verdict verdict = fingerprinted.get(project.getId());
+			if (verdict != null && verdict.expires > System.currentTimeMillis()) {
+				return verdict.permitted.booleanValue();
+			}
+			generation = this.generation;
+		}
+
+		boolean result;
+		try {
+			result = isFingerprinted(permissionSchemeManager.getSchemeFor(project));
+		} catch (RuntimeException e) {
+			log.warn("Could not read the permission scheme of project " + project.getKey(), e);
+			return false;
+		}
+
+		Verdict verdict = new Verdict(project.getId(), Boolean.valueOf(result), System.currentTimeMillis()
+				+ timeToLiveMillis);
+		synchronized (verdicts) {
+			if (isCurrent(project.getId(), generation)) {
+				fingerprinted.put(project.getId(), verdict);
+			}
+		}
+		return result;
+	}
+
+	private static boolean isFingerprinted(Scheme scheme) {
+		if (scheme == null) {
+			return true;
+		}
+		Long permission = Long.valueOf(Permissions.VIEW_VERSION_CONTROL);
+		for (SchemeEntity entity : scheme.getEntities()) {
+			if (permission.equals(entity.getEntityTypeId()) && !FINGERPRINTED_GRANT_TYPES.contains(entity.getType())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String getUserKey(User user) {
+		// anonymous users get the empty name
+		return user != null ? user.getName() : "";
+	}
+
+	private Boolean get(String key) {
+		synchronized (verdicts) {
+			Verdict verdict = verdicts.get(key);
+			if (verdict != null && verdict.expires > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return verdict.permitted;
+			}
+			if (verdict != null) {
+				verdicts.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return the generation to pass to {@link #put(String, Long, Boolean, long)} for a verdict worked out from now.
+	 */
+	private long getGeneration() {
+		synchronized (verdicts) {
+			return generation;
+		}
+	}
+
+	/**
+	 * Caches a verdict, unless its project was cleared since the given generation.
+	 */
+	private void put(String key, Long projectId, Boolean permitted, long generation) {
+		Verdict verdict = new Verdict(projectId, permitted, System.currentTimeMillis() + timeToLiveMillis);
+		synchronized (verdicts) {
+			if (isCurrent(projectId, generation)) {
+				verdicts.put(key, verdict);
+			}
+		}
+	}
+
+	// must hold the lock on verdicts
+	private boolean isCurrent(Long projectId, long generation) {
+		Long cleared = clearedGenerations.get(projectId);
+		return allClearedGeneration <= generation && (cleared == null || cleared.longValue() <= generation);
+	}
+
+	/**
+	 * Forgets the verdicts about a project and its issues.
+	 */
+	public void clear(Long projectId) {
+		synchronized (verdicts) {
+			clearedGenerations.put(projectId, Long.valueOf(++generation));
+			fingerprinted.remove(projectId);
+			for (Iterator<Verdict> it = verdicts.values().iterator(); it.hasNext();) {
+				Verdict verdict = it.next();
+				if (projectId == null ? verdict.projectId == null : projectId.equals(verdict.projectId)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (verdicts) {
+			allClearedGeneration = ++generation;
+			clearedGenerations.clear();
+			fingerprinted.clear();
+			verdicts.clear();
+		}
+	}
+
+	@EventListener
+	public void onIssueEvent(IssueEvent event) {
+		Issue issue = event.getIssue();
+		if (issue != null && issue.getProjectObject() != null) {
+			clear(issue.getProjectObject().getId());
+		}
+	}
+
+	@EventListener
+	public void onGroupMembershipCreated(GroupMembershipCreatedEvent event) {
+		clear();
+	}
+
+	@EventListener
+	public void onGroupMembershipDeleted(GroupMembershipDeletedEvent event) {
+		clear();
+	}
+
+	@EventListener
+	public void onClearCache(ClearCacheEvent event) {
+		if (log.isDebugEnabled()) {
+			log.debug("Clearing " + getSize() + " permission verdicts");
+		}
+		clear();
+	}
+
+	public int getSize() {
+		synchronized (verdicts) {
+			return verdicts.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private static final class Verdict {
+		private final Long projectId;
+		private final Boolean permitted;
+		private final long expires;
+
+		Verdict(Long projectId, Boolean permitted, long expires) {
+			this.projectId = projectId;
+			this.permitted = permitted;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.xiplink.jira.git.action;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+
+import webwork.action.ActionContext;
+
+import com.xiplink.jira.git.FileDiff;
+import com.xiplink.jira.git.FileDiffPage;
+import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.linkrenderer.GitLinkRenderer;
+
+/**
+ * Renders a page of the files changed by a commit, which the tabs load on demand past the first page. The user must
+ * be allowed to see the commit, i.e. one of the issues it mentions.
+ */
+public class ViewGitChangedFilesAction extends GitActionSupport {
+	private static Logger log = Logger.getLogger(ViewGitChangedFilesAction.class);
+
+	private Long repoId;
+	private String revision;
+	private int offset;
+	private boolean invalidParameters;
+	private FileDiffPage changedPaths;
+
+	public ViewGitChangedFilesAction(MultipleGitRepositoryManager manager) {
+		super(manager);
+	}
+
+	/**
+	 * @return the address of a page of the files changed by a commit, without decoration.
+	 */
+	public static String getUrl(String contextPath, long repoId, String revision, int offset) {
+		try {
+			return contextPath + "/secure/ViewGitChangedFiles.jspa?decorator=none&repoId=" + repoId + "&revision="
+					+ URLEncoder.encode(revision, "UTF-8") + "&offset=" + offset;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getRepoId() {
+		return repoId != null ? repoId.toString() : null;
+	}
+
+	public void setRepoId(String repoId) {
+		try {
+			this.repoId = Long.valueOf(repoId);
+		} catch (NumberFormatException e) {
+			log.warn("Unknown repository id: " + repoId);
+			invalidParameters = true;
+		}
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	public void setRevision(String revision) {
+		this.revision = revision;
+	}
+
+	public String getOffset() {
+		return Integer.toString(offset);
+	}
+
+	public void setOffset(String offset) {
+		try {
+			this.offset = Math.max(Integer.parseInt(offset), 0);
+		} catch (NumberFormatException e) {
+			log.warn("Unknown offset: " + offset);
+			invalidParameters = true;
+		}
+	}
+
+	/**
+	 * Looks the page up, or shows that the commit wasn't found. The same message is shown whether the parameters are
+	 * malformed, the commit isn't indexed, the user isn't allowed to see it or the lookup failed, so that the page
+	 * doesn't tell which commits exist; the failures are logged.
+	 */
+	public String doExecute() {
+		try {
+			if (!invalidParameters && repoId != null && revision != null
+					&& getMultipleRepoManager().getRepository(repoId) != null) {
+				changedPaths = getMultipleRepoManager().getRevisionIndexer().getChangedPaths(repoId, revision,
+						getLoggedInUser(), offset, FileDiffPage.DEFAULT_SIZE);
+			}
+		} catch (Exception e) {
+			log.error("Couldn't find the files changed by revision " + revision, e);
+		}
+
+		if (changedPaths == null) {
+			addErrorMessage(getText("git.changed-files.not-found"));
+			return ERROR;
+		}
+		return SUCCESS;
+	}
+
+	public FileDiffPage getChangedPaths() {
+		return changedPaths;
+	}
+
+	public String getChangedPathsUrl(int offset) {
+		return getUrl(getRequestContextPath(), repoId, revision, offset);
+	}
+
+	private static String getRequestContextPath() {
+		return ActionContext.getRequest() != null ? ActionContext.getRequest().getContextPath() : "";
+	}
+
+	public GitLinkRenderer getLinkRenderer() {
+		return getMultipleRepoManager().getRepository(repoId).getLinkRenderer();
+	}
+
+	public boolean isAdded(FileDiff logEntryPath) {
+		return logEntryPath.getChange() == ChangeType.ADD;
+	}
+
+	public boolean isModified(FileDiff logEntryPath) {
+		return logEntryPath.getChange() == ChangeType.MODIFY;
+	}
+
+	public boolean isDeleted(FileDiff logEntryPath) {
+		return logEntryPath.getChange() == ChangeType.DELETE;
+	}
+}
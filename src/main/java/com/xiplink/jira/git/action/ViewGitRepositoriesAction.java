@@ -2,18 +2,38 @@ package com.xiplink.jira.git.action;
 
 import java.util.Collection;
 
+import com.xiplink.jira.git.CommitSummaryCache;
+import com.xiplink.jira.git.FileDiffCache;
 import com.xiplink.jira.git.GitManager;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
 
 /**
  * Manage 1 or more repositories
  */
 public class ViewGitRepositoriesAction extends GitActionSupport
 {
+    private final PermissionVerdictCache permissionCache;
 
-    public ViewGitRepositoriesAction(MultipleGitRepositoryManager manager)
+    public ViewGitRepositoriesAction(MultipleGitRepositoryManager manager, PermissionVerdictCache permissionCache)
     {
         super (manager);
+        this.permissionCache = permissionCache;
+    }
+
+    public PermissionVerdictCache getPermissionCache()
+    {
+        return permissionCache;
+    }
+
+    public CommitSummaryCache getCommitCache()
+    {
+        return getMultipleRepoManager().getCommitCache();
+    }
+
+    public FileDiffCache getFileDiffCache()
+    {
+        return getMultipleRepoManager().getFileDiffCache();
     }
 
     public Collection<GitManager> getRepositories()
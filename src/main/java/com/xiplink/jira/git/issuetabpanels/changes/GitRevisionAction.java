@@ -8,13 +8,17 @@ import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
-import org.eclipse.jgit.revwalk.RevCommit;
+
+import webwork.action.ActionContext;
 
 import com.atlassian.jira.plugin.issuetabpanel.AbstractIssueAction;
 import com.atlassian.jira.plugin.issuetabpanel.IssueTabPanelModuleDescriptor;
 import com.atlassian.jira.util.JiraKeyUtils;
+import com.xiplink.jira.git.CommitSummary;
 import com.xiplink.jira.git.FileDiff;
+import com.xiplink.jira.git.FileDiffPage;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.action.ViewGitChangedFilesAction;
 import com.xiplink.jira.git.linkrenderer.GitLinkRenderer;
 
 /**
@@ -22,22 +26,28 @@ import com.xiplink.jira.git.linkrenderer.GitLinkRenderer;
  */
 public class GitRevisionAction extends AbstractIssueAction {
 
-    protected final RevCommit revision;
+    protected final CommitSummary revision;
     protected final long repoId;
     protected final IssueTabPanelModuleDescriptor descriptor;
     protected MultipleGitRepositoryManager multipleGitRepositoryManager;
     protected Date timePerformed;
     protected String branch;
+    protected FileDiffPage changedPaths;
 
-    public GitRevisionAction(RevCommit logEntry, MultipleGitRepositoryManager multipleGitRepositoryManager,
-            IssueTabPanelModuleDescriptor descriptor, long repoId, String branch) {
+    /**
+     * @param changedPaths the first page of the files the commit changed, as recorded in the index, or null to ask the
+     *            repository.
+     */
+    public GitRevisionAction(CommitSummary logEntry, MultipleGitRepositoryManager multipleGitRepositoryManager,
+            IssueTabPanelModuleDescriptor descriptor, long repoId, String branch, FileDiffPage changedPaths) {
         super(descriptor);
         this.multipleGitRepositoryManager = multipleGitRepositoryManager;
         this.descriptor = descriptor;
         this.revision = logEntry;
-        this.timePerformed = new Date(revision.getCommitTime() * 1000L);
+        this.timePerformed = revision.getCommitTime() != null ? revision.getCommitTime() : new Date(0);
         this.repoId = repoId;
         this.branch = branch;
+        this.changedPaths = changedPaths;
     }
 
     protected void populateVelocityParams(Map params) {
@@ -70,10 +80,10 @@ public class GitRevisionAction extends AbstractIssueAction {
     }
 
     public String getUsername() {
-        return revision.getAuthorIdent().getName();
+        return revision.getAuthor();
     }
 
-    public RevCommit getRevision() {
+    public CommitSummary getRevision() {
         return revision;
     }
 
@@ -89,14 +99,27 @@ public class GitRevisionAction extends AbstractIssueAction {
         return logEntryPath.getChange() == ChangeType.DELETE;
     }
 
-    public FileDiff[] getChangedPaths() {
-        return multipleGitRepositoryManager.getRepository(repoId).getFileDiffs(revision.getId().name());
+    /**
+     * Comes from the revision index too, unless the commit was indexed without its changed files. Only the first page
+     * is shown with the commit, the next ones are loaded on demand from {@link #getChangedPathsUrl(int)}.
+     */
+    public FileDiffPage getChangedPaths() {
+        if (changedPaths == null) {
+            changedPaths = multipleGitRepositoryManager.getRepository(repoId).getFileDiffs(revision.getId(), 0,
+                    FileDiffPage.DEFAULT_SIZE);
+        }
+        return changedPaths;
+    }
+
+    public String getChangedPathsUrl(int offset) {
+        String contextPath = ActionContext.getRequest() != null ? ActionContext.getRequest().getContextPath() : "";
+        return ViewGitChangedFilesAction.getUrl(contextPath, repoId, revision.getId(), offset);
     }
 
     public String getLinkedLogMessageHtml() {
         // Name ends in Html to avoid HTML escaping
         // https://developer.atlassian.com/display/JIRADEV/Velocity+Templates
-        return JiraKeyUtils.linkBugKeys(revision.getFullMessage().trim());
+        return JiraKeyUtils.linkBugKeys(StringUtils.trimToEmpty(revision.getMessage()));
     }
 
     /**
@@ -5,58 +5,90 @@
  */
 package com.xiplink.jira.git.issuetabpanels.changes;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
+
+import com.xiplink.jira.git.revisions.RevisionCursor;
 import com.xiplink.jira.git.revisions.RevisionIndexer;
 import com.xiplink.jira.git.revisions.RevisionInfo;
+import com.xiplink.jira.git.revisions.RevisionPage;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
+import webwork.action.ActionContext;
+
 import com.atlassian.core.util.collection.EasyList;
 import com.atlassian.jira.issue.Issue;
 import com.atlassian.jira.issue.action.IssueActionComparator;
 import com.atlassian.jira.issue.tabpanels.GenericMessageAction;
 import com.atlassian.jira.plugin.issuetabpanel.AbstractIssueTabPanel;
 import com.atlassian.jira.plugin.issuetabpanel.IssueAction;
-import com.atlassian.jira.security.PermissionManager;
-import com.atlassian.jira.security.Permissions;
 
 import com.atlassian.crowd.embedded.api.User;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
 
 public class GitRevisionsTabPanel extends AbstractIssueTabPanel {
 	private static Logger log = Logger.getLogger(GitRevisionsTabPanel.class);
 
 	protected final MultipleGitRepositoryManager multipleGitRepositoryManager;
-	private PermissionManager permissionManager;
+	private PermissionVerdictCache permissionCache;
+
+	/**
+	 * The number of commits shown at a time in the tab.
+	 */
+	public static final int NUMBER_OF_REVISIONS = 50;
 
-	public GitRevisionsTabPanel(MultipleGitRepositoryManager multipleGitRepositoryManager, PermissionManager permissionManager) {
+	/**
+	 * The request parameter holding the cursor of the page of commits to show.
+	 */
+	public static final String CURSOR_PARAMETER = "gitCursor";
+
+	public GitRevisionsTabPanel(MultipleGitRepositoryManager multipleGitRepositoryManager,
+			PermissionVerdictCache permissionCache) {
 		this.multipleGitRepositoryManager = multipleGitRepositoryManager;
-		this.permissionManager = permissionManager;
+		this.permissionCache = permissionCache;
 	}
 
     public List<IssueAction> getActions(Issue issue, User remoteUser) {
         try {
             RevisionIndexer revisionIndexer = multipleGitRepositoryManager.getRevisionIndexer();
 
-            revisionIndexer.updateIndex();
-			List<RevisionInfo> logEntries = revisionIndexer.getLogEntriesByRepository(issue);
+            // serve from the index as it is, a stale index is refreshed in the background
+            revisionIndexer.requestRefreshIfStale();
+			HttpServletRequest request = ActionContext.getRequest();
+			RevisionCursor cursor = request != null ? RevisionCursor.parse(request.getParameter(CURSOR_PARAMETER)) : null;
+			RevisionPage page = revisionIndexer.getLogEntriesByRepository(issue, cursor, NUMBER_OF_REVISIONS);
 
 			// This is a bit of a hack to get the error message across
-            if (logEntries == null) {
+            if (page == null) {
                 GenericMessageAction action = new GenericMessageAction(getText("no.index.error.message"));
                 return EasyList.build(action);
-            } else if (logEntries.size() == 0) {
-                GenericMessageAction action = new GenericMessageAction(getText("no.log.entries.message"));
-                return EasyList.build(action);
+            } else if (page.getEntries().size() == 0) {
+                List<IssueAction> actions = new ArrayList<IssueAction>(2);
+                actions.add(new GenericMessageAction(getText("no.log.entries.message")));
+                actions.add(new GenericMessageAction(getFreshnessHtml(revisionIndexer)));
+                return actions;
 			} else {
-				List<IssueAction> actions = new ArrayList<IssueAction>(logEntries.size());
+				List<RevisionInfo> logEntries = page.getEntries();
+				List<IssueAction> actions = new ArrayList<IssueAction>(logEntries.size() + 2);
 				for (RevisionInfo entry : logEntries) {
                     actions.add(new GitRevisionAction(entry.getCommit(), multipleGitRepositoryManager,
-                            descriptor, entry.getRepositoryId(), entry.getBranch()));
+                            descriptor, entry.getRepositoryId(), entry.getBranch(), entry.getChangedPaths()));
 				}
 				Collections.sort(actions, IssueActionComparator.COMPARATOR);
+				if (page.hasNext()) {
+					// older commits are loaded on demand, through a link to the next page
+					actions.add(new GenericMessageAction(getMoreLinkHtml(request, issue, page.getNext())));
+				}
+				actions.add(new GenericMessageAction(getFreshnessHtml(revisionIndexer)));
 				return actions;
 			}
 		}
@@ -67,12 +99,39 @@ public class GitRevisionsTabPanel extends AbstractIssueTabPanel {
 		return Collections.emptyList();
 	}
 
+    private String getMoreLinkHtml(HttpServletRequest request, Issue issue, RevisionCursor next)
+            throws UnsupportedEncodingException {
+        String contextPath = request != null ? request.getContextPath() : "";
+        String url = contextPath + "/browse/" + issue.getKey() + "?page=" + descriptor.getCompleteKey() + "&"
+                + CURSOR_PARAMETER + "=" + URLEncoder.encode(next.toString(), "UTF-8");
+        return "<a href=\"" + StringEscapeUtils.escapeHtml(url) + "\">"
+                + StringEscapeUtils.escapeHtml(getText("git.issue-tab.more")) + "</a>";
+    }
+
+    /**
+     * Tells when the index was last brought up to date, and whether it is older than the staleness SLA.
+     */
+    private String getFreshnessHtml(RevisionIndexer revisionIndexer) {
+        Date lastIndexed = revisionIndexer.getLastIndexedTime();
+        if (lastIndexed == null) {
+            return "<span class=\"subText\">" + StringEscapeUtils.escapeHtml(getText("git.issue-tab.never-indexed"))
+                    + "</span>";
+        }
+
+        String freshness = descriptor.getI18nBean().getText("git.issue-tab.last-indexed",
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss ZZZ").format(lastIndexed));
+        if (revisionIndexer.isStale()) {
+            freshness += " " + getText("git.issue-tab.stale");
+        }
+        return "<span class=\"subText\">" + StringEscapeUtils.escapeHtml(freshness) + "</span>";
+    }
+
     private String getText(String key) {
         return descriptor.getI18nBean().getText(key);
     }
 
     public boolean showPanel(Issue issue, User remoteUser) {
 		return multipleGitRepositoryManager.isIndexingRevisions() &&
-						permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, issue, remoteUser);
+						permissionCache.hasPermission(issue, remoteUser);
 	}
 }
@@ -6,8 +6,7 @@
  */
 package com.xiplink.jira.git.linkrenderer;
 
-import org.eclipse.jgit.revwalk.RevCommit;
-
+import com.xiplink.jira.git.CommitSummary;
 import com.xiplink.jira.git.FileDiff;
 
 public interface GitLinkRenderer
@@ -15,9 +14,9 @@ public interface GitLinkRenderer
     // Method names end in "Html" to disable HTML escaping
     // https://developer.atlassian.com/display/JIRADEV/Velocity+Templates
 
-    String getRevisionLinkHtml(RevCommit revision);
+    String getRevisionLinkHtml(CommitSummary revision);
 
-    String getChangePathLinkHtml(RevCommit revision, FileDiff changePath);
+    String getChangePathLinkHtml(FileDiff changePath);
 
-    public String getCopySrcLinkHtml(RevCommit revision, FileDiff changePath);
+    public String getCopySrcLinkHtml(FileDiff changePath);
 }
\ No newline at end of file
@@ -2,8 +2,8 @@ package com.xiplink.jira.git.linkrenderer;
 
 import com.atlassian.core.util.map.EasyMap;
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.revwalk.RevCommit;
 
+import com.xiplink.jira.git.CommitSummary;
 import com.xiplink.jira.git.FileDiff;
 import com.xiplink.jira.git.GitManager;
 import com.xiplink.jira.git.ViewLinkFormat;
@@ -56,23 +56,25 @@ public class LinkFormatRenderer implements GitLinkRenderer {
     }
 
     // TODO
-    public String getCopySrcLinkHtml(RevCommit revision, FileDiff path) {
+    public String getCopySrcLinkHtml(FileDiff path) {
         return formatLink(pathLinkFormat, path.getPath(), EasyMap.build(
-                "${rev}", revision.getId().name(),
+                "${rev}", path.getRevision(),
                 "${path}", path.getPath()));
     }
 
-    public String getRevisionLinkHtml(RevCommit revision) {
-        return getRevisionLink(revision.getId().getName());
+    public String getRevisionLinkHtml(CommitSummary revision) {
+        return getRevisionLink(revision.getId());
     }
 
-    public String getChangePathLinkHtml(RevCommit revision, FileDiff path) {
+    public String getChangePathLinkHtml(FileDiff path) {
         Map<String, String> subst = EasyMap.build(
                 "${num}", Integer.toString(path.getNumber()),
-                "${rev}", revision.getId().name(),
-                "${path}", path.getPath(),
-                "${parent}", revision.getParent(0).getId().name()
+                "${rev}", path.getRevision(),
+                "${path}", path.getPath()
         );
+        if (path.getParentRevision() != null) {
+            subst.put("${parent}", path.getParentRevision());
+        }
 
         ObjectId[] blobs = path.getBlobs();
         if (blobs.length == 1) {
@@ -6,8 +6,7 @@
  */
 package com.xiplink.jira.git.linkrenderer;
 
-import org.eclipse.jgit.revwalk.RevCommit;
-
+import com.xiplink.jira.git.CommitSummary;
 import com.xiplink.jira.git.FileDiff;
 
 
@@ -17,17 +16,17 @@ import com.xiplink.jira.git.FileDiff;
  */
 public class NullLinkRenderer implements GitLinkRenderer
 {
-    public String getRevisionLinkHtml(RevCommit revision)
+    public String getRevisionLinkHtml(CommitSummary revision)
     {
-        return revision.getId().toString();
+        return revision.getId();
     }
 
-    public String getChangePathLinkHtml(RevCommit revision, FileDiff logEntryPath)
+    public String getChangePathLinkHtml(FileDiff logEntryPath)
     {
         return logEntryPath.getPath();
     }
 
-    public String getCopySrcLinkHtml(RevCommit revision, FileDiff logEntryPath)
+    public String getCopySrcLinkHtml(FileDiff logEntryPath)
     {
         return logEntryPath//.getCopyPath() 
         + " #" + logEntryPath;//.getCopyRevision();
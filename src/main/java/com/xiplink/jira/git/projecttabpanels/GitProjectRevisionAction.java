@@ -3,12 +3,12 @@ package com.xiplink.jira.git.projecttabpanels;
 import java.util.Map;
 
 import org.ofbiz.core.util.UtilMisc;
-import org.eclipse.jgit.revwalk.RevCommit;
 
 
 import com.atlassian.jira.plugin.projectpanel.ProjectTabPanelModuleDescriptor;
 import com.atlassian.jira.web.action.JiraWebActionSupport;
-import com.xiplink.jira.git.FileDiff;
+import com.xiplink.jira.git.CommitSummary;
+import com.xiplink.jira.git.FileDiffPage;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
 import com.xiplink.jira.git.issuetabpanels.changes.GitRevisionAction;
 
@@ -23,11 +23,12 @@ public class GitProjectRevisionAction extends GitRevisionAction
 
     protected final ProjectTabPanelModuleDescriptor projectDescriptor;
 
-    public GitProjectRevisionAction(RevCommit logEntry,
+    public GitProjectRevisionAction(CommitSummary logEntry,
                                            MultipleGitRepositoryManager multipleGitRepositoryManager,
-                                           ProjectTabPanelModuleDescriptor descriptor, long repoId, String branch)
+                                           ProjectTabPanelModuleDescriptor descriptor, long repoId, String branch,
+                                           FileDiffPage changedPaths)
     {
-        super(logEntry, multipleGitRepositoryManager, null, repoId, branch);
+        super(logEntry, multipleGitRepositoryManager, null, repoId, branch, changedPaths);
         this.projectDescriptor = descriptor;
     }
 
@@ -37,9 +38,5 @@ public class GitProjectRevisionAction extends GitRevisionAction
         return descriptor.getHtml("view", params);
     }
     
-    public FileDiff[] getChangedPaths() {
-    	return multipleGitRepositoryManager.getRepository(repoId).getFileDiffs(revision.getId().name());
-    }
-    
     
 }
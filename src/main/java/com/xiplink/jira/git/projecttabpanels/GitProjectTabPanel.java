@@ -1,7 +1,10 @@
 package com.xiplink.jira.git.projecttabpanels;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,7 +15,6 @@ import javax.servlet.http.HttpServletRequest;
 import com.xiplink.jira.git.revisions.RevisionInfo;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.revwalk.RevCommit;
 
 import webwork.action.ActionContext;
 
@@ -23,12 +25,14 @@ import com.atlassian.jira.project.browse.BrowseContext;
 import com.atlassian.jira.project.version.Version;
 import com.atlassian.jira.project.version.VersionManager;
 import com.atlassian.jira.security.JiraAuthenticationContext;
-import com.atlassian.jira.security.PermissionManager;
-import com.atlassian.jira.security.Permissions;
 import com.atlassian.jira.web.action.ProjectActionSupport;
 import com.atlassian.crowd.embedded.api.User;
+import com.xiplink.jira.git.CommitSummary;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
+import com.xiplink.jira.git.revisions.RevisionCursor;
 import com.xiplink.jira.git.revisions.RevisionIndexer;
+import com.xiplink.jira.git.revisions.RevisionPage;
 
 /**
  * This class provides a tab panel for the JIRA project view.
@@ -42,7 +46,7 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 
 	private MultipleGitRepositoryManager multipleGitRepositoryManager;
 	private VersionManager versionManager;
-	private PermissionManager permissionManager;
+	private PermissionVerdictCache permissionCache;
 
 	/**
 	 * Constants for the wildcard "version number".
@@ -54,6 +58,18 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 	 */
 	public static final int NUMBER_OF_REVISIONS = 20;
 
+	/**
+	 * The request parameter holding the cursor of the page of commits to show.
+	 */
+	public static final String CURSOR_PARAMETER = "gitCursor";
+
+	/**
+	 * The periods, in days, offered to limit the tab to recent commits.
+	 */
+	public static final List<Integer> PERIODS = Arrays.asList(new Integer[] { 7, 30, 90, 365 });
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
 	/**
 	 * Set this to <code>true</code> if you want to include
 	 * archived versions in the "Select version" drop-down list.
@@ -66,15 +82,15 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 	 * @param multipleGitRepositoryManager
 	 *                          The manager that keeps track of all the git repositories
 	 * @param versionManager		This manager is used to look up all the versions of the current project
-	 * @param permissionManager This manager is used to check that the user has permission to view git data.
+	 * @param permissionCache This cache is used to check that the user has permission to view git data.
 	 */
     public GitProjectTabPanel(JiraAuthenticationContext jiraAuthenticationContext,
              MultipleGitRepositoryManager multipleGitRepositoryManager, VersionManager versionManager,
-             PermissionManager permissionManager) {
+             PermissionVerdictCache permissionCache) {
         super(jiraAuthenticationContext);
 		this.multipleGitRepositoryManager = multipleGitRepositoryManager;
 		this.versionManager = versionManager;
-		this.permissionManager = permissionManager;
+		this.permissionCache = permissionCache;
 	}
 
 	/**
@@ -112,8 +128,37 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 //			}
 		}
 
+		// Get the selected period, if any. Only used for the project as a whole.
+		Integer days = getDaysRequestParameter();
+		Date since = null;
+		if (days != null) {
+			startingParams.put("days", days);
+			since = new Date(System.currentTimeMillis() - days.intValue() * MILLIS_PER_DAY);
+		}
+		startingParams.put("periods", PERIODS);
+
+		// Get the page of commits to show, if the user asked for more than the latest
+		RevisionCursor cursor = null;
+		HttpServletRequest request = ActionContext.getRequest();
+		if (request != null) {
+			cursor = RevisionCursor.parse(request.getParameter(CURSOR_PARAMETER));
+		}
+
 		// Get the list of recently updated issues and add it to the velocity context
-		startingParams.put("commits", getRecentCommits(key, version, user));
+		List<GitProjectRevisionAction> commits = new ArrayList<GitProjectRevisionAction>();
+		RevisionCursor nextCursor = getRecentCommits(key, version, since, cursor, user, commits);
+		startingParams.put("commits", commits);
+		if (nextCursor != null) {
+			startingParams.put("nextCursor", nextCursor.toString());
+		}
+
+		// Tell the user how fresh the index is
+		RevisionIndexer indexer = multipleGitRepositoryManager.getRevisionIndexer();
+		Date lastIndexed = indexer.getLastIndexedTime();
+		if (lastIndexed != null) {
+			startingParams.put("lastIndexed", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss ZZZ").format(lastIndexed));
+		}
+		startingParams.put("indexStale", Boolean.valueOf(indexer.isStale()));
 
 		// Get all versions. Used for the "Select versionNumber" drop-down list
 		Collection releasedVersions = versionManager.getVersionsReleased(project.getId(), INCLUDE_ARCHIVED_VERSIONS);
@@ -136,39 +181,45 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 	 * @param key		 The JIRA project key of the currently selected project.
 	 * @param version The JIRA project version to get commits for. If <code>null</code> is passed in,
 	 *                the latest commits for the project as a whole are returned instead.
+	 * @param since   The earliest commit time for the project as a whole, or <code>null</code> for all commits.
+	 * @param cursor  Where the previous page ended, or <code>null</code> for the latest commits.
 	 * @param user		The remote user -- we need to check that the user has "View Version Control" permission for an issue
 	 *                before we show a commit for it.
-	 * @return A List of {@link GitProjectRevisionAction} objects, each of which holds a valid {@link RevCommit}.
-	 *         The number of commits returned is decided by the constant <code>NUMBER_OF_REVISIONS</code>.
+	 * @param actions Receives a {@link GitProjectRevisionAction} for each commit, each of which holds a
+	 *                {@link CommitSummary}. The number of commits is decided by the constant
+	 *                <code>NUMBER_OF_REVISIONS</code>.
+	 * @return The cursor of the next page, or <code>null</code> if there are no more commits.
 	 */
-	private Collection<GitProjectRevisionAction> getRecentCommits(String key, Version version, User user) {
+	private RevisionCursor getRecentCommits(String key, Version version, Date since, RevisionCursor cursor, User user,
+			List<GitProjectRevisionAction> actions) {
 		if (log.isDebugEnabled()) {
-			log.debug(">getRecentCommits(" + key + ", " + version + ")");
+			log.debug(">getRecentCommits(" + key + ", " + version + ", " + cursor + ")");
 		}
-		List<GitProjectRevisionAction> actions = new ArrayList<GitProjectRevisionAction>();
 
 		try {
-			List<RevisionInfo> logEntries;
+			RevisionPage page;
 			RevisionIndexer indexer = multipleGitRepositoryManager.getRevisionIndexer();
-            indexer.updateIndex();
+			// serve from the index as it is, a stale index is refreshed in the background
+			indexer.requestRefreshIfStale();
 
 			if (version == null) {
-				logEntries = indexer.getLogEntriesByProject(key, user, NUMBER_OF_REVISIONS);
+				page = indexer.getLogEntriesByProject(key, user, NUMBER_OF_REVISIONS, since, cursor);
 			} else {
-				logEntries = indexer.getLogEntriesByVersion(version, user, NUMBER_OF_REVISIONS);
+				page = indexer.getLogEntriesByVersion(version, user, NUMBER_OF_REVISIONS, cursor);
 			}
 
-			if (logEntries.size() > 0) {
-				for (RevisionInfo entry : logEntries) {
+			if (page != null) {
+				for (RevisionInfo entry : page.getEntries()) {
                     actions.add(new GitProjectRevisionAction(entry.getCommit(), multipleGitRepositoryManager,
-                            descriptor, entry.getRepositoryId(), entry.getBranch()));
+                            descriptor, entry.getRepositoryId(), entry.getBranch(), entry.getChangedPaths()));
 				}
+				return page.getNext();
 			}
 		}
 		catch (Throwable t) {
 			log.error("Error retrieving actions for project", t);
 		}
-		return actions;
+		return null;
 	}
 
 	/**
@@ -196,9 +247,35 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 		return versionNumber;
 	}
 
+	/**
+	 * Extracts the <code>days</code> parameter from the HTTP request.
+	 * The period is selected by a drop-down list on the git commit tab.
+	 *
+	 * @return An Integer containing the number of days, or <code>null</code> if
+	 *         the parameter was not set or isn't one of the offered periods.
+	 */
+	private Integer getDaysRequestParameter() {
+		HttpServletRequest request = ActionContext.getRequest();
+
+		if (request != null) {
+			String days = request.getParameter("days");
+			if (StringUtils.isNotBlank(days)) {
+				try {
+					Integer period = new Integer(days);
+					if (PERIODS.contains(period)) {
+						return period;
+					}
+				} catch (NumberFormatException e) {
+					log.error("Unknown period: " + days, e);
+				}
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Determines if this tab should be shown or not. The ProjectActionSupport is used to
-	 * get the remote user. The permission manager is then consulted as to whether the user has
+	 * get the remote user. The permission cache is then consulted as to whether the user has
 	 * the <code>VIEW_VERSION_CONTROL</code> rights or not in the supplied project.
 	 * <p/>
 	 * If we are not indexing new revisions, the tab is never shown.
@@ -210,7 +287,7 @@ public class GitProjectTabPanel extends AbstractProjectTabPanel implements Proje
 	public boolean showPanel(BrowseContext browseContext) {
 		User user = browseContext.getUser();
 		return multipleGitRepositoryManager.isIndexingRevisions() &&
-						permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, browseContext.getProject(), user);
+						permissionCache.hasPermission(browseContext.getProject(), user);
 	}
 
 	/**
@@ -0,0 +1,227 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+
+import java.io.IOException;
+
+/**
+ * Collects the newest hits of a query with their commit time, so that they can be walked newest first without loading
+ * the stored fields of every hit. The commit times are read from the field cache of each segment, which the searcher
+ * manager keeps warm for sorting.
+ * <p/>
+ * Hits are ordered newest first, and hits with the same commit time by their commit key, see
+ * {@link RevisionIndexer#FIELD_COMMIT}, so the order doesn't depend on the document numbers, which change as segments
+ * merge. The commit key of a hit is only read from its stored fields when it ties with another hit or with the bound.
+ * Only hits after a given commit, that is older than its commit time or with that time and a greater key, are
+ * collected, which lets a caller walk a query page by page, and at most <code>capacity</code> of them are kept, the
+ * first ones.
+ */
+class CommitTimeCollector extends Collector
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final FieldSelector COMMIT_KEY_SELECTOR = new MapFieldSelector(new String[] {
+            RevisionIndexer.FIELD_REPOSITORY, RevisionIndexer.FIELD_REVISIONNUMBER });
+
+    private final IndexReader reader;
+    private final int afterCommitTime;
+    private final String afterCommitKey;
+    private final int capacity;
+
+    // A heap of the kept hits, the last one in the order at the top, so that it is replaced first.
+    private Hit[] heap = new Hit[INITIAL_CAPACITY];
+    private int size;
+    private int totalHits;
+
+    private int[] commitTimes;
+    private int docBase;
+
+    /**
+     * @param reader the reader searched, from which the commit keys are read.
+     * @param afterCommitTime the commit time of the commit to collect the hits after, in seconds, or
+     *            {@link Integer#MAX_VALUE} to start with the newest hits.
+     * @param afterCommitKey the key of the commit to collect the hits after, or null to collect all the hits at
+     *            <code>afterCommitTime</code>.
+     * @param capacity the number of hits to keep, at least one.
+     */
+    CommitTimeCollector(IndexReader reader, int afterCommitTime, String afterCommitKey, int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.reader = reader;
+        this.afterCommitTime = afterCommitTime;
+        this.afterCommitKey = afterCommitKey;
+        this.capacity = capacity;
+    }
+
+    public void setScorer(Scorer scorer)
+    {
+        // hits are ordered by commit time, scores aren't needed
+    }
+
+    public void setNextReader(IndexReader reader, int docBase) throws IOException
+    {
+        this.commitTimes = FieldCache.DEFAULT.getInts(reader, RevisionIndexer.FIELD_COMMIT_TIME,
+                FieldCache.NUMERIC_UTILS_INT_PARSER);
+        this.docBase = docBase;
+    }
+
+    public void collect(int doc) throws IOException
+    {
+        int commitTime = commitTimes[doc];
+        if (commitTime > afterCommitTime)
+        {
+            return;
+        }
+
+        if (size == capacity && commitTime < heap[0].commitTime)
+        {
+            // older than every hit kept, so after the bound but not kept
+            totalHits++;
+            return;
+        }
+
+        Hit hit = new Hit(docBase + doc, commitTime);
+        if (commitTime == afterCommitTime && afterCommitKey != null
+                && getCommitKey(hit).compareTo(afterCommitKey) <= 0)
+        {
+            return;
+        }
+        totalHits++;
+
+        if (size < capacity)
+        {
+            if (size == heap.length)
+            {
+                Hit[] grown = new Hit[size * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            heap[size] = hit;
+            siftUp(size++);
+        }
+        else if (comesBefore(hit, heap[0]))
+        {
+            heap[0] = hit;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return whether a hit comes before another one, newest first and then by commit key.
+     */
+    private boolean comesBefore(Hit hit, Hit other) throws IOException
+    {
+        if (hit.commitTime != other.commitTime)
+        {
+            return hit.commitTime > other.commitTime;
+        }
+        return getCommitKey(hit).compareTo(getCommitKey(other)) < 0;
+    }
+
+    private String getCommitKey(Hit hit) throws IOException
+    {
+        if (hit.commitKey == null)
+        {
+            Document doc = reader.document(hit.doc, COMMIT_KEY_SELECTOR);
+            hit.commitKey = RevisionIndexer.getCommitKey(doc.get(RevisionIndexer.FIELD_REPOSITORY),
+                    doc.get(RevisionIndexer.FIELD_REVISIONNUMBER));
+        }
+        return hit.commitKey;
+    }
+
+    private void siftUp(int i) throws IOException
+    {
+        Hit hit = heap[i];
+        while (i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            if (!comesBefore(heap[parent], hit))
+            {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = hit;
+    }
+
+    private void siftDown(int i) throws IOException
+    {
+        Hit hit = heap[i];
+        int half = size >>> 1;
+        while (i < half)
+        {
+            int child = 2 * i + 1;
+            if (child + 1 < size && comesBefore(heap[child], heap[child + 1]))
+            {
+                child++;
+            }
+            if (!comesBefore(hit, heap[child]))
+            {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = hit;
+    }
+
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return true;
+    }
+
+    /**
+     * @return the number of hits after the bound, kept or not.
+     */
+    int getTotalHits()
+    {
+        return totalHits;
+    }
+
+    /**
+     * Takes the hits kept, leaving none.
+     *
+     * @return the hits kept, newest commit first.
+     */
+    Hit[] takeHits() throws IOException
+    {
+        Hit[] hits = new Hit[size];
+        while (size > 0)
+        {
+            hits[size - 1] = heap[0];
+            heap[0] = heap[--size];
+            heap[size] = null;
+            if (size > 0)
+            {
+                siftDown(0);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * A hit kept, with the key of its commit once it was read.
+     */
+    static final class Hit
+    {
+        final int doc;
+        final int commitTime;
+        private String commitKey;
+
+        Hit(int doc, int commitTime)
+        {
+            this.doc = doc;
+            this.commitTime = commitTime;
+        }
+    }
+}
@@ -25,6 +25,11 @@ class DefaultLuceneIndexAccessor implements LuceneIndexAccessor
     {
         return IndexReader.open(getDirectory(path));
     }
+
+    public IndexReader getIndexReader(IndexWriter writer) throws IOException
+    {
+        return IndexReader.open(writer, true);
+    }
     
     private Directory getDirectory(String path) throws IOException
     {
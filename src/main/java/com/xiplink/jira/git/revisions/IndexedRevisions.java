@@ -0,0 +1,197 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commits of one repository that are already in the revision index, with the branches each one is indexed on.
+ * Used by the indexer to skip commits it has seen before, and to find the document to update when a commit shows up
+ * on another branch, without running a search per commit.
+ * <p/>
+ * The sets for all repositories are loaded together in a single pass over the repository, revision and branch
+ * terms of the index, and are then kept up to date by the indexer as it writes documents.
+ */
+class IndexedRevisions
+{
+    private final ObjectIdSubclassMap<IndexedCommit> commits = new ObjectIdSubclassMap<IndexedCommit>();
+
+    boolean contains(AnyObjectId revision)
+    {
+        return commits.get(revision) != null;
+    }
+
+    /**
+     * @return the branches the commit is indexed on, empty if it isn't indexed.
+     */
+    List<String> getBranches(AnyObjectId revision)
+    {
+        IndexedCommit commit = commits.get(revision);
+        return commit != null ? Arrays.asList(commit.branches) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Records that the commit is indexed on the given branches, in addition to any it was already indexed on.
+     *
+     * @return true if this added a branch the commit wasn't indexed on before.
+     */
+    boolean add(AnyObjectId revision, Collection<String> branchNames)
+    {
+        IndexedCommit commit = commits.get(revision);
+        if (commit == null)
+        {
+            commit = new IndexedCommit(revision);
+            commits.add(commit);
+        }
+
+        boolean added = false;
+        for (String branchName : branchNames)
+        {
+            added |= commit.addBranch(branchName);
+        }
+        return added;
+    }
+
+    /**
+     * Reads the indexed commits of every repository in the index. Several documents for the same commit, as written
+     * by the old one-document-per-branch layout, are merged into a single entry.
+     *
+     * @param reader the reader to load from.
+     * @return the indexed commits, keyed by repository id.
+     * @throws IOException if the index cannot be read.
+     */
+    static Map<Long, IndexedRevisions> loadAll(IndexReader reader) throws IOException
+    {
+        int maxDoc = reader.maxDoc();
+        IndexedRevisions[] docRepository = new IndexedRevisions[maxDoc];
+        IndexedCommit[] docCommit = new IndexedCommit[maxDoc];
+        Map<Long, IndexedRevisions> result = new HashMap<Long, IndexedRevisions>();
+
+        TermDocs termDocs = reader.termDocs();
+        try
+        {
+            TermEnum terms = reader.terms(new Term(RevisionIndexer.FIELD_REPOSITORY, ""));
+            try
+            {
+                for (Term term = terms.term(); isField(term, RevisionIndexer.FIELD_REPOSITORY); term = terms.next() ? terms.term() : null)
+                {
+                    IndexedRevisions indexed = new IndexedRevisions();
+                    result.put(Long.valueOf(term.text()), indexed);
+
+                    termDocs.seek(terms);
+                    while (termDocs.next())
+                    {
+                        docRepository[termDocs.doc()] = indexed;
+                    }
+                }
+            }
+            finally
+            {
+                terms.close();
+            }
+
+            terms = reader.terms(new Term(RevisionIndexer.FIELD_REVISIONNUMBER, ""));
+            try
+            {
+                for (Term term = terms.term(); isField(term, RevisionIndexer.FIELD_REVISIONNUMBER); term = terms.next() ? terms.term() : null)
+                {
+                    if (!ObjectId.isId(term.text()))
+                    {
+                        continue;
+                    }
+
+                    ObjectId revision = ObjectId.fromString(term.text());
+                    termDocs.seek(terms);
+                    while (termDocs.next())
+                    {
+                        int doc = termDocs.doc();
+                        IndexedRevisions indexed = docRepository[doc];
+                        if (indexed != null)
+                        {
+                            indexed.add(revision, Collections.<String>emptyList());
+                            docCommit[doc] = indexed.commits.get(revision);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                terms.close();
+            }
+
+            terms = reader.terms(new Term(RevisionIndexer.FIELD_BRANCH, ""));
+            try
+            {
+                for (Term term = terms.term(); isField(term, RevisionIndexer.FIELD_BRANCH); term = terms.next() ? terms.term() : null)
+                {
+                    termDocs.seek(terms);
+                    while (termDocs.next())
+                    {
+                        IndexedCommit commit = docCommit[termDocs.doc()];
+                        if (commit != null)
+                        {
+                            commit.addBranch(term.text());
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                terms.close();
+            }
+        }
+        finally
+        {
+            termDocs.close();
+        }
+
+        return result;
+    }
+
+    private static boolean isField(Term term, String field)
+    {
+        return term != null && field.equals(term.field());
+    }
+
+    private static class IndexedCommit extends ObjectId
+    {
+        private static final String[] NO_BRANCHES = new String[0];
+
+        // Most commits are only on a handful of branches, so a plain array is both smaller and faster than a set.
+        private String[] branches = NO_BRANCHES;
+
+        IndexedCommit(AnyObjectId id)
+        {
+            super(id);
+        }
+
+        boolean addBranch(String branchName)
+        {
+            for (String branch : branches)
+            {
+                if (branch.equals(branchName))
+                {
+                    return false;
+                }
+            }
+
+            String[] grown = new String[branches.length + 1];
+            System.arraycopy(branches, 0, grown, 0, branches.length);
+            grown[branches.length] = branchName;
+            branches = grown;
+            return true;
+        }
+    }
+}
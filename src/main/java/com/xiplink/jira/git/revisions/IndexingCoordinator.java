@@ -0,0 +1,418 @@
+package com.xiplink.jira.git.revisions;
+
+import com.xiplink.jira.git.GitManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The single queue through which repositories get indexed, so that the indexing service, the tabs and the
+ * administration actions don't race each other on the index writer and on the branch properties of a repository.
+ * <p/>
+ * Each repository has at most one job running and one job waiting. A request for a repository that already has a job
+ * waiting is merged into it: its branches are added and it takes the higher of the two priorities. Waiting jobs are
+ * run on a bounded pool, the highest priority first, and a job only starts once the previous job of its repository is
+ * done. A periodic request for a repository that is being indexed is answered by the running job rather than queued
+ * again, as it doesn't signal new commits.
+ * <p/>
+ * Every request returns a {@link Future} that completes when the job serving it does.
+ */
+public class IndexingCoordinator
+{
+    private static final Logger log = Logger.getLogger(IndexingCoordinator.class);
+
+    /**
+     * Who asked for an update, from the most to the least urgent.
+     */
+    public enum Priority
+    {
+        ADMIN, PUSH, PERIODIC
+    }
+
+    /**
+     * Indexes the given branches of a repository, or all of them if <code>branches</code> is null.
+     */
+    interface RepositoryIndexer
+    {
+        void index(GitManager gitManager, Set<String> branches) throws Exception;
+    }
+
+    private final RepositoryIndexer indexer;
+    private final ThreadPoolExecutor executor;
+
+    private final Object lock = new Object();
+    // The job of each repository that waits for a thread or for the job running before it, and the running ones.
+    private final Map<Long, Job> waiting = new HashMap<Long, Job>();
+    private final Map<Long, Job> running = new HashMap<Long, Job>();
+    private long sequence;
+
+    IndexingCoordinator(RepositoryIndexer indexer, int threads)
+    {
+        this.indexer = indexer;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new IndexingThreadFactory());
+    }
+
+    /**
+     * Sets the number of repositories that are indexed at the same time.
+     */
+    void setThreads(int threads)
+    {
+        if (executor.getMaximumPoolSize() == threads)
+        {
+            return;
+        }
+
+        // grow the maximum first, a core size above the maximum is rejected
+        if (threads > executor.getMaximumPoolSize())
+        {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        }
+        else
+        {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Asks for the given branches of a repository to be indexed, or all of them if <code>branches</code> is null.
+     *
+     * @return the job that will serve the request.
+     */
+    Future<Object> submit(GitManager gitManager, Set<String> branches, Priority priority)
+    {
+        Long repoId = Long.valueOf(gitManager.getId());
+        synchronized (lock)
+        {
+            Job job = waiting.get(repoId);
+            if (job != null && !job.isCancelled())
+            {
+                job.merge(branches, priority);
+                return job;
+            }
+
+            Job current = running.get(repoId);
+            if (current != null && priority == Priority.PERIODIC && current.covers(branches))
+            {
+                return current;
+            }
+
+            job = new Job(gitManager, branches, priority, sequence++);
+            waiting.put(repoId, job);
+            if (current == null)
+            {
+                dispatch(job);
+            }
+            return job;
+        }
+    }
+
+    /**
+     * Asks for the given branches of each of the repositories to be indexed.
+     *
+     * @return a future that completes when all the jobs serving the request do.
+     */
+    Future<Object> submitAll(Collection<GitManager> repositories, Set<String> branches, Priority priority)
+    {
+        List<Future<Object>> jobs = new ArrayList<Future<Object>>(repositories.size());
+        for (GitManager gitManager : repositories)
+        {
+            jobs.add(submit(gitManager, branches, priority));
+        }
+        return new AllJobs(jobs);
+    }
+
+    /**
+     * Stops the running jobs and cancels the waiting ones.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+        synchronized (lock)
+        {
+            for (Job job : waiting.values())
+            {
+                job.cancel(false);
+            }
+            waiting.clear();
+        }
+    }
+
+    // must be called holding the lock
+    private void dispatch(Job job)
+    {
+        try
+        {
+            job.dispatched = true;
+            executor.execute(job);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shutting down
+            waiting.remove(job.repoId);
+            job.cancel(false);
+        }
+    }
+
+    private class Job extends FutureTask<Object> implements Comparable<Job>
+    {
+        private final IndexCall call;
+        private final Long repoId;
+        private final long sequence;
+        private Priority priority;
+        private boolean dispatched;
+
+        Job(GitManager gitManager, Set<String> branches, Priority priority, long sequence)
+        {
+            this(new IndexCall(gitManager, branches), priority, sequence);
+        }
+
+        private Job(IndexCall call, Priority priority, long sequence)
+        {
+            super(call);
+            this.call = call;
+            this.repoId = Long.valueOf(call.gitManager.getId());
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        // must be called holding the lock, while the job waits
+        void merge(Set<String> branches, Priority morePriority)
+        {
+            call.merge(branches);
+
+            if (morePriority.compareTo(priority) < 0)
+            {
+                // the queue doesn't reorder its elements, take the job out to requeue it
+                boolean requeue = dispatched && executor.getQueue().remove(this);
+                priority = morePriority;
+                if (requeue)
+                {
+                    dispatch(this);
+                }
+            }
+        }
+
+        boolean covers(Set<String> branches)
+        {
+            return call.covers(branches);
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (lock)
+            {
+                // from now on requests for the repository queue a new job
+                if (waiting.get(repoId) == this)
+                {
+                    waiting.remove(repoId);
+                }
+                if (isDone())
+                {
+                    return;
+                }
+                running.put(repoId, this);
+            }
+
+            try
+            {
+                super.run();
+            }
+            finally
+            {
+                synchronized (lock)
+                {
+                    running.remove(repoId);
+                    Job next = waiting.get(repoId);
+                    if (next != null && !next.dispatched)
+                    {
+                        dispatch(next);
+                    }
+                }
+            }
+        }
+
+        public int compareTo(Job other)
+        {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0)
+            {
+                return byPriority;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private class IndexCall implements Callable<Object>
+    {
+        private final GitManager gitManager;
+        // null for all the branches; only changed while the job waits, under the coordinator's lock
+        private Set<String> branches;
+
+        IndexCall(GitManager gitManager, Set<String> branches)
+        {
+            this.gitManager = gitManager;
+            this.branches = branches != null ? new HashSet<String>(branches) : null;
+        }
+
+        void merge(Set<String> moreBranches)
+        {
+            if (moreBranches == null)
+            {
+                branches = null;
+            }
+            else if (branches != null)
+            {
+                branches.addAll(moreBranches);
+            }
+        }
+
+        boolean covers(Set<String> otherBranches)
+        {
+            return branches == null || (otherBranches != null && branches.containsAll(otherBranches));
+        }
+
+        public Object call() throws Exception
+        {
+            Set<String> indexedBranches;
+            synchronized (lock)
+            {
+                indexedBranches = branches;
+            }
+
+            try
+            {
+                indexer.index(gitManager, indexedBranches);
+            }
+            catch (Exception e)
+            {
+                log.warn("Unable to index repository '" + gitManager.getDisplayName() + "'", e);
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Completes when all of a list of jobs do.
+     */
+    private static class AllJobs implements Future<Object>
+    {
+        private final List<Future<Object>> jobs;
+
+        AllJobs(List<Future<Object>> jobs)
+        {
+            this.jobs = jobs;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = false;
+            for (Future<Object> job : jobs)
+            {
+                cancelled |= job.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        public boolean isCancelled()
+        {
+            for (Future<Object> job : jobs)
+            {
+                if (job.isCancelled())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            for (Future<Object> job : jobs)
+            {
+                if (!job.isDone())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException
+        {
+            ExecutionException failure = null;
+            for (Future<Object> job : jobs)
+            {
+                try
+                {
+                    job.get();
+                }
+                catch (ExecutionException e)
+                {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return null;
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            ExecutionException failure = null;
+            for (Future<Object> job : jobs)
+            {
+                try
+                {
+                    job.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                catch (ExecutionException e)
+                {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return null;
+        }
+    }
+
+    private static class IndexingThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "git-revision-indexer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
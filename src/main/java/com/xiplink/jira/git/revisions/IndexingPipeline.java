@@ -0,0 +1,312 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.lucene.document.Document;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes the commits of a repository walk in three stages, so that a large repository can use more than one core:
+ * <ol>
+ * <li>the walker, i.e. the thread calling {@link #handle(RevCommit, Collection)}, hands over commits and their
+ * branches;</li>
+ * <li>a pool of workers decodes the commit messages, extracts the issue keys and builds the documents;</li>
+ * <li>a single writer takes the documents in batches and adds them to the index.</li>
+ * </ol>
+ * The stages are connected by bounded queues, so a slow stage holds back the ones before it instead of letting
+ * commits pile up in memory. The first failure in any stage stops the pipeline and is rethrown to the walker.
+ * <p/>
+ * A pipeline is used for a single walk: {@link #start()} it, walk, {@link #finish()} it and always {@link #close()}
+ * it. The walker can wait for everything it handed over to be written with {@link #flush()}, e.g. to commit the
+ * index at a checkpoint.
+ */
+class IndexingPipeline
+{
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final long POLL_MILLIS = 100;
+    private static final Entry END = new Entry(null, null);
+
+    /**
+     * Builds the document of a commit. Called concurrently from the workers.
+     */
+    interface Extractor
+    {
+        /**
+         * @return the document of the commit, or null if the commit isn't indexed.
+         */
+        Document extract(RevCommit logEntry);
+    }
+
+    /**
+     * Adds documents to the index. Only ever called from the writer thread.
+     */
+    interface Writer
+    {
+        void write(RevCommit logEntry, Collection<String> branches, Document document) throws IOException;
+    }
+
+    private final Extractor extractor;
+    private final Writer writer;
+    private final int batchSize;
+
+    private final BlockingQueue<Entry> walked;
+    private final BlockingQueue<Entry> extracted;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile Throwable failure;
+    private boolean finished;
+
+    // Commits handed over by the walker, and commits the writer is done with, written or not.
+    private long handedOver;
+    private final Object progressLock = new Object();
+    private long completed;
+
+    IndexingPipeline(String name, int workers, Extractor extractor, Writer writer)
+    {
+        this(name, workers, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, extractor, writer);
+    }
+
+    IndexingPipeline(String name, int workers, int queueCapacity, int batchSize, Extractor extractor, Writer writer)
+    {
+        this.extractor = extractor;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.walked = new ArrayBlockingQueue<Entry>(queueCapacity);
+        this.extracted = new ArrayBlockingQueue<Entry>(queueCapacity);
+
+        for (int i = 0; i < workers; i++)
+        {
+            threads.add(new Thread(new Worker(), name + "-extract-" + (i + 1)));
+        }
+        threads.add(new Thread(new BatchWriter(workers), name + "-write"));
+    }
+
+    void start()
+    {
+        for (Thread thread : threads)
+        {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void handle(RevCommit logEntry, Collection<String> branches) throws IOException
+    {
+        put(walked, new Entry(logEntry, branches));
+        handedOver++;
+    }
+
+    /**
+     * Waits until every commit handed over so far has been through the writer.
+     *
+     * @throws IOException if any stage failed.
+     */
+    void flush() throws IOException
+    {
+        synchronized (progressLock)
+        {
+            try
+            {
+                while (completed < handedOver)
+                {
+                    checkFailure();
+                    progressLock.wait(POLL_MILLIS);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until every commit handed over so far is written.
+     *
+     * @throws IOException if any stage failed.
+     */
+    void finish() throws IOException
+    {
+        for (int i = 0; i < threads.size() - 1; i++)
+        {
+            put(walked, END);
+        }
+        join();
+        checkFailure();
+        finished = true;
+    }
+
+    /**
+     * Stops the pipeline if it wasn't finished, e.g. because the walk failed, and waits for its threads to exit.
+     */
+    void close()
+    {
+        if (!finished)
+        {
+            fail(new IOException("The indexing pipeline was closed before it finished"));
+            join();
+        }
+    }
+
+    private void join()
+    {
+        try
+        {
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable t)
+    {
+        synchronized (this)
+        {
+            if (failure == null)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        Throwable t = failure;
+        if (t instanceof IOException)
+        {
+            throw (IOException) t;
+        }
+        if (t != null)
+        {
+            IOException e = new IOException("Indexing failed: " + t);
+            e.initCause(t);
+            throw e;
+        }
+    }
+
+    private void put(BlockingQueue<Entry> queue, Entry entry) throws IOException
+    {
+        try
+        {
+            while (!queue.offer(entry, POLL_MILLIS, TimeUnit.MILLISECONDS))
+            {
+                checkFailure();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            fail(e);
+            checkFailure();
+        }
+    }
+
+    private Entry take(BlockingQueue<Entry> queue) throws IOException, InterruptedException
+    {
+        Entry entry;
+        while ((entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null)
+        {
+            checkFailure();
+        }
+        return entry;
+    }
+
+    private class Worker implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                for (Entry entry = take(walked); entry != END; entry = take(walked))
+                {
+                    // commits without a document still go to the writer, which keeps count for flush()
+                    entry.document = extractor.extract(entry.logEntry);
+                    put(extracted, entry);
+                }
+                put(extracted, END);
+            }
+            catch (Throwable t)
+            {
+                fail(t);
+            }
+        }
+    }
+
+    private class BatchWriter implements Runnable
+    {
+        private int remainingWorkers;
+
+        BatchWriter(int workers)
+        {
+            this.remainingWorkers = workers;
+        }
+
+        public void run()
+        {
+            List<Entry> batch = new ArrayList<Entry>(batchSize);
+            try
+            {
+                while (remainingWorkers > 0)
+                {
+                    batch.add(take(extracted));
+                    extracted.drainTo(batch, batchSize - 1);
+
+                    int written = 0;
+                    for (Entry entry : batch)
+                    {
+                        if (entry == END)
+                        {
+                            remainingWorkers--;
+                            continue;
+                        }
+                        if (entry.document != null)
+                        {
+                            writer.write(entry.logEntry, entry.branches, entry.document);
+                        }
+                        written++;
+                    }
+                    batch.clear();
+
+                    synchronized (progressLock)
+                    {
+                        completed += written;
+                        progressLock.notifyAll();
+                    }
+                }
+            }
+            catch (Throwable t)
+            {
+                fail(t);
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final RevCommit logEntry;
+        private final Collection<String> branches;
+        private Document document;
+
+        Entry(RevCommit logEntry, Collection<String> branches)
+        {
+            this.logEntry = logEntry;
+            this.branches = branches;
+        }
+    }
+}
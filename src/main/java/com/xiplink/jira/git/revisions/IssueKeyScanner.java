@@ -0,0 +1,318 @@
+package com.xiplink.jira.git.revisions;
+
+import com.atlassian.jira.component.ComponentAccessor;
+import com.atlassian.jira.config.properties.APKeys;
+import com.atlassian.jira.config.properties.ApplicationProperties;
+import com.atlassian.jira.util.JiraKeyUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the issue keys in commit messages in a single pass over the commit's raw bytes, without decoding or
+ * upper-casing the message.
+ * <p/>
+ * A key is two or more ASCII letters, a hyphen and one or more digits, standing on its own as a word, i.e. not
+ * preceded or followed by a letter, digit or underscore. Like JIRA's key pattern, a key can't directly follow any of
+ * <code>&amp; = ? &gt; ^ ! ~ /</code>, so the keys in URLs, query strings and markup aren't taken. Letters match
+ * regardless of case and keys are returned in upper case, which is what the previous upper-case-then-match approach
+ * found with JIRA's default project key pattern. Key characters are ASCII, so this works on any ASCII compatible
+ * encoding, UTF-8 included. The one difference with JIRA is that a non-ASCII letter right before or after a key
+ * ends the word here, while JIRA takes it as part of the word and finds no key.
+ * <p/>
+ * A scanner can be limited to the keys of existing projects, so that strings like <code>UTF-8</code> or
+ * <code>SHA-1</code> aren't taken for issue keys. The project part of every candidate is then looked up in a trie of
+ * the project keys, straight from the raw bytes. Candidates can only start at a word boundary, so this is a single
+ * lookup per candidate rather than a multi-pattern search over the whole message.
+ * <p/>
+ * When JIRA is configured with a project key pattern other than the default, the scanner falls back to
+ * {@link JiraKeyUtils}, and filters its keys by project if limited to existing projects.
+ */
+public class IssueKeyScanner
+{
+    private static final Logger log = Logger.getLogger(IssueKeyScanner.class);
+
+    static final String DEFAULT_PROJECT_KEY_PATTERN = "([A-Z][A-Z]+)";
+
+    private static final int MIN_PROJECT_KEY_LENGTH = 2;
+
+    private final boolean defaultPattern;
+
+    // The keys of the existing projects, or null to accept any project key.
+    private final Set<String> projectKeys;
+    private final ProjectKeyTrie projectKeyTrie;
+
+    /**
+     * Creates a scanner that finds the keys of any project, existing or not.
+     */
+    public IssueKeyScanner()
+    {
+        this(isDefaultProjectKeyPattern(), null);
+    }
+
+    /**
+     * Creates a scanner that only finds the keys of the given projects.
+     */
+    public IssueKeyScanner(Collection<String> projectKeys)
+    {
+        this(isDefaultProjectKeyPattern(), projectKeys);
+    }
+
+    IssueKeyScanner(boolean defaultPattern, Collection<String> projectKeys)
+    {
+        this.defaultPattern = defaultPattern;
+        if (projectKeys != null)
+        {
+            this.projectKeys = new HashSet<String>();
+            this.projectKeyTrie = new ProjectKeyTrie();
+            for (String projectKey : projectKeys)
+            {
+                this.projectKeys.add(StringUtils.upperCase(projectKey));
+                this.projectKeyTrie.add(projectKey);
+            }
+        }
+        else
+        {
+            this.projectKeys = null;
+            this.projectKeyTrie = null;
+        }
+    }
+
+    private static boolean isDefaultProjectKeyPattern()
+    {
+        try
+        {
+            ApplicationProperties applicationProperties = ComponentAccessor.getApplicationProperties();
+            String pattern = applicationProperties.getDefaultBackedString(APKeys.JIRA_PROJECTKEY_PATTERN);
+            return pattern == null || DEFAULT_PROJECT_KEY_PATTERN.equals(pattern);
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Could not read the project key pattern, falling back to JIRA's key matching", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the distinct issue keys in the commit message, upper case, in the order they first appear.
+     */
+    public List<String> getIssueKeys(RevCommit logEntry)
+    {
+        if (!defaultPattern)
+        {
+            List<String> keys = JiraKeyUtils.getIssueKeysFromString(StringUtils.upperCase(logEntry.getFullMessage()));
+            if (keys == null)
+            {
+                return Collections.emptyList();
+            }
+            if (projectKeys != null)
+            {
+                List<String> projectIssueKeys = new ArrayList<String>(keys.size());
+                for (String key : keys)
+                {
+                    if (projectKeys.contains(JiraKeyUtils.getFastProjectKeyFromIssueKey(key)))
+                    {
+                        projectIssueKeys.add(key);
+                    }
+                }
+                keys = projectIssueKeys;
+            }
+            return keys;
+        }
+
+        byte[] raw = logEntry.getRawBuffer();
+        if (raw == null)
+        {
+            return Collections.emptyList();
+        }
+
+        Set<String> keys = new LinkedHashSet<String>();
+        scan(raw, RawParseUtils.commitMessage(raw, 0), raw.length, keys);
+        return new ArrayList<String>(keys);
+    }
+
+    /**
+     * Scans <code>raw[ptr, end)</code> for keys.
+     *
+     * @param ptr start of the message, or -1 if the commit has none.
+     * @param keys receives the keys found.
+     */
+    void scan(byte[] raw, int ptr, int end, Set<String> keys)
+    {
+        int i = ptr < 0 ? end : ptr;
+        while (i < end)
+        {
+            if (!isLetter(raw[i]))
+            {
+                i++;
+                continue;
+            }
+
+            // a key has to start a word, and not follow the characters JIRA excludes; skip letters that don't
+            if (i > ptr && (isWordChar(raw[i - 1]) || isExcludedBeforeKey(raw[i - 1])))
+            {
+                while (i < end && isWordChar(raw[i]))
+                {
+                    i++;
+                }
+                continue;
+            }
+
+            int start = i;
+            while (i < end && isLetter(raw[i]))
+            {
+                i++;
+            }
+            int projectEnd = i;
+            if (projectEnd - start < MIN_PROJECT_KEY_LENGTH || i >= end || raw[i] != '-')
+            {
+                continue;
+            }
+
+            int digits = ++i;
+            while (i < end && isDigit(raw[i]))
+            {
+                i++;
+            }
+            if (i == digits || (i < end && isWordChar(raw[i])))
+            {
+                continue;
+            }
+            if (projectKeyTrie != null && !projectKeyTrie.contains(raw, start, projectEnd))
+            {
+                continue;
+            }
+
+            keys.add(toUpperCaseKey(raw, start, i));
+        }
+    }
+
+    private static String toUpperCaseKey(byte[] raw, int start, int end)
+    {
+        char[] key = new char[end - start];
+        for (int i = start; i < end; i++)
+        {
+            byte b = raw[i];
+            key[i - start] = (char) (b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b);
+        }
+        return new String(key);
+    }
+
+    private static boolean isLetter(byte b)
+    {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWordChar(byte b)
+    {
+        return isLetter(b) || isDigit(b) || b == '_';
+    }
+
+    /**
+     * @return true for the characters JIRA's key pattern doesn't let a key follow.
+     */
+    private static boolean isExcludedBeforeKey(byte b)
+    {
+        switch (b)
+        {
+            case '&':
+            case '=':
+            case '?':
+            case '>':
+            case '^':
+            case '!':
+            case '~':
+            case '/':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Project keys made of letters, matched regardless of case. Keys with other characters can't be found by the
+     * byte scanner anyway, they only occur with a non-default key pattern.
+     */
+    private static class ProjectKeyTrie
+    {
+        private static final int LETTERS = 26;
+
+        // children[node][letter] is the child node, or 0 if there is none; node 0 is the root
+        private int[][] children = new int[16][];
+        private boolean[] terminal = new boolean[16];
+        private int size = 1;
+
+        ProjectKeyTrie()
+        {
+            children[0] = new int[LETTERS];
+        }
+
+        void add(String projectKey)
+        {
+            int node = 0;
+            for (int i = 0; i < projectKey.length(); i++)
+            {
+                char c = Character.toUpperCase(projectKey.charAt(i));
+                if (c < 'A' || c > 'Z')
+                {
+                    return;
+                }
+                int child = children[node][c - 'A'];
+                if (child == 0)
+                {
+                    child = newNode();
+                    children[node][c - 'A'] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        /**
+         * @param raw the key's bytes, which must all be ASCII letters.
+         */
+        boolean contains(byte[] raw, int start, int end)
+        {
+            int node = 0;
+            for (int i = start; i < end; i++)
+            {
+                int letter = raw[i] >= 'a' ? raw[i] - 'a' : raw[i] - 'A';
+                node = children[node][letter];
+                if (node == 0)
+                {
+                    return false;
+                }
+            }
+            return terminal[node];
+        }
+
+        private int newNode()
+        {
+            if (size == children.length)
+            {
+                int[][] grownChildren = new int[size * 2][];
+                System.arraycopy(children, 0, grownChildren, 0, size);
+                children = grownChildren;
+                boolean[] grownTerminal = new boolean[size * 2];
+                System.arraycopy(terminal, 0, grownTerminal, 0, size);
+                terminal = grownTerminal;
+            }
+            children[size] = new int[LETTERS];
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Matches the commits that mention any of a set of issues. The postings of every key are read into a bit set with a
+ * single {@link TermDocs}, so the number of keys isn't limited by {@link org.apache.lucene.search.BooleanQuery}'s
+ * clause count and no scorer is built per key.
+ * <p/>
+ * Wrap it in a {@link org.apache.lucene.search.ConstantScoreQuery} to search with it.
+ */
+public class IssueKeysFilter extends Filter
+{
+    private static final int BUFFER_SIZE = 64;
+
+    private final String[] issueKeys;
+
+    public IssueKeysFilter(Collection<String> issueKeys)
+    {
+        this.issueKeys = issueKeys.toArray(new String[issueKeys.size()]);
+        // terms are seeked in index order, which keeps the term dictionary lookups local
+        Arrays.sort(this.issueKeys);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+    {
+        OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+        int[] docs = new int[BUFFER_SIZE];
+        int[] freqs = new int[BUFFER_SIZE];
+
+        Term term = new Term(RevisionIndexer.FIELD_ISSUEKEY);
+        TermDocs termDocs = reader.termDocs();
+        try
+        {
+            for (String issueKey : issueKeys)
+            {
+                termDocs.seek(term.createTerm(issueKey));
+                for (int count = termDocs.read(docs, freqs); count > 0; count = termDocs.read(docs, freqs))
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        bits.fastSet(docs[i]);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            termDocs.close();
+        }
+
+        return bits;
+    }
+}
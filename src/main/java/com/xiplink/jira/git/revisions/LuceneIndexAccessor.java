@@ -35,4 +35,14 @@ interface LuceneIndexAccessor
      * @return the IndexWriter.
      */
     IndexWriter getIndexWriter(String path, boolean create, Analyzer analyzer)  throws IOException;
+
+    /**
+     * Gets a near-real-time {@link org.apache.lucene.index.IndexReader} that sees everything added through the
+     * given writer, whether or not it has been committed yet.
+     *
+     * @param writer the writer to read from.
+     * @return the IndexReader.
+     * @throws IOException if there's some problem getting the reader.
+     */
+    IndexReader getIndexReader(IndexWriter writer) throws IOException;
 }
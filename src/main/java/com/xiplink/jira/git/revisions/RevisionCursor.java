@@ -0,0 +1,64 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Where a page of commits ended: the commit time and the key of its last commit. Pages list commits newest first, and
+ * the commits made in the same second by their key, so the next page starts with the commits that are older than that
+ * time, or made in that second with a greater key. Pages neither skip nor repeat commits made in the same second, and
+ * stay valid when the index changes in between.
+ * <p/>
+ * A cursor travels in requests as the string returned by {@link #toString()}.
+ */
+public class RevisionCursor {
+    private static final char SEPARATOR = '_';
+
+    private final int commitTime;
+    private final String commitKey;
+
+    public RevisionCursor(int commitTime, String commitKey) {
+        if (commitKey == null) {
+            throw new IllegalArgumentException("RevisionCursor(" + commitTime + ", null)");
+        }
+        this.commitTime = commitTime;
+        this.commitKey = commitKey;
+    }
+
+    /**
+     * @return the commit time of the last commit of the page, in seconds.
+     */
+    public int getCommitTime() {
+        return commitTime;
+    }
+
+    /**
+     * @return the key, see {@link RevisionIndexer#FIELD_COMMIT}, of the last commit of the page.
+     */
+    public String getCommitKey() {
+        return commitKey;
+    }
+
+    public String toString() {
+        return Integer.toString(commitTime) + SEPARATOR + commitKey;
+    }
+
+    /**
+     * @return the cursor, or null if the string isn't a cursor.
+     */
+    public static RevisionCursor parse(String cursor) {
+        if (StringUtils.isBlank(cursor)) {
+            return null;
+        }
+
+        int separator = cursor.indexOf(SEPARATOR);
+        if (separator < 0 || separator == cursor.length() - 1) {
+            return null;
+        }
+
+        try {
+            return new RevisionCursor(Integer.parseInt(cursor.substring(0, separator)), cursor.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
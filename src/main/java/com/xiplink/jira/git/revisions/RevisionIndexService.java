@@ -10,12 +10,20 @@ import com.atlassian.configurable.ObjectConfigurationException;
 import com.atlassian.jira.component.ComponentAccessor;
 import com.atlassian.jira.service.AbstractService;
 import com.atlassian.jira.service.ServiceManager;
+import com.xiplink.jira.git.FileDiff;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
 
 public class RevisionIndexService extends AbstractService
 {
     public static final String REVISION_INDEX_SERVICE_NAME = "Git Revision Indexing Service";
     public static final long REVISION_INDEX_SERVICE_DELAY = 5 * 60 * 1000L;
+    public static final String INDEXING_THREADS = "indexing.threads";
+    public static final String KEY_MATCHING = "key.matching";
+    public static final String KEY_MATCHING_ALL = "all";
+    public static final String STALENESS_SLA = "staleness.sla";
+    public static final String MERGE_PATHS = "merge.paths";
+    public static final String MERGE_PATHS_FIRST_PARENT = "first-parent";
+    public static final String MERGE_PATHS_COMBINED = "combined";
 
     public void run()
     {
@@ -28,6 +36,11 @@ public class RevisionIndexService extends AbstractService
 
             if (multipleGitRepositoryManager.getRevisionIndexer() != null)
             {
+                multipleGitRepositoryManager.getRevisionIndexer().setIndexingThreads(getIndexingThreads());
+                multipleGitRepositoryManager.getRevisionIndexer().setStalenessSla(getStalenessSla());
+                multipleGitRepositoryManager.getRevisionIndexer().setMergePolicy(getMergePolicy());
+                multipleGitRepositoryManager.getRevisionIndexer().setMatchAllKeys(
+                        hasProperty(KEY_MATCHING) && KEY_MATCHING_ALL.equalsIgnoreCase(getProperty(KEY_MATCHING).trim()));
                 multipleGitRepositoryManager.getRevisionIndexer().updateIndex();
             }
             else
@@ -41,6 +54,66 @@ public class RevisionIndexService extends AbstractService
         }
     }
 
+    private int getIndexingThreads() throws ObjectConfigurationException
+    {
+        if (hasProperty(INDEXING_THREADS))
+        {
+            try
+            {
+                int threads = Integer.parseInt(getProperty(INDEXING_THREADS).trim());
+                if (threads > 0)
+                {
+                    return threads;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // fall through to the default
+            }
+            log.warn("Invalid value for " + INDEXING_THREADS + ": " + getProperty(INDEXING_THREADS));
+        }
+        return RevisionIndexer.DEFAULT_INDEXING_THREADS;
+    }
+
+    private long getStalenessSla() throws ObjectConfigurationException
+    {
+        if (hasProperty(STALENESS_SLA))
+        {
+            try
+            {
+                long minutes = Long.parseLong(getProperty(STALENESS_SLA).trim());
+                if (minutes > 0)
+                {
+                    return minutes * 60 * 1000L;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // fall through to the default
+            }
+            log.warn("Invalid value for " + STALENESS_SLA + ": " + getProperty(STALENESS_SLA));
+        }
+        return RevisionIndexer.DEFAULT_STALENESS_SLA;
+    }
+
+    private FileDiff.MergePolicy getMergePolicy() throws ObjectConfigurationException
+    {
+        if (hasProperty(MERGE_PATHS))
+        {
+            String policy = getProperty(MERGE_PATHS).trim();
+            if (MERGE_PATHS_FIRST_PARENT.equalsIgnoreCase(policy))
+            {
+                return FileDiff.MergePolicy.FIRST_PARENT;
+            }
+            if (MERGE_PATHS_COMBINED.equalsIgnoreCase(policy))
+            {
+                return FileDiff.MergePolicy.COMBINED;
+            }
+            log.warn("Invalid value for " + MERGE_PATHS + ": " + policy);
+        }
+        return RevisionIndexer.DEFAULT_MERGE_POLICY;
+    }
+
     public ObjectConfiguration getObjectConfiguration() throws ObjectConfigurationException
     {
         return getObjectConfiguration("gitREVISIONSERVICE", "services/plugins/git/revisionindexservice.xml", null);
@@ -10,27 +10,44 @@ import com.atlassian.jira.config.util.IndexPathManager;
 import com.atlassian.jira.issue.Issue;
 import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.issue.index.IndexException;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.jira.project.version.Version;
 import com.atlassian.jira.project.version.VersionManager;
 import com.atlassian.jira.security.PermissionManager;
-import com.atlassian.jira.security.Permissions;
 import com.atlassian.jira.service.ServiceManager;
 import com.atlassian.jira.util.JiraKeyUtils;
+import com.atlassian.jira.util.collect.LRUMap;
 import com.atlassian.crowd.embedded.api.User;
-import com.opensymphony.util.TextUtils;
 import com.xiplink.jira.git.GPropertiesLoader;
+import com.opensymphony.module.propertyset.PropertySet;
+import com.xiplink.jira.git.CommitSummary;
+import com.xiplink.jira.git.CommitRecordStore;
+import com.xiplink.jira.git.FileDiff;
+import com.xiplink.jira.git.FileDiffCache;
+import com.xiplink.jira.git.FileDiffPage;
 import com.xiplink.jira.git.GitManager;
+import com.xiplink.jira.git.LogEntryHandler;
 import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -39,12 +56,24 @@ import org.ofbiz.core.entity.GenericValue;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class RevisionIndexer {
 
     private static Logger log = Logger.getLogger(RevisionIndexer.class);
     private static final String REVISIONS_INDEX_DIRECTORY = "jira-git-revisions";
+    private static final String COMMITS_STORE_DIRECTORY = "jira-git-commits";
+    private static final String FILE_DIFFS_DIRECTORY = "jira-git-filediffs";
 
     // These are names of the fields in the Lucene documents that contain revision info.
     public static final String FIELD_REVISIONNUMBER = "revision";
@@ -52,33 +81,127 @@ public class RevisionIndexer {
     public static final String FIELD_AUTHOR = "author";
     public static final String FIELD_COMMITTER = "committer";
     public static final String FIELD_DATE = "date";
+    // Commit time in seconds since the epoch, as a numeric field. Indexed only, used for sorting and time ranges.
+    public static final String FIELD_COMMIT_TIME = "committime";
     public static final String FIELD_ISSUEKEY = "key";
     public static final String FIELD_PROJECTKEY = "project";
     public static final String FIELD_REPOSITORY = "repository";
     public static final String FIELD_BRANCH = "branch";
+    // Unique key of a commit's document: repository id and commit id. Indexed only, used to update it in place.
+    public static final String FIELD_COMMIT = "commit";
+    // Layout version the document was written with. Indexed only, used to find documents that need migrating.
+    public static final String FIELD_SCHEMA = "schema";
+    // The files the commit changed, one field per file, along with the change made to each, in the same order. The
+    // paths are indexed, for the commits touching a path; the changes are stored only, see FileDiff.toStored().
+    public static final String FIELD_PATH = "path";
+    public static final String FIELD_CHANGE = "change";
+    // The number of files changed, stored only. Missing if they couldn't be worked out when the commit was indexed.
+    public static final String FIELD_CHANGE_COUNT = "changes";
+    // The first parent of the commit, stored only, for the links to the changed files.
+    public static final String FIELD_PARENT = "parent";
+
+    /**
+     * Version of the document layout. Version 2 stores each commit once per repository, with all the branches it is
+     * on. Version 3 fixes the commit date, which used to be stored as if the commit time in seconds was in
+     * milliseconds. Version 4 adds the numeric commit time. Version 5 adds the changed files. Documents written by
+     * older versions are migrated by {@link #migrateIndexIfNeeded()}.
+     */
+    public static final String SCHEMA_VERSION = "5";
+
+    // The first layout version that stores the right commit date, see getMigratedDate().
+    private static final int FIRST_CORRECT_DATE_SCHEMA = 3;
+
+    // Commit times fit in an int until 2038, like JGit's, which halves the sort cache compared to longs.
+    private static final SortField COMMIT_TIME_SORT_FIELD = new SortField(FIELD_COMMIT_TIME,
+            FieldCache.NUMERIC_UTILS_INT_PARSER, true);
 
     public static final StandardAnalyzer ANALYZER = new StandardAnalyzer(org.apache.lucene.util.Version.LUCENE_30);
 
     public static final int MAX_REVISIONS = 100;
 
+    public static final int DEFAULT_INDEXING_THREADS = 4;
+
+    public static final long DEFAULT_STALENESS_SLA = 15 * 60 * 1000L;
+
+    public static final FileDiff.MergePolicy DEFAULT_MERGE_POLICY = FileDiff.MergePolicy.COMBINED;
+
+    private static final int VERSION_ISSUES_CACHE_SIZE = 100;
+    private static final long VERSION_ISSUES_TIME_TO_LIVE_MILLIS = 60 * 1000L;
+
+    // The fields needed to decide whether a commit goes on a page.
+    private static final FieldSelector PAGE_FIELDS_SELECTOR = new MapFieldSelector(new String[] { FIELD_REPOSITORY,
+            FIELD_REVISIONNUMBER, FIELD_ISSUEKEY });
+
+    private static final int MIN_PAGE_BATCH_SIZE = 64;
+
+    // The most commits of a repository whose file diffs are worked out ahead of the tabs, newest first.
+    private static final int FILE_DIFF_WARM_UP_LIMIT = 500;
+
+    // The fields needed to tell whether a commit was indexed with its changed files.
+    private static final FieldSelector CHANGE_COUNT_SELECTOR = new MapFieldSelector(new String[] {
+            FIELD_REVISIONNUMBER, FIELD_CHANGE_COUNT });
+
     private final MultipleGitRepositoryManager multipleGitRepositoryManager;
     private final VersionManager versionManager;
     private final IssueManager issueManager;
     private final PermissionManager permissionManager;
+    private final PermissionVerdictCache permissionCache;
+    private final ProjectManager projectManager;
     private final ServiceManager serviceManager;
     private final IndexPathManager indexPathManager;
     private final LuceneIndexAccessor indexAccessor;
 
+    // The writer is shared by every indexing run and only closed on stop(), so that a cycle over many branches
+    // doesn't pay for acquiring the write lock and flushing segments once per branch.
+    private final Object writerLock = new Object();
+    private IndexWriter indexWriter;
+    private RevisionSearcherManager searcherManager;
+    // The summaries of the indexed commits, kept next to the index so that the tabs don't parse them again after a
+    // restart. Guarded by the writer lock.
+    private CommitRecordStore commitStore;
+
+    // Commits already in the index, by repository id. Loaded once from the index and then maintained as documents
+    // are added, so that catch-up indexing doesn't need a search per commit to avoid duplicates.
+    private Map<Long, IndexedRevisions> indexedRevisions;
+
+    private final Object migrationLock = new Object();
+    private volatile boolean indexMigrated;
+
+    // All indexing goes through the coordinator, which indexes repositories concurrently on a bounded pool but
+    // serialises and coalesces the requests for each repository.
+    private final Object executorLock = new Object();
+    private IndexingCoordinator indexingCoordinator;
+    // Works out the file diffs of the commits indexed without their changed files, behind the indexing, for the
+    // repositories in fileDiffsWarmed. Both guarded by the executor lock.
+    private ExecutorService fileDiffExecutor;
+    private final Set<Long> fileDiffsWarmed = new HashSet<Long>();
+    private int indexingThreads = DEFAULT_INDEXING_THREADS;
+
+    // The ids of the issues of the versions viewed recently, by version id.
+    private final Map<Long, VersionIssues> versionIssuesCache = LRUMap.newLRUMap(VERSION_ISSUES_CACHE_SIZE);
+
+    // How old the index may get before a view of the tabs asks for a refresh.
+    private volatile long stalenessSla = DEFAULT_STALENESS_SLA;
+
+    // Which files of a merge are recorded as changed. Commits indexed already keep what they were indexed with.
+    private volatile FileDiff.MergePolicy mergePolicy = DEFAULT_MERGE_POLICY;
+
+    // Recreated on every indexing cycle, so that new projects and a change of the project key pattern are picked up.
+    private volatile IssueKeyScanner keyScanner;
+    private volatile boolean matchAllKeys;
+
     public RevisionIndexer(
             MultipleGitRepositoryManager multipleGitRepositoryManager,
             VersionManager versionManager,
             IssueManager issueManager,
             PermissionManager permissionManager,
+            PermissionVerdictCache permissionCache,
+            ProjectManager projectManager,
             ServiceManager serviceManager,
             IndexPathManager indexPathManager) {
 
-        this(multipleGitRepositoryManager, versionManager, issueManager, permissionManager,
-                serviceManager, new DefaultLuceneIndexAccessor(), indexPathManager);
+        this(multipleGitRepositoryManager, versionManager, issueManager, permissionManager, permissionCache,
+                projectManager, serviceManager, new DefaultLuceneIndexAccessor(), indexPathManager);
     }
 
     RevisionIndexer(
@@ -86,6 +209,8 @@ public class RevisionIndexer {
             VersionManager versionManager,
             IssueManager issueManager,
             PermissionManager permissionManager,
+            PermissionVerdictCache permissionCache,
+            ProjectManager projectManager,
             ServiceManager serviceManager,
             LuceneIndexAccessor accessor,
             IndexPathManager indexPathManager) {
@@ -93,6 +218,8 @@ public class RevisionIndexer {
         this.versionManager = versionManager;
         this.issueManager = issueManager;
         this.permissionManager = permissionManager;
+        this.permissionCache = permissionCache;
+        this.projectManager = projectManager;
         this.indexAccessor = accessor;
         this.serviceManager = serviceManager;
         this.indexPathManager = indexPathManager;
@@ -101,6 +228,8 @@ public class RevisionIndexer {
     public void start() {
         try {
             createIndexIfNeeded();
+            openCommitStore();
+            openFileDiffCache();
             RevisionIndexService.install(serviceManager); // ensure the changes index service
             // is installed
         } catch (Throwable t) {
@@ -111,6 +240,98 @@ public class RevisionIndexer {
 
     }
 
+    /**
+     * Closes the shared index writer and its near-real-time reader, releasing the index write lock.
+     */
+    public void stop() {
+        synchronized (executorLock) {
+            if (indexingCoordinator != null) {
+                indexingCoordinator.shutdown();
+                indexingCoordinator = null;
+            }
+            if (fileDiffExecutor != null) {
+                fileDiffExecutor.shutdownNow();
+                fileDiffExecutor = null;
+            }
+            fileDiffsWarmed.clear();
+        }
+        multipleGitRepositoryManager.getFileDiffCache().close();
+
+        synchronized (writerLock) {
+            try {
+                if (searcherManager != null) {
+                    searcherManager.close();
+                }
+                if (indexWriter != null) {
+                    indexWriter.close();
+                }
+            } catch (IOException e) {
+                log.error("Could not close the Git revision index.", e);
+            } finally {
+                searcherManager = null;
+                indexWriter = null;
+            }
+
+            if (commitStore != null) {
+                multipleGitRepositoryManager.getCommitCache().setStore(null);
+                commitStore.close();
+                commitStore = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the store of commit summaries and hands it to the commit cache. The plugin works without it, the commits
+     * are then parsed again after a restart.
+     */
+    private void openCommitStore() {
+        String rootIndexPath = indexPathManager.getPluginIndexRootPath();
+        if (rootIndexPath == null) {
+            return;
+        }
+
+        synchronized (writerLock) {
+            if (commitStore != null) {
+                return;
+            }
+            File directory = new File(rootIndexPath, COMMITS_STORE_DIRECTORY);
+            try {
+                commitStore = CommitRecordStore.open(directory);
+                multipleGitRepositoryManager.getCommitCache().setStore(commitStore);
+            } catch (IOException e) {
+                log.warn("Could not open the commit summaries in " + directory + ", they won't survive a restart", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the cache of file diffs. Without it, the diffs are worked out from the repository on every view.
+     */
+    private void openFileDiffCache() {
+        String rootIndexPath = indexPathManager.getPluginIndexRootPath();
+        if (rootIndexPath == null) {
+            return;
+        }
+
+        File directory = new File(rootIndexPath, FILE_DIFFS_DIRECTORY);
+        try {
+            multipleGitRepositoryManager.getFileDiffCache().open(directory);
+        } catch (IOException e) {
+            log.warn("Could not open the file diffs in " + directory + ", they won't be cached", e);
+        }
+    }
+
+    /**
+     * Keeps the summary of a newly indexed commit in the store, if there is one.
+     */
+    private void storeCommitSummary(RevCommit logEntry) {
+        try {
+            multipleGitRepositoryManager.getCommitCache().store(logEntry);
+        } catch (IOException e) {
+            log.warn("Could not store the summary of commit " + logEntry.getId().name(), e);
+        }
+    }
+
     /**
      * This method will scan for the index directory, if it can resolve the path and the directory does not exist then
      * it will create the index.
@@ -125,7 +346,7 @@ public class RevisionIndexer {
         boolean indexExists = indexDirectoryExists();
         if (getIndexPath() != null && !indexExists) {
             try {
-                indexAccessor.getIndexWriter(getIndexPath(), true, ANALYZER).close();
+                getIndexWriter().commit();
                 return true;
             } catch (Exception e) {
                 log.error("Could not create the index directory for the Git plugin.", e);
@@ -147,202 +368,520 @@ public class RevisionIndexer {
         }
     }
 
+    /**
+     * Returns the writer shared by all indexing runs, opening it (and creating the index if it does not exist yet)
+     * on first use.
+     */
+    private IndexWriter getIndexWriter() throws IOException {
+        synchronized (writerLock) {
+            if (indexWriter == null) {
+                indexWriter = indexAccessor.getIndexWriter(getIndexPath(), !indexDirectoryExists(), ANALYZER);
+            }
+            return indexWriter;
+        }
+    }
+
+    /**
+     * Sets the number of repositories that are indexed at the same time.
+     */
+    public void setIndexingThreads(int indexingThreads) {
+        if (indexingThreads < 1) {
+            throw new IllegalArgumentException("setIndexingThreads(" + indexingThreads + ")");
+        }
+
+        synchronized (executorLock) {
+            this.indexingThreads = indexingThreads;
+            if (indexingCoordinator != null) {
+                indexingCoordinator.setThreads(indexingThreads);
+            }
+        }
+    }
+
+    private IndexingCoordinator getIndexingCoordinator() {
+        synchronized (executorLock) {
+            if (indexingCoordinator == null) {
+                indexingCoordinator = new IndexingCoordinator(new IndexingCoordinator.RepositoryIndexer() {
+                    public void index(GitManager gitManager, Set<String> branches) throws Exception {
+                        indexRepository(gitManager, branches);
+                    }
+                }, indexingThreads);
+            }
+            return indexingCoordinator;
+        }
+    }
+
+    /**
+     * Returns the manager of the searcher shared by the indexer and all the query paths, creating it on first use.
+     */
+    private RevisionSearcherManager getSearcherManager() throws IOException {
+        synchronized (writerLock) {
+            if (searcherManager == null) {
+                searcherManager = new RevisionSearcherManager(getIndexWriter(), indexAccessor, COMMIT_TIME_SORT_FIELD);
+            }
+            return searcherManager;
+        }
+    }
+
+    /**
+     * Acquires the shared searcher. Every searcher acquired here must be given back through
+     * {@link #releaseSearcher(IndexSearcher)}.
+     */
+    private IndexSearcher acquireSearcher() throws IOException {
+        return getSearcherManager().acquire();
+    }
+
+    private void releaseSearcher(IndexSearcher searcher) throws IOException {
+        getSearcherManager().release(searcher);
+    }
+
+    /**
+     * Returns the commits of a repository that are already indexed, loading the sets for all repositories from the
+     * index on first use.
+     */
+    private IndexedRevisions getIndexedRevisions(long repoId) throws IOException {
+        synchronized (writerLock) {
+            if (indexedRevisions == null) {
+                IndexSearcher searcher = acquireSearcher();
+                try {
+                    indexedRevisions = IndexedRevisions.loadAll(searcher.getIndexReader());
+                } finally {
+                    releaseSearcher(searcher);
+                }
+            }
+
+            IndexedRevisions indexed = indexedRevisions.get(repoId);
+            if (indexed == null) {
+                indexed = new IndexedRevisions();
+                indexedRevisions.put(repoId, indexed);
+            }
+            return indexed;
+        }
+    }
+
+    /**
+     * Commits everything added through the shared writer and publishes a new searcher if anything changed.
+     */
+    private void commitIndex() throws IOException {
+        getIndexWriter().commit();
+        getSearcherManager().maybeReopen();
+    }
+
     public String getIndexPath() {
         String indexPath = null;
         String rootIndexPath = indexPathManager.getPluginIndexRootPath();
         if (rootIndexPath != null) {
             indexPath = rootIndexPath + System.getProperty("file.separator") + REVISIONS_INDEX_DIRECTORY;
         } else {
-            log.warn("At the moment the root index path of jira is not set, so we can not form an index path for the git plugin.");
+            log.warn("At the moment the root index path of jira is not set, so we can not form an index path for the "
+                    + "git plugin.");
         }
 
         return indexPath;
     }
 
     /**
-     * This method updates the index, creating it if it does not already exist.
+     * This method updates the index, creating it if it does not already exist. Waits for the update, but not past
+     * the service interval: a repository that is still busy then carries on in the background.
      *
      * @throws IndexException
      *             if there is some problem in the indexing subsystem meaning indexes cannot be updated.
      */
     public void updateIndex() throws IndexException, IOException {
-        updateIndex(new BranchFilter() {
-            public Collection<String> filter(Collection<String> branches) {
-                return branches;
+        waitForIndexing(requestIndexUpdate(IndexingCoordinator.Priority.PERIODIC));
+    }
+
+    public void updateIndex(String branchName) throws IndexException, IOException {
+        waitForIndexing(requestIndexUpdate(branchName, IndexingCoordinator.Priority.PUSH));
+    }
+
+    /**
+     * Asks for all the branches of all the repositories to be indexed.
+     *
+     * @return a future that completes when all the repositories are indexed.
+     */
+    public Future<?> requestIndexUpdate(IndexingCoordinator.Priority priority) {
+        // pick up new projects and a change of the project key pattern
+        keyScanner = null;
+        return getIndexingCoordinator().submitAll(multipleGitRepositoryManager.getRepositoryList(), null, priority);
+    }
+
+    /**
+     * Asks for a branch of all the repositories to be indexed.
+     *
+     * @return a future that completes when all the repositories are indexed.
+     */
+    public Future<?> requestIndexUpdate(String branchName, IndexingCoordinator.Priority priority) {
+        return getIndexingCoordinator().submitAll(multipleGitRepositoryManager.getRepositoryList(),
+                Collections.singleton(branchName), priority);
+    }
+
+    /**
+     * Asks for all the branches of a repository to be indexed.
+     *
+     * @return a future that completes when the repository is indexed.
+     */
+    public Future<?> requestIndexUpdate(GitManager gitManager, IndexingCoordinator.Priority priority) {
+        return getIndexingCoordinator().submit(gitManager, null, priority);
+    }
+
+    private void waitForIndexing(Future<?> indexing) {
+        try {
+            indexing.get(RevisionIndexService.REVISION_INDEX_SERVICE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.info("Indexing of some repositories is taking longer than the service interval, "
+                    + "it will carry on in the background.");
+        } catch (ExecutionException e) {
+            // already logged by the coordinator
+        } catch (CancellationException e) {
+            // shutting down
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getStalenessSla() {
+        return stalenessSla;
+    }
+
+    /**
+     * @param stalenessSla how old, in milliseconds, the index may get before the tabs ask for a refresh.
+     */
+    public void setStalenessSla(long stalenessSla) {
+        this.stalenessSla = stalenessSla;
+    }
+
+    public FileDiff.MergePolicy getMergePolicy() {
+        return mergePolicy;
+    }
+
+    /**
+     * @param mergePolicy which files of a merge commit are recorded as changed, from the next commits indexed on.
+     */
+    public void setMergePolicy(FileDiff.MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+
+    /**
+     * Returns how fresh the index is: the time the least recently indexed of the active repositories was fetched
+     * before it was last indexed.
+     *
+     * @return the time, or null if an active repository was never indexed or there is no active repository.
+     */
+    public Date getLastIndexedTime() {
+        long oldest = Long.MAX_VALUE;
+        for (GitManager gitManager : multipleGitRepositoryManager.getRepositoryList()) {
+            if (!gitManager.isActive()) {
+                continue;
+            }
+
+            PropertySet properties = gitManager.getProperties();
+            if (!properties.exists(MultipleGitRepositoryManager.GIT_LAST_INDEXED)) {
+                return null;
             }
-        });
+            oldest = Math.min(oldest, properties.getLong(MultipleGitRepositoryManager.GIT_LAST_INDEXED));
+        }
+        return oldest != Long.MAX_VALUE ? new Date(oldest) : null;
     }
 
-    public void updateIndex(final String branchName) throws IndexException, IOException {
-        updateIndex(new BranchFilter() {
-            public Collection<String> filter(Collection<String> branches) {
-                if(branches.contains(branchName)) {
-                    return Collections.singletonList(branchName);
-                } else {
-                    return Collections.emptyList();
+    /**
+     * @return true if an active repository was never indexed or was last indexed longer ago than the staleness SLA.
+     */
+    public boolean isStale() {
+        Date lastIndexed = getLastIndexedTime();
+        if (lastIndexed == null) {
+            for (GitManager gitManager : multipleGitRepositoryManager.getRepositoryList()) {
+                if (gitManager.isActive()) {
+                    return true;
                 }
             }
-        });
+            return false;
+        }
+        return System.currentTimeMillis() - lastIndexed.getTime() > stalenessSla;
     }
 
-    private interface BranchFilter {
-        Collection<String> filter(Collection<String> branches);
+    /**
+     * Used by the read path, which serves from the index as it is: if the index is stale, starts updating it in the
+     * background, unless an update requested this way is already queued or running. Never waits for the update.
+     */
+    public void requestRefreshIfStale() {
+        if (isStale()) {
+            // joins the jobs already waiting or running
+            requestIndexUpdate(IndexingCoordinator.Priority.PERIODIC);
+        }
     }
 
-    private void updateIndex(BranchFilter branchFilter) throws IndexException, IOException {
-        if (createIndexIfNeeded()) {
-            Collection<GitManager> repositories = multipleGitRepositoryManager.getRepositoryList();
+    /**
+     * Indexes the given branches of a repository, or all of them if <code>branches</code> is null. Only ever called
+     * by the indexing coordinator, which never runs two of these for the same repository at once.
+     */
+    private void indexRepository(GitManager gitManager, Set<String> branches) throws IOException {
+        if (!createIndexIfNeeded()) {
+            return;
+        }
+        migrateIndexIfNeeded();
+
+        // if the repository isn't active, try activating it. if it still not accessible, skip it
+        if (!gitManager.isActive()) {
+            gitManager.activate();
 
-            // temp log comment
-            if (log.isDebugEnabled()) {
-                log.debug("repos size = " + repositories.size());
+            if (!gitManager.isActive()) {
+                return;
             }
+        }
 
-            for (GitManager gitManager : repositories) {
-                try {
-                    // if the repository isn't active, try activating it. if it still not accessible, skip it
-                    if (!gitManager.isActive()) {
-                        gitManager.activate();
+        // the index is as fresh as the fetch, not as the end of the walk
+        long fetched = System.currentTimeMillis();
+        gitManager.fetch();
 
-                        if (!gitManager.isActive()) {
-                            continue;
-                        }
-                    }
+        updateRepositoryIndex(gitManager, branches);
+        if (branches == null) {
+            gitManager.getProperties().setLong(MultipleGitRepositoryManager.GIT_LAST_INDEXED, fetched);
+        }
+        warmFileDiffs(gitManager);
+    }
 
-                    gitManager.fetch();
+    /**
+     * Works out in the background the file diffs of the newest commits of a repository that were indexed without
+     * their changed files, such as the documents migrated from before version 5, so that the tabs find them in the
+     * {@link FileDiffCache} rather than reading the repository. Done once per repository after the start.
+     */
+    private void warmFileDiffs(final GitManager gitManager) {
+        final FileDiffCache cache = multipleGitRepositoryManager.getFileDiffCache();
+        if (!cache.isOpen()) {
+            return;
+        }
+        synchronized (executorLock) {
+            if (!fileDiffsWarmed.add(gitManager.getId())) {
+                return;
+            }
+        }
 
-                    long repoId = gitManager.getId();
+        final List<String> revisions;
+        try {
+            revisions = getRevisionsWithoutChangedPaths(gitManager.getId(), cache);
+        } catch (IOException e) {
+            log.warn("Could not look up the commits of repository " + gitManager.getId()
+                    + " indexed without their changed files", e);
+            return;
+        }
+        if (revisions.isEmpty()) {
+            return;
+        }
 
-                    Map<String, String> allBranches = gitManager.getBranches();
-                    Collection<String> branchesNames = branchFilter.filter(allBranches.keySet());
+        ExecutorService executor;
+        synchronized (executorLock) {
+            if (fileDiffExecutor == null) {
+                fileDiffExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "git-file-diffs");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            executor = fileDiffExecutor;
+        }
 
-                    for (String branchName : branchesNames) {
-                        updateBranchIndex(repoId, branchName, allBranches, gitManager);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (String revision : revisions) {
+                        if (Thread.currentThread().isInterrupted() || !gitManager.isActive()) {
+                            return;
+                        }
+                        if (!cache.contains(ObjectId.fromString(revision))) {
+                            // as a tab would, so that the commits that fit on a page are cached
+                            gitManager.getFileDiffs(revision, 0, FileDiffPage.DEFAULT_SIZE);
+                        }
                     }
-                } catch (IOException e) {
-                    log.warn("Unable to index repository '" + gitManager.getDisplayName() + "'", e);
-                } catch (RuntimeException e) {
-                    log.warn("Unable to index repository '" + gitManager.getDisplayName() + "'", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    /**
+     * @return the newest commits of a repository, up to {@link #FILE_DIFF_WARM_UP_LIMIT} and newest first, that were
+     *         indexed without their changed files and aren't cached either.
+     */
+    private List<String> getRevisionsWithoutChangedPaths(long repoId, FileDiffCache cache) throws IOException {
+        List<String> revisions = new ArrayList<String>();
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            CommitTimeCollector hits = new CommitTimeCollector(searcher.getIndexReader(), Integer.MAX_VALUE, null,
+                    FILE_DIFF_WARM_UP_LIMIT);
+            searcher.search(new TermQuery(new Term(FIELD_REPOSITORY, Long.toString(repoId))), hits);
+            for (CommitTimeCollector.Hit hit : hits.takeHits()) {
+                Document doc = searcher.doc(hit.doc, CHANGE_COUNT_SELECTOR);
+                String revision = doc.get(FIELD_REVISIONNUMBER);
+                if (doc.get(FIELD_CHANGE_COUNT) == null && !cache.contains(ObjectId.fromString(revision))) {
+                    revisions.add(revision);
                 }
             }
+        } finally {
+            releaseSearcher(searcher);
         }
+        return revisions;
     }
 
-    private void updateBranchIndex(long repoId, String branchName, Map<String, String> allBranches, GitManager gitManager)
-            throws IOException, IndexException {
+    /**
+     * Indexes the commits on the branches of a repository that moved since they were last indexed, in a single walk
+     * that starts at all the new branch tips and stops at all the previously indexed ones, so that history shared by
+     * several branches is only walked once.
+     */
+    private void updateRepositoryIndex(final GitManager gitManager, Set<String> branches) throws IOException {
+        final long repoId = gitManager.getId();
+        final PropertySet properties = gitManager.getProperties();
 
-        String branchId = allBranches.get(branchName);
-        String latestIndexedRevision =
-                gitManager.getProperties().getString(MultipleGitRepositoryManager.GIT_BRANCH_INDEXED_REVISION + branchName);
+        Map<String, String> allBranches = gitManager.getBranches();
+        Collection<String> branchesNames = branches != null ? branches : allBranches.keySet();
+        String headId = gitManager.getRefId(Constants.HEAD);
+        String headBranch = null;
 
-        if (log.isDebugEnabled()) {
-            log.info("Branch: " + branchName);
-        }
+        Map<String, String> newTips = new HashMap<String, String>();
+        Set<String> indexedTips = new HashSet<String>();
+        boolean newBranches = false;
 
-        if (branchId.equals(latestIndexedRevision)) {
-            if (log.isDebugEnabled()) {
-                log.info("Branch index is up-to-date");
+        for (Map.Entry<String, String> branch : allBranches.entrySet()) {
+            String latestIndexedRevision = properties.getString(
+                    MultipleGitRepositoryManager.GIT_BRANCH_INDEXED_REVISION + branch.getKey());
+            if (latestIndexedRevision != null) {
+                indexedTips.add(latestIndexedRevision);
             }
 
-            return;
-        }
+            if (branch.getValue().equals(headId)) {
+                headBranch = branch.getKey();
+            }
 
-        String headId = gitManager.getRefId(Constants.HEAD);
-        if((latestIndexedRevision == null) && !branchId.equals(headId)) {
-            RevCommit base = gitManager.getMergeBase(headId, branchId);
-            latestIndexedRevision = (base != null ? base.getId().getName() : null);
+            if (branchesNames.contains(branch.getKey()) && !branch.getValue().equals(latestIndexedRevision)) {
+                newTips.put(branch.getKey(), branch.getValue());
+                newBranches |= latestIndexedRevision == null;
+            }
+        }
 
+        if (newTips.isEmpty()) {
             if (log.isDebugEnabled()) {
-                log.info("Branch was never indexed. Assuming start point: " + latestIndexedRevision);
+                log.debug("Index of repository " + repoId + " is up-to-date");
             }
-        } else {
-         if (log.isDebugEnabled()) {
-            log.info("Latest indexed revision is: " + latestIndexedRevision);
+            return;
+        }
+
+        // Pick up after the last checkpoint of an indexing run that didn't complete.
+        String checkpoint = properties.getText(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT);
+        if (checkpoint != null) {
+            indexedTips.addAll(Arrays.asList(StringUtils.split(checkpoint)));
         }
+
+        // Branches seen for the first time used to start at their merge base with HEAD. If HEAD itself isn't being
+        // indexed, its history is left out the same way; otherwise the walk attributes it to the head branch only.
+        if (newBranches && headId != null && (headBranch == null || !newTips.containsKey(headBranch))) {
+            indexedTips.add(headId);
         }
 
         if (log.isDebugEnabled()) {
-            log.info("Updating to: " + branchId);
+            log.debug("Updating branches " + newTips.keySet() + " of repository " + repoId);
         }
 
-        Collection<RevCommit> logEntries = gitManager.getLogEntries(latestIndexedRevision, branchId);
+        final IndexWriter writer = getIndexWriter();
+        final IndexedRevisions indexed = getIndexedRevisions(repoId);
 
-        IndexWriter writer = indexAccessor.getIndexWriter(getIndexPath(), false, ANALYZER);
+        final IndexingPipeline pipeline = new IndexingPipeline(Thread.currentThread().getName(), getExtractionThreads(),
+                new IndexingPipeline.Extractor() {
+                    public Document extract(RevCommit logEntry) {
+                        // a single scan decides whether the commit is indexed at all
+                        List<String> keys = getIssueKeysFromString(logEntry);
+                        if (keys.isEmpty()) {
+                            return null;
+                        }
+                        Document doc = getCommitDocument(repoId, logEntry, keys);
+                        addChangedPaths(doc, gitManager, logEntry);
+                        return doc;
+                    }
+                },
+                new IndexingPipeline.Writer() {
+                    public void write(RevCommit logEntry, Collection<String> branches, Document doc)
+                            throws IOException {
+                        indexDocument(writer, indexed, repoId, logEntry, branches, doc);
+                    }
+                });
 
+        pipeline.start();
         try {
-            IndexReader reader = indexAccessor.getIndexReader(getIndexPath());
+            gitManager.walkLogEntries(newTips, indexedTips, headBranch, new LogEntryHandler() {
+                public void handle(RevCommit logEntry, Collection<String> branches) throws IOException {
+                    pipeline.handle(logEntry, branches);
+                }
 
-            try {
-                for (RevCommit logEntry : logEntries) {
-                    if (TextUtils.stringSet(logEntry.getFullMessage()) && isKeyInString(logEntry)) {
-                        if (!hasDocument(repoId, branchName, logEntry.getId(), reader)) {
-
-                            Document doc = getDocument(repoId, branchName, logEntry);
-//                            if (log.isDebugEnabled()) {
-//                                log.debug("Indexing repository=" + repoId + "; branch=" + branchName + "; revision="
-//                                        + logEntry.getId());
-//                            }
-                            writer.addDocument(doc);
-                        }
-                    }
+                public void batchCompleted(Collection<String> heads) throws IOException {
+                    // Commit what the batch added before recording it, so a restart never skips unwritten commits.
+                    pipeline.flush();
+                    commitIndex();
+                    properties.setText(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT,
+                            StringUtils.join(heads, ' '));
                 }
-            } finally {
-                reader.close();
-            }
+            });
+            pipeline.finish();
         } finally {
-            writer.close();
+            pipeline.close();
         }
 
-        gitManager.getProperties().setString(MultipleGitRepositoryManager.GIT_BRANCH_INDEXED_REVISION + branchName, branchId);
-    }
+        // Only record the new branch heads once the documents for them are safely committed.
+        commitIndex();
 
-    protected boolean isKeyInString(RevCommit logEntry) {
-        final String logMessageUpperCase = StringUtils.upperCase(logEntry.getFullMessage());
-        return JiraKeyUtils.isKeyInString(logMessageUpperCase);
+        for (Map.Entry<String, String> branch : newTips.entrySet()) {
+            properties.setString(MultipleGitRepositoryManager.GIT_BRANCH_INDEXED_REVISION + branch.getKey(),
+                    branch.getValue());
+        }
+        if (properties.exists(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT)) {
+            properties.remove(MultipleGitRepositoryManager.GIT_INDEXING_CHECKPOINT);
+        }
     }
 
     /**
-     * Work out whether a given change, for the specified repository, is already in the index or not.
+     * Returns the number of threads extracting documents for each repository. Several repositories are indexed at
+     * once, so this is shared out between them.
      */
-    private boolean hasDocument(long repoId, String branchName, ObjectId revisionNumber, IndexReader reader) throws IOException {
-        IndexSearcher searcher = new IndexSearcher(reader);
-        try {
-            TermQuery repoQuery = new TermQuery(new Term(FIELD_REPOSITORY, Long.toString(repoId)));
-            TermQuery branchQuery = new TermQuery(new Term(FIELD_BRANCH, branchName));
-            TermQuery revQuery = new TermQuery(new Term(FIELD_REVISIONNUMBER, revisionNumber.name()));
-            BooleanQuery repoAndRevQuery = new BooleanQuery();
-
-            repoAndRevQuery.add(repoQuery, BooleanClause.Occur.MUST);
-            repoAndRevQuery.add(branchQuery, BooleanClause.Occur.MUST);
-            repoAndRevQuery.add(revQuery, BooleanClause.Occur.MUST);
-
-            TopDocs hits = searcher.search(repoAndRevQuery, MAX_REVISIONS);
+    private int getExtractionThreads() {
+        int threads;
+        synchronized (executorLock) {
+            threads = indexingThreads;
+        }
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+    }
 
-            if (hits.totalHits == 1) {
-                return true;
-            } else if (hits.totalHits == 0) {
-                return false;
+    /**
+     * Adds a commit's document to the shared writer, or replaces its existing document if the commit is indexed
+     * already, so that it carries the branches of both.
+     */
+    private void indexDocument(IndexWriter writer, IndexedRevisions indexed, long repoId, RevCommit logEntry,
+            Collection<String> branches, Document doc) throws IOException {
+        boolean alreadyIndexed = indexed.contains(logEntry);
+        if (indexed.add(logEntry, branches)) {
+            String commitKey = getCommitKey(repoId, logEntry.getId().name());
+            addCommitFields(doc, commitKey, indexed.getBranches(logEntry));
+//            if (log.isDebugEnabled()) {
+//                log.debug("Indexing repository=" + repoId + "; branches=" + branches + "; revision="
+//                        + logEntry.getId());
+//            }
+            if (alreadyIndexed) {
+                // the commit is indexed on other branches already, add these ones to its document
+                writer.updateDocument(new Term(FIELD_COMMIT, commitKey), doc);
             } else {
-                log.error("Found MORE than one document for repository=" + repoId +
-                            "; branch=" + branchName + "; revision=" + revisionNumber);
-                return true;
+                writer.addDocument(doc);
+                storeCommitSummary(logEntry);
             }
-        } finally {
-            searcher.close();
         }
     }
 
     /**
-     * Creates a new Lucene document for the supplied log entry. This method is used when indexing revisions, not during
-     * retrieval.
+     * Creates the part of a log entry's document that only depends on the commit itself, i.e. everything but the
+     * branches it is on and its changed files.
      *
-     * @param repoId
-     *            ID of the repository that contains the revision
-     * @param logEntry
-     *            The Git log entry that is about to be indexed
-     * @return A Lucene document object that is ready to be added to an index
+     * @param keys the issue keys the commit message mentions.
      */
-    protected Document getDocument(long repoId, String branchName, RevCommit logEntry) {
+    private Document getCommitDocument(long repoId, RevCommit logEntry, List<String> keys) {
         Document doc = new Document();
 
         // revision information
@@ -359,17 +898,14 @@ public class RevisionIndexer {
 
         doc.add(new Field(FIELD_REPOSITORY, Long.toString(repoId), Field.Store.YES, Field.Index.NOT_ANALYZED));
         doc.add(new Field(FIELD_REVISIONNUMBER, logEntry.getId().name(), Field.Store.YES, Field.Index.NOT_ANALYZED));
-        doc.add(new Field(FIELD_BRANCH, branchName, Field.Store.YES, Field.Index.NOT_ANALYZED));
 
         if (logEntry.getCommitTime() > 0) {
-            doc.add(new Field(FIELD_DATE,
-                    DateTools.timeToString(logEntry.getCommitTime(), DateTools.Resolution.SECOND), Field.Store.YES,
-                    Field.Index.NOT_ANALYZED));
+            doc.add(new Field(FIELD_DATE, DateTools.timeToString(logEntry.getCommitTime() * 1000L,
+                    DateTools.Resolution.SECOND), Field.Store.YES, Field.Index.NOT_ANALYZED));
         }
+        doc.add(new NumericField(FIELD_COMMIT_TIME).setIntValue(Math.max(logEntry.getCommitTime(), 0)));
 
         // relevant issue keys
-        List<String> keys = getIssueKeysFromString(logEntry);
-
         // Relevant project keys. Used to avoid adding duplicate projects.
         Map<String, String> projects = new HashMap<String, String>();
 
@@ -385,14 +921,275 @@ public class RevisionIndexer {
         return doc;
     }
 
+    /**
+     * Adds the files a commit changed to its document, with the current merge policy. A commit whose files can't be
+     * worked out is indexed without them, and the tabs then ask the repository for them.
+     */
+    private void addChangedPaths(Document doc, GitManager gitManager, AnyObjectId commitId) {
+        FileDiff[] diffs;
+        try {
+            diffs = gitManager.computeFileDiffs(commitId, mergePolicy);
+        } catch (IOException e) {
+            log.warn("Could not work out the files changed by commit " + commitId.name(), e);
+            return;
+        }
+
+        if (diffs.length > 0 && diffs[0].getParentRevision() != null) {
+            doc.add(new Field(FIELD_PARENT, diffs[0].getParentRevision(), Field.Store.YES, Field.Index.NO));
+        }
+        for (FileDiff diff : diffs) {
+            doc.add(new Field(FIELD_PATH, diff.getPath(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field(FIELD_CHANGE, diff.toStored(), Field.Store.YES, Field.Index.NO));
+        }
+        doc.add(new Field(FIELD_CHANGE_COUNT, Integer.toString(diffs.length), Field.Store.YES, Field.Index.NO));
+    }
+
+    /**
+     * @return the page of the files a commit changed from the stored fields of its document, which were loaded through
+     *         a {@link ChangedPathsSelector} starting at <code>offset</code>, or null if they weren't recorded.
+     */
+    private static FileDiffPage getChangedPaths(Document doc, int offset) {
+        String count = doc.get(FIELD_CHANGE_COUNT);
+        if (count == null) {
+            return null;
+        }
+
+        String revision = doc.get(FIELD_REVISIONNUMBER);
+        String parent = doc.get(FIELD_PARENT);
+        String[] paths = doc.getValues(FIELD_PATH);
+        String[] changes = doc.getValues(FIELD_CHANGE);
+        if (paths.length != changes.length) {
+            return null;
+        }
+
+        FileDiff[] diffs = new FileDiff[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            diffs[i] = FileDiff.fromStored(revision, parent, paths[i], changes[i]);
+            if (diffs[i] == null) {
+                log.warn("Invalid change '" + changes[i] + "' stored for revision " + revision);
+                return null;
+            }
+        }
+
+        try {
+            return new FileDiffPage(diffs, offset, Integer.parseInt(count), true);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid change count '" + count + "' stored for revision " + revision);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the fields of a commit's document but the changed files off a page, which are skipped rather than read:
+     * a commit can change tens of thousands of files, and its document holds them all.
+     */
+    private static final class ChangedPathsSelector implements FieldSelector {
+        private final int offset;
+        private final long end;
+        // the paths and changes seen so far, in the order they were added to the document
+        private int paths;
+        private int changes;
+
+        ChangedPathsSelector(int offset, int size) {
+            this.offset = offset;
+            this.end = (long) offset + size;
+        }
+
+        public FieldSelectorResult accept(String fieldName) {
+            if (FIELD_PATH.equals(fieldName)) {
+                return select(paths++);
+            } else if (FIELD_CHANGE.equals(fieldName)) {
+                return select(changes++);
+            }
+            return FieldSelectorResult.LOAD;
+        }
+
+        private FieldSelectorResult select(int position) {
+            return position >= offset && position < end ? FieldSelectorResult.LOAD : FieldSelectorResult.NO_LOAD;
+        }
+    }
+
+    private static void addCommitFields(Document doc, String commitKey, Collection<String> branches) {
+        doc.add(new Field(FIELD_COMMIT, commitKey, Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(FIELD_SCHEMA, SCHEMA_VERSION, Field.Store.NO, Field.Index.NOT_ANALYZED));
+
+        for (String branchName : branches) {
+            doc.add(new Field(FIELD_BRANCH, branchName, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        }
+    }
+
+    static String getCommitKey(Object repoId, String revision) {
+        return repoId + ":" + revision;
+    }
+
+    /**
+     * Rewrites the documents of the old layout, one per commit and branch, into a single document per commit that
+     * carries all of its branches. The new documents are rebuilt from the stored fields of the old ones, and the index
+     * stays searchable throughout: the old documents are deleted in the same commit that adds their replacements.
+     * The repositories aren't read: documents from before version 5 are migrated without their changed files, which
+     * the tabs then ask the repository for, through the {@link com.xiplink.jira.git.FileDiffCache}, when they are
+     * shown.
+     */
+    void migrateIndexIfNeeded() throws IOException {
+        if (indexMigrated) {
+            return;
+        }
+
+        synchronized (migrationLock) {
+            if (indexMigrated) {
+                return;
+            }
+
+            IndexWriter writer = getIndexWriter();
+            int migrated = 0;
+            IndexSearcher searcher = acquireSearcher();
+            try {
+                IndexReader reader = searcher.getIndexReader();
+                OpenBitSet current = getSchemaDocs(reader, SCHEMA_VERSION);
+                OpenBitSet correctDates = new OpenBitSet(reader.maxDoc());
+                for (int version = FIRST_CORRECT_DATE_SCHEMA; version <= Integer.parseInt(SCHEMA_VERSION); version++) {
+                    correctDates.or(getSchemaDocs(reader, Integer.toString(version)));
+                }
+
+                // termDocs skips deleted documents, so every live document is current if the counts match
+                if (current.cardinality() < reader.numDocs()) {
+                    log.info("Migrating the Git revision index to layout version " + SCHEMA_VERSION);
+
+                    Set<String> migratedCommits = new HashSet<String>();
+                    for (int i = 0; i < reader.maxDoc(); i++) {
+                        if (reader.isDeleted(i) || current.fastGet(i)) {
+                            continue;
+                        }
+
+                        Document legacy = reader.document(i);
+                        String repository = legacy.get(FIELD_REPOSITORY);
+                        String revision = legacy.get(FIELD_REVISIONNUMBER);
+                        if (repository == null || revision == null || !ObjectId.isId(revision)) {
+                            continue;
+                        }
+
+                        String commitKey = getCommitKey(repository, revision);
+                        if (migratedCommits.add(commitKey)) {
+                            // the indexed revisions were loaded from all the documents of the commit, old and new
+                            List<String> branches = getIndexedRevisions(Long.parseLong(repository))
+                                    .getBranches(ObjectId.fromString(revision));
+                            Document doc = getMigratedDocument(legacy, commitKey, branches, !correctDates.fastGet(i));
+                            writer.updateDocument(new Term(FIELD_COMMIT, commitKey), doc);
+                            migrated++;
+                        }
+                    }
+                }
+            } finally {
+                releaseSearcher(searcher);
+            }
+
+            if (migrated > 0) {
+                BooleanQuery legacyDocuments = new BooleanQuery();
+                legacyDocuments.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+                legacyDocuments.add(new TermQuery(new Term(FIELD_SCHEMA, SCHEMA_VERSION)),
+                        BooleanClause.Occur.MUST_NOT);
+                writer.deleteDocuments(legacyDocuments);
+                commitIndex();
+
+                log.info("Migrated " + migrated + " commits in the Git revision index");
+            }
+
+            indexMigrated = true;
+        }
+    }
+
+    private static OpenBitSet getSchemaDocs(IndexReader reader, String schemaVersion) throws IOException {
+        OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+        TermDocs termDocs = reader.termDocs(new Term(FIELD_SCHEMA, schemaVersion));
+        try {
+            while (termDocs.next()) {
+                docs.fastSet(termDocs.doc());
+            }
+        } finally {
+            termDocs.close();
+        }
+        return docs;
+    }
+
+    private Document getMigratedDocument(Document legacy, String commitKey, Collection<String> branches,
+            boolean fixDate) {
+        Document doc = new Document();
+
+        int commitTime = 0;
+        for (Fieldable field : legacy.getFields()) {
+            if (FIELD_DATE.equals(field.name())) {
+                String date = fixDate ? getMigratedDate(field.stringValue()) : field.stringValue();
+                doc.add(new Field(FIELD_DATE, date, Field.Store.YES, Field.Index.NOT_ANALYZED));
+                commitTime = getCommitTimeSeconds(date);
+            } else if (!FIELD_BRANCH.equals(field.name())) {
+                doc.add(new Field(field.name(), field.stringValue(), Field.Store.YES,
+                        field.isIndexed() ? Field.Index.NOT_ANALYZED : Field.Index.NO));
+            }
+        }
+        doc.add(new NumericField(FIELD_COMMIT_TIME).setIntValue(commitTime));
+        addCommitFields(doc, commitKey, branches);
+
+        return doc;
+    }
+
+    /**
+     * Layouts before version 3 passed the commit time in seconds where DateTools expects milliseconds.
+     */
+    private static String getMigratedDate(String legacyDate) {
+        try {
+            return DateTools.timeToString(DateTools.stringToTime(legacyDate) * 1000L, DateTools.Resolution.SECOND);
+        } catch (ParseException e) {
+            return legacyDate;
+        }
+    }
+
+    private static int getCommitTimeSeconds(String date) {
+        try {
+            return (int) (DateTools.stringToTime(date) / 1000L);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
     protected String getProjectKeyFromIssueKey(String issueKey) {
         final String issueKeyUpperCase = StringUtils.upperCase(issueKey);
         return JiraKeyUtils.getFastProjectKeyFromIssueKey(issueKeyUpperCase);
     }
 
     protected List<String> getIssueKeysFromString(RevCommit logEntry) {
-        final String logMessageUpperCase = StringUtils.upperCase(logEntry.getFullMessage());
-        return JiraKeyUtils.getIssueKeysFromString(logMessageUpperCase);
+        return getKeyScanner().getIssueKeys(logEntry);
+    }
+
+    /**
+     * Sets whether commits are indexed for anything that looks like an issue key, or only for the keys of existing
+     * projects (the default).
+     */
+    public void setMatchAllKeys(boolean matchAllKeys) {
+        if (this.matchAllKeys != matchAllKeys) {
+            this.matchAllKeys = matchAllKeys;
+            keyScanner = null;
+        }
+    }
+
+    private IssueKeyScanner createKeyScanner() {
+        if (matchAllKeys) {
+            return new IssueKeyScanner();
+        }
+
+        List<String> projectKeys = new ArrayList<String>();
+        for (Project project : projectManager.getProjectObjects()) {
+            projectKeys.add(project.getKey());
+        }
+        return new IssueKeyScanner(projectKeys);
+    }
+
+    private IssueKeyScanner getKeyScanner() {
+        IssueKeyScanner scanner = keyScanner;
+        if (scanner == null) {
+            scanner = createKeyScanner();
+            keyScanner = scanner;
+        }
+        return scanner;
     }
 
     /**
@@ -401,12 +1198,28 @@ public class RevisionIndexer {
      *
      * @param issue
      *            the issue to get entries for.
-     * @return A map with key of repository id (long) and entry of a collections of Logs. Null if the repository has not
+     * @return The newest {@link #MAX_REVISIONS} commits of the issue, newest first. Null if the repository has not
      *         yet been initialized.
      */
     public List<RevisionInfo> getLogEntriesByRepository(Issue issue)
             throws IndexException, IOException {
-        
+        RevisionPage page = getLogEntriesByRepository(issue, null, MAX_REVISIONS);
+        return page != null ? page.getEntries() : null;
+    }
+
+    /**
+     * Returns a page of the commits of an issue, newest first.
+     *
+     * @param issue
+     *            the issue to get entries for.
+     * @param after
+     *            the cursor of the previous page, or null for the first page.
+     * @param pageSize
+     *            How many entries to fetch.
+     * @return The page. Null if the repository has not yet been initialized.
+     */
+    public RevisionPage getLogEntriesByRepository(Issue issue, RevisionCursor after, int pageSize)
+            throws IndexException, IOException {
         if (log.isDebugEnabled()) {
             log.debug("Retrieving revisions for issue: " + issue.getKey());
         }
@@ -416,58 +1229,12 @@ public class RevisionIndexer {
             return null;
         }
 
-        String key = issue.getKey();
-
-        final IndexReader reader = indexAccessor.getIndexReader(getIndexPath());
-        IndexSearcher searcher = new IndexSearcher(reader);
-
+        IndexSearcher searcher = acquireSearcher();
         try {
-            BooleanQuery query = new BooleanQuery();
-            query.add(new TermQuery(new Term(FIELD_ISSUEKEY, key)), BooleanClause.Occur.MUST);
-
-            TopDocs hits = searcher.search(query, MAX_REVISIONS);
-            List<RevisionInfo> logEntries = new ArrayList<RevisionInfo>(hits.totalHits);
-
-            for (int i = 0; i < Math.min(hits.totalHits, MAX_REVISIONS); i++) {
-                Document doc = searcher.doc(hits.scoreDocs[i].doc);
-                long repositoryId = Long.parseLong(doc.get(FIELD_REPOSITORY));
-                // repositoryId is UUID + location
-                GitManager manager = multipleGitRepositoryManager.getRepository(repositoryId);
-                String revision = doc.get(FIELD_REVISIONNUMBER);
-                RevCommit logEntry = manager.getLogEntry(revision);
-                if (logEntry == null) {
-                    log.error("Could not find log message for revision: " + doc.get(FIELD_REVISIONNUMBER));
-                } else {
-                    RevisionInfo revInfo = new RevisionInfo();
-                    revInfo.setRepositoryId(repositoryId);
-                    revInfo.setBranch(doc.get(FIELD_BRANCH));
-                    revInfo.setCommit(logEntry);
-
-                    logEntries.add(revInfo);
-                }
-            }
-
-            // sort by commit time - can we sort topologically? should
-            // we?
-            Collections.sort(logEntries, new Comparator<RevisionInfo>() {
-
-                public int compare(RevisionInfo o, RevisionInfo o1) {
-                    long r = o.getCommit().getCommitTime();
-                    long r1 = o1.getCommit().getCommitTime();
-                    if (r == r1) {
-                        return 0;
-                    } else if (r > r1) {
-                        return -1;
-                    } else {
-                        return 1;
-                    }
-                }
-            });
-
-            return logEntries;
+            // the tab has already checked that the user may see the commits of the issue
+            return getPage(searcher, new TermQuery(new Term(FIELD_ISSUEKEY, issue.getKey())), after, pageSize, null);
         } finally {
-            searcher.close();
-            reader.close();
+            releaseSearcher(searcher);
         }
     }
 
@@ -491,11 +1258,40 @@ public class RevisionIndexer {
      */
     public List<RevisionInfo> getLogEntriesByProject(String projectKey, User user, int numberOfEntries)
             throws IndexException, IOException {
-        if (projectKey == null || numberOfEntries < 0) {
-            throw new IllegalArgumentException("getLogEntriesByProject(" + projectKey + ", " + numberOfEntries + ")");
+        return getLogEntriesByProject(projectKey, user, numberOfEntries, null);
+    }
+
+    /**
+     * Like {@link #getLogEntriesByProject(String, User, int)}, limited to the commits made at or after
+     * <code>since</code>. The time range is a numeric range on the commit time, so only the commits inside it are
+     * looked at.
+     *
+     * @param since
+     *            the earliest commit time, or null for all commits.
+     */
+    public List<RevisionInfo> getLogEntriesByProject(String projectKey, User user, int numberOfEntries, Date since)
+            throws IndexException, IOException {
+        RevisionPage page = getLogEntriesByProject(projectKey, user, numberOfEntries, since, null);
+        return page != null ? page.getEntries() : null;
+    }
+
+    /**
+     * Returns a page of the commits of a project that the user may see, newest first. Permissions are only checked
+     * for the commits looked at, until the page is full; each issue is checked once.
+     *
+     * @param since
+     *            the earliest commit time, or null for all commits.
+     * @param after
+     *            the cursor of the previous page, or null for the first page.
+     * @return The page. Null if the repository has not yet been initialized.
+     */
+    public RevisionPage getLogEntriesByProject(String projectKey, final User user, int pageSize, Date since,
+            RevisionCursor after) throws IndexException, IOException {
+        if (projectKey == null || pageSize < 0) {
+            throw new IllegalArgumentException("getLogEntriesByProject(" + projectKey + ", " + pageSize + ")");
         }
         if (log.isDebugEnabled()) {
-            log.debug("getLogEntriesByProject(" + projectKey + ", " + numberOfEntries + ")");
+            log.debug("getLogEntriesByProject(" + projectKey + ", " + pageSize + ", " + after + ")");
         }
 
         if (!indexDirectoryExists()) {
@@ -503,73 +1299,132 @@ public class RevisionIndexer {
             return null;
         }
 
-        // Set up and perform a search for all documents having the supplied projectKey,sorted in descending date
-        // order
-        Sort sort = new Sort(new SortField(FIELD_DATE, SortField.LONG, true));
+        // Set up a search for all documents having the supplied projectKey
         Term term = new Term(FIELD_PROJECTKEY, projectKey);
-        TermQuery query = new TermQuery(term);
+        Query query = new TermQuery(term);
+        if (since != null) {
+            BooleanQuery rangeQuery = new BooleanQuery();
+            rangeQuery.add(query, BooleanClause.Occur.MUST);
+            rangeQuery.add(getCommitTimeQuery(since), BooleanClause.Occur.MUST);
+            query = rangeQuery;
+        }
 
-        List<RevisionInfo> logEntries = new ArrayList<RevisionInfo>();
-        final IndexReader reader = indexAccessor.getIndexReader(getIndexPath());
-        IndexSearcher searcher = new IndexSearcher(reader);
+        IndexSearcher searcher = acquireSearcher();
         try {
-            TopDocs hits = searcher.search(query, new ProjectRevisionFilter(issueManager, permissionManager, user, projectKey), MAX_REVISIONS, sort);
+            return getPage(searcher, query, after, pageSize, getVisibleCommitCheck(user));
+        } finally {
+            releaseSearcher(searcher);
+        }
+    }
 
-            if (hits == null) {
-                log.info("getLogEntriesByProject() No matches -- returning null.");
-                return null;
-            }
-            // Build the result map
-            logEntries = new ArrayList<RevisionInfo>(hits.totalHits);
-            int commitsEntered = 0;
-            for (int i = 0; i < hits.totalHits && i < MAX_REVISIONS && commitsEntered < numberOfEntries; i++) {
-                Document doc = searcher.doc(hits.scoreDocs[i].doc);
-                String revision = doc.get(FIELD_REVISIONNUMBER);
+    /**
+     * Returns a page of the commits that changed a file, or any file under a directory, that the user may see, newest
+     * first. Only the commits indexed with their changed files are found, see {@link #FIELD_PATH}.
+     *
+     * @param path
+     *            the path of the file or directory, relative to the root of the repository.
+     * @param repoId
+     *            the repository of the path, or null for any repository.
+     * @param after
+     *            the cursor of the previous page, or null for the first page.
+     * @return The page. Null if the repository has not yet been initialized.
+     */
+    public RevisionPage getLogEntriesByPath(String path, Long repoId, User user, int pageSize, RevisionCursor after)
+            throws IndexException, IOException {
+        String trimmedPath = StringUtils.strip(path, "/");
+        if (StringUtils.isEmpty(trimmedPath) || pageSize < 0) {
+            throw new IllegalArgumentException("getLogEntriesByPath(" + path + ", " + pageSize + ")");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("getLogEntriesByPath(" + path + ", " + repoId + ", " + pageSize + ", " + after + ")");
+        }
 
-                // Get all the issue keys mentioned in the commit.
-                String[] issueKeys = doc.getValues(FIELD_ISSUEKEY);
-                if (issueKeys == null) {
-                    log.warn("getLogEntriesByProject() Revision " + revision + " does not have any issues.");
-                    continue;
-                }
+        if (!indexDirectoryExists()) {
+            log.warn("getLogEntriesByPath() The indexes for the Git plugin have not yet been created.");
+            return null;
+        }
 
-                // Check that the user has view permission for at least one of the issues
-                boolean hasPermission = false;
-                for (int index = 0; !hasPermission && index < issueKeys.length; index++) {
-                    // Look up the issue
-                    Issue issue = issueManager.getIssueObject(issueKeys[index]);
-                    if (issue != null) {
-                        hasPermission = permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, issue,
-                                user);
-                    }
-                }
+        BooleanQuery pathQuery = new BooleanQuery();
+        pathQuery.add(new TermQuery(new Term(FIELD_PATH, trimmedPath)), BooleanClause.Occur.SHOULD);
+        pathQuery.add(new PrefixQuery(new Term(FIELD_PATH, trimmedPath + "/")), BooleanClause.Occur.SHOULD);
+        Query query = pathQuery;
+        if (repoId != null) {
+            BooleanQuery repositoryQuery = new BooleanQuery();
+            repositoryQuery.add(pathQuery, BooleanClause.Occur.MUST);
+            repositoryQuery.add(new TermQuery(new Term(FIELD_REPOSITORY, repoId.toString())), BooleanClause.Occur.MUST);
+            query = repositoryQuery;
+        }
 
-                if (hasPermission) {
-                    long repositoryId = Long.parseLong(doc.get(FIELD_REPOSITORY));
-                    // repositoryId is UUID + location
-                    GitManager manager = multipleGitRepositoryManager.getRepository(repositoryId);
-                    RevCommit logEntry = manager.getLogEntry(revision);
-                    if (logEntry == null) {
-                        log.error("getLogEntriesByProject() Could not find log message for revision: " + revision);
-                        continue;
-                    }
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            return getPage(searcher, query, after, pageSize, getVisibleCommitCheck(user));
+        } finally {
+            releaseSearcher(searcher);
+        }
+    }
 
-                    RevisionInfo revInfo = new RevisionInfo();
-                    revInfo.setRepositoryId(repositoryId);
-                    revInfo.setBranch(doc.get(FIELD_BRANCH));
-                    revInfo.setCommit(logEntry);
+    /**
+     * Returns a page of the files changed by a commit that the user may see, from its document if they were recorded
+     * in the index, or else from its repository.
+     *
+     * @param revision
+     *            the full id of the commit.
+     * @return The page. Null if the commit isn't indexed or the user may not see it.
+     */
+    public FileDiffPage getChangedPaths(long repoId, String revision, User user, int offset, int size)
+            throws IndexException, IOException {
+        if (offset < 0 || size < 0) {
+            throw new IllegalArgumentException("getChangedPaths(" + revision + ", " + offset + ", " + size + ")");
+        }
 
-                    logEntries.add(revInfo);
-                    
-                    commitsEntered++;
-                }
+        if (!indexDirectoryExists()) {
+            log.warn("getChangedPaths() The indexes for the Git plugin have not yet been created.");
+            return null;
+        }
+
+        Document doc = null;
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            TopDocs hits = searcher.search(new TermQuery(new Term(FIELD_COMMIT, getCommitKey(repoId, revision))), 1);
+            if (hits.totalHits > 0) {
+                doc = searcher.doc(hits.scoreDocs[0].doc, new ChangedPathsSelector(offset, size));
             }
         } finally {
-            searcher.close();
-            reader.close();
+            releaseSearcher(searcher);
+        }
+
+        if (doc == null || !getVisibleCommitCheck(user).accept(doc)) {
+            return null;
         }
 
-        return logEntries;
+        FileDiffPage page = getChangedPaths(doc, offset);
+        if (page == null) {
+            GitManager gitManager = multipleGitRepositoryManager.getRepository(repoId);
+            if (gitManager == null) {
+                return null;
+            }
+            page = gitManager.getFileDiffs(revision, offset, size);
+        }
+        return page;
+    }
+
+    /**
+     * @return a check that takes the commits mentioning an issue the user may see. Most commits mention the same few
+     *         issues, so each issue is only checked once.
+     */
+    private CommitCheck getVisibleCommitCheck(final User user) {
+        final Map<String, Boolean> verdicts = new HashMap<String, Boolean>();
+        return new CommitCheck() {
+            public boolean accept(Document doc) {
+                // Get all the issue keys mentioned in the commit.
+                String[] issueKeys = doc.getValues(FIELD_ISSUEKEY);
+                if (issueKeys == null || issueKeys.length == 0) {
+                    log.warn("Revision " + doc.get(FIELD_REVISIONNUMBER) + " does not have any issues.");
+                    return false;
+                }
+                return isAnyIssueVisible(issueKeys, user, verdicts);
+            }
+        };
     }
 
     /**
@@ -595,11 +1450,24 @@ public class RevisionIndexer {
      */
     public List<RevisionInfo> getLogEntriesByVersion(Version version, User user, int numberOfEntries)
             throws IndexException, IOException {
-        if (version == null || numberOfEntries < 0) {
+        RevisionPage page = getLogEntriesByVersion(version, user, numberOfEntries, null);
+        return page != null ? page.getEntries() : null;
+    }
+
+    /**
+     * Returns a page of the commits of a version that the user may see, newest first.
+     *
+     * @param after
+     *            the cursor of the previous page, or null for the first page.
+     * @return The page. Null if the repository has not yet been initialized.
+     */
+    public RevisionPage getLogEntriesByVersion(Version version, User user, int pageSize, RevisionCursor after)
+            throws IndexException, IOException {
+        if (version == null || pageSize < 0) {
             throw new IllegalArgumentException("getLogEntriesByVersion(" + version + ")");
         }
         if (log.isDebugEnabled()) {
-            log.debug("getLogEntriesByVersion(" + version + ", " + numberOfEntries + ")");
+            log.debug("getLogEntriesByVersion(" + version + ", " + pageSize + ", " + after + ")");
         }
 
         if (!indexDirectoryExists()) {
@@ -607,102 +1475,188 @@ public class RevisionIndexer {
             return null;
         }
 
-        // Find all isuses affected by and fixed by any of the versions:
-        Collection<Issue> issues = new HashSet<Issue>();
-
-        issues.addAll(versionManager.getIssuesWithFixVersion(version));
-        issues.addAll(versionManager.getIssuesWithAffectsVersion(version));
-
-        // Construct a query with all the issue keys. Make sure to increase the maximum number of clauses if needed.
-        int maxClauses = BooleanQuery.getMaxClauseCount();
-        if (issues.size() > maxClauses) {
-            BooleanQuery.setMaxClauseCount(issues.size());
-        }
-        BooleanQuery query = new BooleanQuery();
+        // Find the keys of the issues affected by and fixed by the version that the user may see. The issues are looked
+        // up afresh, so that the permissions are checked against their current security level, assignee and reporter
         Set<String> permittedIssueKeys = new HashSet<String>();
-
-        for (Issue issue : issues) {
-            if (permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, issue, user)) {
-                String key = issue.getKey();
-                TermQuery termQuery = new TermQuery(new Term(FIELD_ISSUEKEY, key));
-                query.add(termQuery, BooleanClause.Occur.SHOULD);
-                permittedIssueKeys.add(key);
+        for (Long issueId : getVersionIssueIds(version)) {
+            Issue issue = issueManager.getIssueObject(issueId);
+            if (issue != null && permissionCache.hasPermission(issue, user)) {
+                permittedIssueKeys.add(issue.getKey());
             }
         }
 
-        final IndexReader reader = indexAccessor.getIndexReader(getIndexPath());
-        IndexSearcher searcher = new IndexSearcher(reader);
-        List<RevisionInfo> logEntries = new ArrayList<RevisionInfo>();
+        if (permittedIssueKeys.isEmpty()) {
+            return new RevisionPage(new ArrayList<RevisionInfo>(), null);
+        }
 
+        IndexSearcher searcher = acquireSearcher();
         try {
-            // Run the query and sort by date in descending order
-            Sort sort = new Sort(new SortField(FIELD_DATE, SortField.STRING, true));
-            TopDocs hits = searcher.search(query, new PermittedIssuesRevisionFilter(issueManager, permissionManager, user, permittedIssueKeys), MAX_REVISIONS, sort);
+            // Every commit found mentions a permitted issue, so the newest ones can be taken as they are
+            return getPage(searcher, new ConstantScoreQuery(new IssueKeysFilter(permittedIssueKeys)), after,
+                    pageSize, null);
+        } finally {
+            releaseSearcher(searcher);
+        }
+    }
 
-            if (hits == null) {
-                log.info("getLogEntriesByVersion() No matches -- returning null.");
-                return null;
-            }
+    /**
+     * Decides whether a commit goes on a page.
+     */
+    private interface CommitCheck {
+        /**
+         * @param doc the commit's document, with the fields of {@link #PAGE_FIELDS_SELECTOR} only.
+         */
+        boolean accept(Document doc);
+    }
 
-            logEntries = new ArrayList<RevisionInfo>(hits.totalHits);
-            int commitsEntered = 0;
-            for (int i = 0; i < hits.totalHits && i < MAX_REVISIONS && commitsEntered < numberOfEntries; i++) {
-                Document doc = searcher.doc(hits.scoreDocs[i].doc);
-                long repositoryId = Long.parseLong(doc.get(FIELD_REPOSITORY));
-                // repositoryId is UUID + location
-                GitManager manager = multipleGitRepositoryManager.getRepository(repositoryId);
-                String revision = doc.get(FIELD_REVISIONNUMBER);
+    /**
+     * Walks the hits of a query newest first, and by commit key within a second, from a cursor, until a page is full.
+     * Hits are collected in batches of the first ones that haven't been looked at, so the cost of a page depends on
+     * the page size and on how many commits the check skips, not on how far into the results it is or on how many hits
+     * the query has.
+     *
+     * @param check
+     *            the check of the commits, or null to take every commit.
+     */
+    private RevisionPage getPage(IndexSearcher searcher, Query query, RevisionCursor after, int pageSize,
+            CommitCheck check) throws IOException {
+        List<RevisionInfo> entries = new ArrayList<RevisionInfo>(pageSize);
+        if (pageSize == 0) {
+            return new RevisionPage(entries, after);
+        }
 
-                // Get all the issue keys mentioned in the commit.
-                String[] issueKeys = doc.getValues(FIELD_ISSUEKEY);
-                if (issueKeys == null) {
-                    log.warn("getLogEntriesByProject() Revision " + revision + " does not have any issues.");
-                    continue;
-                }
-                // Check that the user has view permission for at least one of the issues
-                boolean hasPermission = false;
-                for (int index = 0; !hasPermission && index < issueKeys.length; index++) {
-                    // Look up the issue
-                    Issue issue = issueManager.getIssueObject(issueKeys[index]);
-                    if (issue != null) {
-                        hasPermission = permissionManager.hasPermission(Permissions.VIEW_VERSION_CONTROL, issue, user);
-                    }
+        // The last commit looked at, which the next batch and the next page start after
+        int lastCommitTime = after != null ? after.getCommitTime() : Integer.MAX_VALUE;
+        String lastCommitKey = after != null ? after.getCommitKey() : null;
+        int batchSize = Math.max(2 * pageSize, MIN_PAGE_BATCH_SIZE);
+
+        boolean more = true;
+        while (more && entries.size() < pageSize) {
+            CommitTimeCollector hits = new CommitTimeCollector(searcher.getIndexReader(), lastCommitTime,
+                    lastCommitKey, batchSize);
+            searcher.search(query, hits);
+            CommitTimeCollector.Hit[] batch = hits.takeHits();
+
+            int i = 0;
+            for (; i < batch.length && entries.size() < pageSize; i++) {
+                Document doc = searcher.doc(batch[i].doc, PAGE_FIELDS_SELECTOR);
+                lastCommitTime = batch[i].commitTime;
+                lastCommitKey = getCommitKey(doc.get(FIELD_REPOSITORY), doc.get(FIELD_REVISIONNUMBER));
+
+                if (check == null || check.accept(doc)) {
+                    entries.add(getRevisionInfo(searcher.doc(batch[i].doc,
+                            new ChangedPathsSelector(0, FileDiffPage.DEFAULT_SIZE))));
                 }
+            }
+            more = i < batch.length || hits.getTotalHits() > batch.length;
+        }
 
-                if (hasPermission) {
-                    RevCommit logEntry = manager.getLogEntry(revision);
-                    if (logEntry == null) {
-                        log.error("getLogEntriesByVersion() Could not find log message for revision: "
-                                + doc.get(FIELD_REVISIONNUMBER));
-                    }
+        return new RevisionPage(entries, more ? new RevisionCursor(lastCommitTime, lastCommitKey) : null);
+    }
 
-                    RevisionInfo revInfo = new RevisionInfo();
-                    revInfo.setRepositoryId(repositoryId);
-                    revInfo.setBranch(doc.get(FIELD_BRANCH));
-                    revInfo.setCommit(logEntry);
+    /**
+     * Checks that the user has view permission for at least one of the issues.
+     *
+     * @param verdicts
+     *            the permissions already checked in this request, by issue key; updated with the ones checked here.
+     */
+    private boolean isAnyIssueVisible(String[] issueKeys, User user, Map<String, Boolean> verdicts) {
+        for (String issueKey : issueKeys) {
+            Boolean verdict = verdicts.get(issueKey);
+            if (verdict == null) {
+                // Look up the issue
+                Issue issue = issueManager.getIssueObject(issueKey);
+                verdict = Boolean.valueOf(issue != null && permissionCache.hasPermission(issue, user));
+                verdicts.put(issueKey, verdict);
+            }
+            if (verdict.booleanValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                    logEntries.add(revInfo);
-                    
-                    commitsEntered++;
-                }
+    /**
+     * Returns the ids of the issues affected by and fixed by the version. They are cached for a short while, as a
+     * release can have thousands of issues and the tab is typically viewed several times in a row.
+     */
+    private Collection<Long> getVersionIssueIds(Version version) {
+        Long versionId = version.getId();
+        long now = System.currentTimeMillis();
+        synchronized (versionIssuesCache) {
+            VersionIssues cached = versionIssuesCache.get(versionId);
+            if (cached != null && cached.expires > now) {
+                return cached.issueIds;
             }
-        } finally {
-            searcher.close();
-            reader.close();
-            BooleanQuery.setMaxClauseCount(maxClauses);
         }
 
-        return logEntries;
+        Collection<Long> issueIds = new HashSet<Long>();
+        for (Issue issue : versionManager.getIssuesWithFixVersion(version)) {
+            issueIds.add(issue.getId());
+        }
+        for (Issue issue : versionManager.getIssuesWithAffectsVersion(version)) {
+            issueIds.add(issue.getId());
+        }
+        issueIds = Collections.unmodifiableCollection(issueIds);
+
+        synchronized (versionIssuesCache) {
+            versionIssuesCache.put(versionId, new VersionIssues(issueIds, now + VERSION_ISSUES_TIME_TO_LIVE_MILLIS));
+        }
+        return issueIds;
+    }
+
+    private static final class VersionIssues {
+        private final Collection<Long> issueIds;
+        private final long expires;
+
+        VersionIssues(Collection<Long> issueIds, long expires) {
+            this.issueIds = issueIds;
+            this.expires = expires;
+        }
+    }
+
+    private static Query getCommitTimeQuery(Date since) {
+        int sinceSeconds = (int) Math.min(Math.max(since.getTime() / 1000L, 0), Integer.MAX_VALUE);
+        return NumericRangeQuery.newIntRange(FIELD_COMMIT_TIME, sinceSeconds, null, true, true);
     }
 
-    public void addRepository(GitManager gitInstance) {
+    /**
+     * Builds the entry for a commit from the stored fields of its document, without reading the repository. Only the
+     * first page of its changed files is read.
+     */
+    private RevisionInfo getRevisionInfo(Document doc) {
+        RevisionInfo revInfo = new RevisionInfo();
+        revInfo.setRepositoryId(Long.parseLong(doc.get(FIELD_REPOSITORY)));
+        revInfo.setBranches(doc.getValues(FIELD_BRANCH));
+        revInfo.setCommit(new CommitSummary(doc.get(FIELD_REVISIONNUMBER), doc.get(FIELD_MESSAGE),
+                doc.get(FIELD_AUTHOR), doc.get(FIELD_COMMITTER), getCommitTime(doc)));
+        revInfo.setChangedPaths(getChangedPaths(doc, 0));
+        return revInfo;
+    }
+
+    private static Date getCommitTime(Document doc) {
+        String date = doc.get(FIELD_DATE);
+        if (date == null) {
+            return null;
+        }
+
         try {
-            updateIndex();
-        } catch (Exception e) {
-            throw new InfrastructureException("Could not index repository", e);
+            return new Date(DateTools.stringToTime(date));
+        } catch (ParseException e) {
+            log.warn("Invalid commit date '" + date + "' for revision " + doc.get(FIELD_REVISIONNUMBER));
+            return null;
         }
     }
 
+    /**
+     * Starts indexing a new repository, ahead of the periodic updates.
+     *
+     * @return a future that completes when the repository is indexed.
+     */
+    public Future<?> addRepository(GitManager gitInstance) {
+        return requestIndexUpdate(gitInstance, IndexingCoordinator.Priority.ADMIN);
+    }
+
     public void removeEntries(GitManager gitInstance) throws IOException, IndexException {
         if (log.isDebugEnabled()) {
             log.debug("Deleteing revisions for : " + gitInstance.getRoot());
@@ -715,12 +1669,13 @@ public class RevisionIndexer {
         
         long repoId = gitInstance.getId();
 
-        final IndexWriter writer = indexAccessor.getIndexWriter(getIndexPath(), false, ANALYZER);
+        getIndexWriter().deleteDocuments(new Term(FIELD_REPOSITORY, Long.toString(repoId)));
+        commitIndex();
 
-        try {
-            writer.deleteDocuments(new Term(FIELD_REPOSITORY, Long.toString(repoId)));
-        } finally {
-            writer.close();
+        synchronized (writerLock) {
+            if (indexedRevisions != null) {
+                indexedRevisions.remove(repoId);
+            }
         }
     }
 }
@@ -1,11 +1,18 @@
 package com.xiplink.jira.git.revisions;
 
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.apache.commons.lang.StringUtils;
+import com.xiplink.jira.git.CommitSummary;
+import com.xiplink.jira.git.FileDiffPage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class RevisionInfo {
     private long repositoryId;
-    private String branch;
-    private RevCommit commit;
+    private List<String> branches = Collections.emptyList();
+    private CommitSummary commit;
+    private FileDiffPage changedPaths;
 
     public long getRepositoryId() {
         return repositoryId;
@@ -15,19 +22,37 @@ public class RevisionInfo {
         this.repositoryId = repositoryId;
     }
 
+    /**
+     * @return the branches the commit is on, separated by commas.
+     */
     public String getBranch() {
-        return branch;
+        return StringUtils.join(branches, ", ");
+    }
+
+    public List<String> getBranches() {
+        return branches;
     }
 
-    public void setBranch(String branch) {
-        this.branch = branch;
+    public void setBranches(String[] branches) {
+        this.branches = branches != null ? Arrays.asList(branches) : Collections.<String>emptyList();
     }
 
-    public RevCommit getCommit() {
+    public CommitSummary getCommit() {
         return commit;
     }
 
-    public void setCommit(RevCommit commit) {
+    public void setCommit(CommitSummary commit) {
         this.commit = commit;
     }
+
+    /**
+     * @return the first page of the files the commit changed, or null if they weren't recorded in the index.
+     */
+    public FileDiffPage getChangedPaths() {
+        return changedPaths;
+    }
+
+    public void setChangedPaths(FileDiffPage changedPaths) {
+        this.changedPaths = changedPaths;
+    }
 }
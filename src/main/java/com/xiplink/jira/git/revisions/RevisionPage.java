@@ -0,0 +1,31 @@
+package com.xiplink.jira.git.revisions;
+
+import java.util.List;
+
+/**
+ * A page of commits, newest first, and the cursor of the next page.
+ */
+public class RevisionPage {
+    private final List<RevisionInfo> entries;
+    private final RevisionCursor next;
+
+    public RevisionPage(List<RevisionInfo> entries, RevisionCursor next) {
+        this.entries = entries;
+        this.next = next;
+    }
+
+    public List<RevisionInfo> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the cursor of the next page, or null if this is the last one.
+     */
+    public RevisionCursor getNext() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+}
@@ -0,0 +1,153 @@
+package com.xiplink.jira.git.revisions;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.AlreadyClosedException;
+
+import java.io.IOException;
+
+/**
+ * Hands out a single {@link IndexSearcher} over the revision index that is shared by all requests. The searcher
+ * is reference counted through its reader, and is only replaced when the index generation changes, i.e. after
+ * the indexer has written to the shared {@link IndexWriter}. A replacement searcher is warmed before it is
+ * published so that the first request after a reopen doesn't pay for loading the sort caches.
+ * <p/>
+ * Every searcher obtained from {@link #acquire()} must be handed back through {@link #release(IndexSearcher)}.
+ */
+class RevisionSearcherManager
+{
+    private static final Logger log = Logger.getLogger(RevisionSearcherManager.class);
+
+    private final IndexWriter writer;
+    private final SortField[] warmSortFields;
+    private final Object reopenLock = new Object();
+
+    private IndexSearcher current;
+
+    /**
+     * @param writer the writer the searchers read from, in near-real-time.
+     * @param accessor used to open the first reader.
+     * @param warmSortFields the fields the query paths sort on, loaded into the field cache on every reopen.
+     * @throws IOException if the initial reader cannot be opened.
+     */
+    RevisionSearcherManager(IndexWriter writer, LuceneIndexAccessor accessor, SortField... warmSortFields) throws IOException
+    {
+        this.writer = writer;
+        this.warmSortFields = warmSortFields;
+
+        IndexSearcher searcher = new IndexSearcher(accessor.getIndexReader(writer));
+        warm(searcher);
+        current = searcher;
+    }
+
+    /**
+     * @return the current searcher, with a reference held on its reader.
+     * @throws AlreadyClosedException if the manager was closed.
+     */
+    synchronized IndexSearcher acquire()
+    {
+        if (current == null)
+        {
+            throw new AlreadyClosedException("The revision searcher manager is closed");
+        }
+        current.getIndexReader().incRef();
+        return current;
+    }
+
+    void release(IndexSearcher searcher) throws IOException
+    {
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Replaces the current searcher if the writer has changed the index since it was opened. Requests that hold
+     * the previous searcher keep using it until they release it.
+     *
+     * @return true if a new searcher was published.
+     * @throws IOException if the reader cannot be reopened.
+     * @throws AlreadyClosedException if the manager was closed.
+     */
+    boolean maybeReopen() throws IOException
+    {
+        // Only one thread reopens and warms at a time; readers keep being served from the current searcher.
+        synchronized (reopenLock)
+        {
+            IndexSearcher searcher = acquire();
+            try
+            {
+                IndexReader reader = searcher.getIndexReader();
+                // a near-real-time reader always reopens to a new one, even if the writer changed nothing
+                if (reader.isCurrent())
+                {
+                    return false;
+                }
+                IndexReader reopened = reader.reopen(writer, true);
+                if (reopened == reader)
+                {
+                    return false;
+                }
+
+                IndexSearcher newSearcher = new IndexSearcher(reopened);
+                warm(newSearcher);
+                swap(newSearcher);
+
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Reopened revision index searcher at generation " + reopened.getVersion());
+                }
+                return true;
+            }
+            finally
+            {
+                release(searcher);
+            }
+        }
+    }
+
+    /**
+     * Drops the manager's own reference on the current searcher. Outstanding acquisitions stay valid until
+     * released; later ones fail. Closing twice does nothing.
+     */
+    void close() throws IOException
+    {
+        synchronized (reopenLock)
+        {
+            swap(null);
+        }
+    }
+
+    private void swap(IndexSearcher newSearcher) throws IOException
+    {
+        IndexSearcher old;
+        synchronized (this)
+        {
+            old = current;
+            current = newSearcher;
+        }
+        if (old != null)
+        {
+            release(old);
+        }
+    }
+
+    private void warm(IndexSearcher searcher)
+    {
+        for (SortField sortField : warmSortFields)
+        {
+            try
+            {
+                searcher.search(new MatchAllDocsQuery(), null, 1, new Sort(sortField));
+            }
+            catch (Exception e)
+            {
+                // A failed warm-up only costs the first query its latency; it must never stop a reopen.
+                log.warn("Could not warm the revision index on field " + sortField.getField(), e);
+            }
+        }
+    }
+}
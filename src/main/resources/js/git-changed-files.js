@@ -0,0 +1,23 @@
+/**
+ * Loads the next page of the files changed by a commit in place of the link to it, in the Git Commits tabs.
+ */
+AJS.$(function ($) {
+    $(document).delegate("a.git-more-changed-files", "click", function (e) {
+        var link = $(this);
+        e.preventDefault();
+        if (link.data("loading")) {
+            return;
+        }
+        link.data("loading", true);
+        $.ajax({
+            url: link.attr("href"),
+            dataType: "html",
+            success: function (html) {
+                link.closest(".git-changed-files-more").replaceWith(html);
+            },
+            error: function () {
+                link.data("loading", false);
+            }
+        });
+    });
+});
@@ -0,0 +1,215 @@
+package com.xiplink.jira.git;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitRecordStoreTest {
+    private File directory;
+    private CommitRecordStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Stubs.createTempDirectory("commit-records");
+        store = CommitRecordStore.open(directory);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        Stubs.delete(directory);
+    }
+
+    @Test
+    public void findsTheRecordsAppended() throws IOException {
+        store.append(id(1), 1000, value(1, 10));
+        store.append(id(2), 2000, value(2, 0));
+
+        assertRecord(1, 1000, 10);
+        assertRecord(2, 2000, 0);
+        assertTrue(store.contains(id(1)));
+        assertFalse(store.contains(id(3)));
+        assertNull(store.get(id(3)));
+        assertEquals(2, store.getCount());
+    }
+
+    @Test
+    public void keepsTheFirstRecordOfACommit() throws IOException {
+        store.append(id(1), 1000, value(1, 10));
+        long size = store.getDataSize();
+        store.append(id(1), 2000, value(2, 10));
+
+        assertRecord(1, 1000, 10);
+        assertEquals(size, store.getDataSize());
+        assertEquals(1, store.getCount());
+    }
+
+    @Test
+    public void growsTheIndexInPlace() throws IOException {
+        long indexLength = new File(directory, CommitRecordStore.INDEX_FILE).length();
+        for (int i = 0; i < 30000; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+
+        assertEquals(30000, store.getCount());
+        for (int i = 0; i < 30000; i++) {
+            assertRecord(i, i, 8);
+        }
+        assertTrue(new File(directory, CommitRecordStore.INDEX_FILE).length() > indexLength);
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void mapsMoreOfTheDataFileAsItGrows() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.append(id(i), i, value(i, 20000));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertRecord(i, i, 20000);
+        }
+    }
+
+    @Test
+    public void findsTheRecordsAfterReopening() throws IOException {
+        for (int i = 0; i < 20000; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+        long size = store.getDataSize();
+        store.clear(0);
+        for (int i = 0; i < 20000; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+        reopen();
+
+        assertEquals(20000, store.getCount());
+        assertEquals(size, store.getDataSize());
+        for (int i = 0; i < 20000; i++) {
+            assertRecord(i, i, 8);
+        }
+
+        store.append(id(20000), 20000, value(20000, 8));
+        assertRecord(20000, 20000, 8);
+    }
+
+    @Test
+    public void rebuildsAMissingIndex() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+        store.close();
+        assertTrue(new File(directory, CommitRecordStore.INDEX_FILE).delete());
+        reopen();
+
+        assertEquals(100, store.getCount());
+        for (int i = 0; i < 100; i++) {
+            assertRecord(i, i, 8);
+        }
+    }
+
+    @Test
+    public void rebuildsAnIndexLeftHalfWritten() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+        store.close();
+        // as left by a crash while the slots are rewritten
+        RandomAccessFile index = new RandomAccessFile(new File(directory, CommitRecordStore.INDEX_FILE), "rw");
+        try {
+            index.seek(12);
+            index.writeInt(-1);
+        } finally {
+            index.close();
+        }
+        reopen();
+
+        assertEquals(100, store.getCount());
+        for (int i = 0; i < 100; i++) {
+            assertRecord(i, i, 8);
+        }
+    }
+
+    @Test
+    public void discardsRecordsOfAnUnknownFormat() throws IOException {
+        store.append(id(1), 1000, value(1, 10));
+        store.close();
+        RandomAccessFile data = new RandomAccessFile(new File(directory, CommitRecordStore.DATA_FILE), "rw");
+        try {
+            data.writeInt(0);
+        } finally {
+            data.close();
+        }
+        reopen();
+
+        assertEquals(0, store.getCount());
+        assertNull(store.get(id(1)));
+        store.append(id(2), 2000, value(2, 10));
+        assertRecord(2, 2000, 10);
+    }
+
+    @Test
+    public void clearsInPlace() throws IOException {
+        long empty = store.getDataSize();
+        for (int i = 0; i < 100; i++) {
+            store.append(id(i), i, value(i, 8));
+        }
+        store.clear(1);
+
+        assertEquals(0, store.getCount());
+        assertEquals(empty, store.getDataSize());
+        assertNull(store.get(id(1)));
+
+        store.append(id(1000), 1000, value(1000, 8));
+        reopen();
+        assertEquals(1, store.getGeneration());
+        assertEquals(1, store.getCount());
+        assertRecord(1000, 1000, 8);
+        assertNull(store.get(id(1)));
+    }
+
+    @Test
+    public void findsNothingOnceClosed() throws IOException {
+        store.append(id(1), 1000, value(1, 10));
+        store.close();
+
+        assertNull(store.get(id(1)));
+        assertFalse(store.contains(id(1)));
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = CommitRecordStore.open(directory);
+    }
+
+    private void assertRecord(int n, int commitTime, int length) {
+        CommitRecordStore.Record record = store.get(id(n));
+        assertNotNull("record " + n, record);
+        assertEquals(commitTime, record.commitTime);
+        assertArrayEquals(value(n, length), record.copyValue());
+    }
+
+    private static ObjectId id(int n) {
+        return ObjectId.fromRaw(Constants.newMessageDigest().digest(Constants.encode(Integer.toString(n))));
+    }
+
+    private static byte[] value(int n, int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (n + i);
+        }
+        return value;
+    }
+}
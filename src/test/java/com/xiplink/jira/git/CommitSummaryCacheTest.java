@@ -0,0 +1,157 @@
+package com.xiplink.jira.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+public class CommitSummaryCacheTest {
+    private static final ObjectId TREE = ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbecba94");
+
+    // every commit weighs the same, as its message has the same length
+    private static final long WEIGHT = weight();
+
+    @Test
+    public void keepsTheSummariesOfTheCommitsPut() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(10 * WEIGHT);
+        RevCommit commit = commit(1);
+        cache.put(1L, commit);
+
+        CommitSummary summary = cache.get(1L, commit);
+        assertEquals(commit.name(), summary.getId());
+        assertEquals(commit.getFullMessage(), summary.getMessage());
+        assertEquals("author", summary.getAuthor());
+        assertEquals("committer", summary.getCommitter());
+        assertEquals(commit.getCommitTime() * 1000L, summary.getCommitTime().getTime());
+        assertNull(cache.get(2L, commit));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void weighsEachCommitOnce() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(10 * WEIGHT);
+        cache.put(1L, commit(1));
+        cache.put(1L, commit(1));
+        cache.put(2L, commit(1));
+
+        assertEquals(2, cache.getSize());
+        assertEquals(2 * WEIGHT, cache.getWeight());
+        assertEquals(1, cache.getOccupancy(1L).getSize());
+        assertEquals(WEIGHT, cache.getOccupancy(1L).getWeight());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedCommitFirst() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(3 * WEIGHT);
+        cache.put(1L, commit(1));
+        cache.put(1L, commit(2));
+        cache.put(1L, commit(3));
+        cache.get(1L, commit(1));
+        cache.put(1L, commit(4));
+
+        assertNotNull(cache.get(1L, commit(1)));
+        assertNull(cache.get(1L, commit(2)));
+        assertNotNull(cache.get(1L, commit(3)));
+        assertNotNull(cache.get(1L, commit(4)));
+        assertEquals(3, cache.getSize());
+        assertEquals(3 * WEIGHT, cache.getWeight());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getOccupancy(1L).getEvictions());
+    }
+
+    @Test
+    public void evictsFromTheRepositoryHoldingTheMost() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(4 * WEIGHT);
+        cache.put(1L, commit(1));
+        for (int i = 2; i < 10; i++) {
+            cache.put(2L, commit(i));
+        }
+
+        // the commit of the first repository is the least recently used, but it holds less than its share
+        assertNotNull(cache.get(1L, commit(1)));
+        assertEquals(1, cache.getOccupancy(1L).getSize());
+        assertEquals(3, cache.getOccupancy(2L).getSize());
+        assertEquals(5, cache.getOccupancy(2L).getEvictions());
+        assertEquals(4 * WEIGHT, cache.getWeight());
+    }
+
+    @Test
+    public void sharesTheBudgetBetweenRepositories() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(4 * WEIGHT);
+        for (int i = 0; i < 10; i++) {
+            cache.put(1L, commit(i));
+            cache.put(2L, commit(100 + i));
+        }
+
+        assertEquals(2, cache.getOccupancy(1L).getSize());
+        assertEquals(2, cache.getOccupancy(2L).getSize());
+        assertEquals(4, cache.getSize());
+        assertEquals(16, cache.getEvictions());
+    }
+
+    @Test
+    public void keepsACommitHeavierThanTheBudget() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(WEIGHT / 2);
+        cache.put(1L, commit(1));
+        cache.put(2L, commit(2));
+
+        assertNull(cache.get(1L, commit(1)));
+        assertNotNull(cache.get(2L, commit(2)));
+        assertEquals(1, cache.getSize());
+        assertEquals(WEIGHT, cache.getWeight());
+    }
+
+    @Test
+    public void forgetsTheCommitsOfAClearedRepository() throws IOException {
+        CommitSummaryCache cache = new CommitSummaryCache(10 * WEIGHT);
+        cache.put(1L, commit(1));
+        cache.put(1L, commit(2));
+        cache.put(2L, commit(3));
+        cache.clear(1L);
+
+        assertEquals(1, cache.getSize());
+        assertEquals(WEIGHT, cache.getWeight());
+        assertEquals(0, cache.getOccupancy(1L).getSize());
+        assertNull(cache.get(1L, commit(1)));
+
+        // the budget is no longer shared with the cleared repository
+        for (int i = 4; i < 13; i++) {
+            cache.put(2L, commit(i));
+        }
+        assertEquals(10, cache.getOccupancy(2L).getSize());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+    }
+
+    private static long weight() {
+        CommitSummaryCache cache = new CommitSummaryCache(Long.MAX_VALUE);
+        cache.put(1L, commit(0));
+        return cache.getWeight();
+    }
+
+    private static RevCommit commit(int n) {
+        PersonIdent author = new PersonIdent("author", "author@example.com", 1325419200000L + n * 1000L, 0);
+        PersonIdent committer = new PersonIdent("committer", "committer@example.com", 1325419200000L + n * 1000L, 0);
+        CommitBuilder builder = new CommitBuilder();
+        builder.setTreeId(TREE);
+        builder.setAuthor(author);
+        builder.setCommitter(committer);
+        builder.setMessage(String.format("TST-%05d Commit", n));
+        try {
+            return RevCommit.parse(builder.build());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.xiplink.jira.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileDiffCacheTest {
+    private static final String PARENT = "0123456789012345678901234567890123456789";
+    private static final String BLOB = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+
+    private File directory;
+    private FileDiffCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Stubs.createTempDirectory("file-diffs");
+        // a generation rolls on the 40th record of diffs(n, 2), which takes 130 bytes
+        cache = new FileDiffCache(2 * 40 * 130);
+        cache.open(directory);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+        Stubs.delete(directory);
+    }
+
+    @Test
+    public void decodesTheDiffsItStored() {
+        ObjectId id = id(1);
+        FileDiff[] diffs = {
+                FileDiff.fromStored(id.name(), PARENT, "src/Main.java", "MODIFY 0 " + BLOB + ":100644 " + BLOB
+                        + ":100755"),
+                FileDiff.fromStored(id.name(), PARENT, "docs/r\u00e9sum\u00e9.txt", "ADD 1 " + BLOB + ":100644"),
+                FileDiff.fromStored(id.name(), PARENT, longPath(), "DELETE 2") };
+        cache.put(id, diffs);
+
+        FileDiff[] cached = cache.get(id);
+        assertEquals(diffs.length, cached.length);
+        for (int i = 0; i < diffs.length; i++) {
+            assertEquals(diffs[i].getPath(), cached[i].getPath());
+            assertEquals(diffs[i].toStored(), cached[i].toStored());
+            assertEquals(PARENT, cached[i].getParentRevision());
+            assertEquals(id.name(), cached[i].getRevision());
+        }
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void decodesCommitsWithoutParentOrChanges() {
+        cache.put(id(1), new FileDiff[0]);
+        cache.put(id(2), new FileDiff[] { FileDiff.fromStored(id(2).name(), null, "a", "ADD 0 " + BLOB + ":100644") });
+
+        assertEquals(0, cache.get(id(1)).length);
+        assertNull(cache.get(id(2))[0].getParentRevision());
+        assertNull(cache.get(id(3)));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void dropsTheOldestGenerationWhenFull() {
+        for (int i = 0; i < 100; i++) {
+            cache.put(id(i), diffs(i, 2));
+        }
+
+        assertEquals(2, cache.getRolls());
+        assertNull(cache.get(id(0)));
+        assertNotNull(cache.get(id(99)));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void keepsTheDiffsLookedUpInThePreviousGeneration() {
+        for (int i = 0; i < 50; i++) {
+            cache.put(id(i), diffs(i, 2));
+        }
+        assertEquals(1, cache.getRolls());
+
+        // in the previous generation, so copied to the current one
+        assertNotNull(cache.get(id(0)));
+        for (int i = 50; i < 80; i++) {
+            cache.put(id(i), diffs(i, 2));
+        }
+
+        assertEquals(2, cache.getRolls());
+        assertNotNull(cache.get(id(0)));
+        assertNull(cache.get(id(1)));
+    }
+
+    @Test
+    public void keepsTheCurrentGenerationAcrossRestarts() throws IOException {
+        // rolled three times, so the last commits went to the second directory
+        for (int i = 0; i < 130; i++) {
+            cache.put(id(i), diffs(i, 2));
+        }
+        cache.close();
+        cache.open(directory);
+
+        // the next roll drops the older generation, not the one the last commits went to
+        for (int i = 130; i < 160; i++) {
+            cache.put(id(i), diffs(i, 2));
+        }
+        assertEquals(4, cache.getRolls());
+        assertNotNull(cache.get(id(129)));
+    }
+
+    private static FileDiff[] diffs(int n, int count) {
+        FileDiff[] diffs = new FileDiff[count];
+        for (int i = 0; i < count; i++) {
+            diffs[i] = FileDiff.fromStored(id(n).name(), PARENT, "file" + i, "MODIFY " + i + " " + BLOB + ":100644");
+        }
+        return diffs;
+    }
+
+    private static String longPath() {
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            path.append("directory").append(i).append('/');
+        }
+        return path.append("file").toString();
+    }
+
+    private static ObjectId id(int n) {
+        return ObjectId.fromRaw(Constants.newMessageDigest().digest(Constants.encode(Integer.toString(n))));
+    }
+}
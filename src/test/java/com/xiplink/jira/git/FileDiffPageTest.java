@@ -0,0 +1,69 @@
+package com.xiplink.jira.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FileDiffPageTest {
+    private static final String REVISION = "0123456789012345678901234567890123456789";
+
+    private final FileDiff[] all = diffs(5);
+
+    @Test
+    public void takesThePageAtTheOffset() {
+        FileDiffPage page = FileDiffPage.of(all, 1, 2);
+
+        assertPaths(page, "file1", "file2");
+        assertEquals(1, page.getOffset());
+        assertEquals(5, page.getTotal());
+        assertTrue(page.isTotalKnown());
+        assertTrue(page.hasNext());
+        assertEquals(3, page.getNextOffset());
+    }
+
+    @Test
+    public void cutsTheLastPageShort() {
+        FileDiffPage page = FileDiffPage.of(all, 3, 100);
+
+        assertPaths(page, "file3", "file4");
+        assertFalse(page.hasNext());
+        assertEquals(5, page.getNextOffset());
+    }
+
+    @Test
+    public void keepsTheOffsetWithinTheDiffs() {
+        FileDiffPage past = FileDiffPage.of(all, 7, 2);
+        assertPaths(past);
+        assertEquals(5, past.getOffset());
+        assertFalse(past.hasNext());
+
+        assertPaths(FileDiffPage.of(all, -3, 1), "file0");
+        // the end of the page doesn't overflow
+        assertPaths(FileDiffPage.of(all, 4, Integer.MAX_VALUE), "file4");
+    }
+
+    @Test
+    public void hasMoreWhileTheTotalIsUnknown() {
+        FileDiffPage page = new FileDiffPage(diffs(2), 0, 2, false);
+
+        assertTrue(page.hasNext());
+        assertEquals(2, page.getNextOffset());
+    }
+
+    private static void assertPaths(FileDiffPage page, String... paths) {
+        assertEquals(paths.length, page.getDiffs().length);
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], page.getDiffs()[i].getPath());
+        }
+    }
+
+    private static FileDiff[] diffs(int count) {
+        FileDiff[] diffs = new FileDiff[count];
+        for (int i = 0; i < count; i++) {
+            diffs[i] = FileDiff.fromStored(REVISION, null, "file" + i, "DELETE " + i);
+        }
+        return diffs;
+    }
+}
@@ -0,0 +1,236 @@
+package com.xiplink.jira.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.permission.PermissionSchemeManager;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.scheme.Scheme;
+import com.atlassian.jira.scheme.SchemeEntity;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.Permissions;
+
+public class PermissionVerdictCacheTest {
+    private static final Long VIEW_VERSION_CONTROL = Long.valueOf(Permissions.VIEW_VERSION_CONTROL);
+
+    private final Project project = project(10L);
+    private final User user = user("fred");
+
+    private final List<SchemeEntity> grants = new ArrayList<SchemeEntity>();
+    // the ids of the issues the user may see
+    private final Set<Long> permitted = new HashSet<Long>();
+    private int checks;
+    private Runnable duringCheck;
+
+    private PermissionVerdictCache cache;
+
+    @Before
+    public void setUp() {
+        grants.add(new SchemeEntity("group", "jira-users", VIEW_VERSION_CONTROL));
+        PermissionManager permissionManager = Stubs.stub(PermissionManager.class, new Object() {
+            public boolean hasPermission(int permission, Issue issue, User user) {
+                checks++;
+                if (duringCheck != null) {
+                    duringCheck.run();
+                }
+                return permitted.contains(issue.getId());
+            }
+
+            public boolean hasPermission(int permission, Project project, User user) {
+                checks++;
+                if (duringCheck != null) {
+                    duringCheck.run();
+                }
+                return true;
+            }
+        });
+        PermissionSchemeManager permissionSchemeManager = Stubs.stub(PermissionSchemeManager.class, new Object() {
+            public Scheme getSchemeFor(Project project) {
+                return new Scheme(1L, "PermissionScheme", "Default Permission Scheme", grants);
+            }
+        });
+        cache = new PermissionVerdictCache(permissionManager, permissionSchemeManager, Stubs.stub(
+                EventPublisher.class, null), 100, 60000L);
+    }
+
+    @Test
+    public void sharesVerdictsBetweenSimilarIssues() {
+        permitted.add(1L);
+        permitted.add(2L);
+
+        assertTrue(cache.hasPermission(issue(1L, "bob"), user));
+        assertTrue(cache.hasPermission(issue(2L, "bob"), user));
+        assertEquals(1, checks);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void checksIssuesWithOtherFingerprintsAgain() {
+        permitted.add(1L);
+
+        assertTrue(cache.hasPermission(issue(1L, "bob"), user));
+        assertFalse(cache.hasPermission(issue(2L, "alice"), user));
+        assertEquals(2, checks);
+    }
+
+    @Test
+    public void checksEachIssueWhenTheSchemeGrantsToACustomField() {
+        grants.add(new SchemeEntity("userCF", "customfield_10000", VIEW_VERSION_CONTROL));
+        permitted.add(1L);
+
+        assertTrue(cache.hasPermission(issue(1L, "bob"), user));
+        assertFalse(cache.hasPermission(issue(2L, "bob"), user));
+        assertTrue(cache.hasPermission(issue(1L, "bob"), user));
+        assertEquals(2, checks);
+    }
+
+    @Test
+    public void checksEachIssueOnASecurityLevel() {
+        // the level grants to a user custom field, which only the first issue names the user in
+        permitted.add(1L);
+
+        assertTrue(cache.hasPermission(issue(1L, "bob", 10000L), user));
+        assertFalse(cache.hasPermission(issue(2L, "bob", 10000L), user));
+        assertTrue(cache.hasPermission(issue(1L, "bob", 10000L), user));
+        assertEquals(2, checks);
+    }
+
+    @Test
+    public void ignoresCustomFieldGrantsOfOtherPermissions() {
+        grants.add(new SchemeEntity("groupCF", "customfield_10000", Long.valueOf(Permissions.ADMINISTER)));
+        permitted.add(1L);
+        permitted.add(2L);
+
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.hasPermission(issue(2L, "bob"), user);
+        assertEquals(1, checks);
+    }
+
+    @Test
+    public void forgetsTheVerdictsOfAClearedProject() {
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.hasPermission(project, user);
+        cache.clear(project.getId());
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.hasPermission(project, user);
+
+        assertEquals(4, checks);
+    }
+
+    @Test
+    public void keepsTheVerdictsOfOtherProjects() {
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.clear(20L);
+        cache.hasPermission(issue(1L, "bob"), user);
+
+        assertEquals(1, checks);
+    }
+
+    @Test
+    public void dropsAVerdictWorkedOutWhileItsProjectWasCleared() {
+        duringCheck = new Runnable() {
+            public void run() {
+                cache.clear(project.getId());
+            }
+        };
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.hasPermission(project, user);
+        assertEquals(0, cache.getSize());
+
+        duringCheck = null;
+        cache.hasPermission(issue(1L, "bob"), user);
+        cache.hasPermission(project, user);
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void dropsAVerdictWorkedOutWhileEverythingWasCleared() {
+        duringCheck = new Runnable() {
+            public void run() {
+                cache.clear();
+            }
+        };
+        cache.hasPermission(issue(1L, "bob"), user);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void keepsAVerdictWorkedOutWhileAnotherProjectWasCleared() {
+        duringCheck = new Runnable() {
+            public void run() {
+                cache.clear(20L);
+            }
+        };
+        cache.hasPermission(issue(1L, "bob"), user);
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedVerdicts() {
+        for (long id = 0; id < 150; id++) {
+            cache.hasPermission(issue(id, "user" + id), user);
+        }
+        assertEquals(100, cache.getSize());
+        assertEquals(50, cache.getEvictions());
+    }
+
+    private Issue issue(Long id, String assignee) {
+        return issue(id, assignee, null);
+    }
+
+    private Issue issue(final Long id, final String assignee, final Long securityLevelId) {
+        return Stubs.stub(Issue.class, new Object() {
+            public Long getId() {
+                return id;
+            }
+
+            public Long getSecurityLevelId() {
+                return securityLevelId;
+            }
+
+            public Project getProjectObject() {
+                return project;
+            }
+
+            public String getAssigneeId() {
+                return assignee;
+            }
+
+            public String getReporterId() {
+                return "reporter";
+            }
+        });
+    }
+
+    private static Project project(final Long id) {
+        return Stubs.stub(Project.class, new Object() {
+            public Long getId() {
+                return id;
+            }
+
+            public String getKey() {
+                return "TST";
+            }
+        });
+    }
+
+    private static User user(final String name) {
+        return Stubs.stub(User.class, new Object() {
+            public String getName() {
+                return name;
+            }
+        });
+    }
+}
@@ -0,0 +1,103 @@
+package com.xiplink.jira.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Helpers for the tests, which run without JIRA or a mocking library.
+ */
+public final class Stubs {
+    private Stubs() {
+    }
+
+    /**
+     * @return an implementation of an interface that calls the method of the same name and parameter types on the
+     *         delegate, if it has one, and otherwise returns null, false or zero.
+     */
+    public static <T> T stub(Class<T> type, final Object delegate) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Method implementation = findMethod(delegate, method);
+                        if (implementation != null) {
+                            implementation.setAccessible(true);
+                            try {
+                                return implementation.invoke(delegate, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        if ("equals".equals(method.getName()) && args.length == 1) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if ("hashCode".equals(method.getName()) && args == null) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                }));
+    }
+
+    private static Method findMethod(Object delegate, Method method) {
+        if (delegate == null) {
+            return null;
+        }
+        for (Class<?> type = delegate.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                return type.getDeclaredMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                // look in the superclass
+            }
+        }
+        return null;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == short.class) {
+            return Short.valueOf((short) 0);
+        } else if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == char.class) {
+            return Character.valueOf((char) 0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        } else if (type == double.class) {
+            return Double.valueOf(0);
+        }
+        return null;
+    }
+
+    /**
+     * @return a new empty directory, deleted when the virtual machine exits.
+     */
+    public static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create the directory " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
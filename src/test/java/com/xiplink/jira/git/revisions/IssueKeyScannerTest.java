@@ -0,0 +1,76 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+public class IssueKeyScannerTest {
+    private final IssueKeyScanner scanner = new IssueKeyScanner(true, null);
+
+    @Test
+    public void findsEachKeyOnceInUpperCase() {
+        assertKeys("TST-1 fix the parser, see tst-2 and TST-1\n\nAlso Ab-3.", "TST-1", "TST-2", "AB-3");
+    }
+
+    @Test
+    public void findsKeysStandingOnTheirOwn() {
+        assertKeys("(TST-1) [TST-2] TST-3, \"TST-4\" ABC-TST-5 TST-6-7 TST-8.", "TST-1", "TST-2", "TST-3", "TST-4",
+                "TST-5", "TST-6", "TST-8");
+    }
+
+    @Test
+    public void ignoresKeysRunningIntoOtherWords() {
+        assertKeys("T-1 TST- TST-x aTST-1b TST-2a a_TST-3 TST-4_ 1TST-5");
+    }
+
+    @Test
+    public void ignoresKeysAfterTheCharactersJiraExcludes() {
+        assertKeys("http://jira/browse/TST-1 ?TST-2 ?key=TST-3 a&TST-4 <b>TST-5</b> ^TST-6 !TST-7 ~TST-8");
+    }
+
+    @Test
+    public void takesNonAsciiLettersForWordBoundaries() {
+        assertKeys("r\u00e9sum\u00e9TST-1", "TST-1");
+    }
+
+    @Test
+    public void findsOnlyTheKeysOfTheProjectsGiven() {
+        IssueKeyScanner projectScanner = new IssueKeyScanner(true, Arrays.asList("TST", "ab"));
+
+        assertEquals(Arrays.asList("TST-1", "AB-2"),
+                projectScanner.getIssueKeys(commit("TST-1 use UTF-8, ab-2, TS-3")));
+    }
+
+    @Test
+    public void findsNothingInAnEmptyMessage() {
+        assertKeys("");
+    }
+
+    private void assertKeys(String message, String... keys) {
+        List<String> expected = keys.length > 0 ? Arrays.asList(keys) : Collections.<String> emptyList();
+        assertEquals(expected, scanner.getIssueKeys(commit(message)));
+    }
+
+    private static RevCommit commit(String message) {
+        PersonIdent ident = new PersonIdent("author", "author@example.com", 1325419200000L, 0);
+        CommitBuilder builder = new CommitBuilder();
+        builder.setTreeId(ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbecba94"));
+        builder.setAuthor(ident);
+        builder.setCommitter(ident);
+        builder.setMessage(message);
+        try {
+            return RevCommit.parse(builder.build());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.config.util.IndexPathManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.permission.PermissionSchemeManager;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.scheme.Scheme;
+import com.atlassian.jira.scheme.SchemeEntity;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.Permissions;
+import com.xiplink.jira.git.CommitSummaryCache;
+import com.xiplink.jira.git.FileDiff;
+import com.xiplink.jira.git.FileDiffCache;
+import com.xiplink.jira.git.FileDiffPage;
+import com.xiplink.jira.git.GitManager;
+import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
+import com.xiplink.jira.git.Stubs;
+
+public class RevisionIndexerChangedPathsTest {
+    private static final String PARENT = "0123456789012345678901234567890123456789";
+    private static final String BLOB = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+
+    private final Project project = Stubs.stub(Project.class, new Object() {
+        public Long getId() {
+            return 10L;
+        }
+
+        public String getKey() {
+            return "TST";
+        }
+    });
+    private final User user = Stubs.stub(User.class, new Object() {
+        public String getName() {
+            return "fred";
+        }
+    });
+    // the page the repository works out for the commits whose changed files weren't recorded
+    private final FileDiffPage repositoryPage = new FileDiffPage(new FileDiff[0], 0, 0, true);
+
+    private File root;
+    private RevisionIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Stubs.createTempDirectory("git-index");
+        final FileDiffCache fileDiffCache = new FileDiffCache(0);
+        final CommitSummaryCache commitCache = new CommitSummaryCache(0);
+        final GitManager gitManager = Stubs.stub(GitManager.class, new Object() {
+            public FileDiffPage getFileDiffs(String revision, int offset, int size) {
+                return repositoryPage;
+            }
+        });
+        MultipleGitRepositoryManager manager = Stubs.stub(MultipleGitRepositoryManager.class, new Object() {
+            public FileDiffCache getFileDiffCache() {
+                return fileDiffCache;
+            }
+
+            public CommitSummaryCache getCommitCache() {
+                return commitCache;
+            }
+
+            public GitManager getRepository(long repoId) {
+                return repoId == 1 ? gitManager : null;
+            }
+        });
+        IssueManager issueManager = Stubs.stub(IssueManager.class, new Object() {
+            public Issue getIssueObject(String key) {
+                return "TST-1".equals(key) ? issue(1L) : "TST-2".equals(key) ? issue(2L) : null;
+            }
+        });
+        PermissionManager permissionManager = Stubs.stub(PermissionManager.class, new Object() {
+            public boolean hasPermission(int permission, Issue issue, User user) {
+                return issue.getId().longValue() == 1L;
+            }
+        });
+        final List<SchemeEntity> grants = new ArrayList<SchemeEntity>();
+        grants.add(new SchemeEntity("group", "jira-users", Long.valueOf(Permissions.VIEW_VERSION_CONTROL)));
+        PermissionSchemeManager permissionSchemeManager = Stubs.stub(PermissionSchemeManager.class, new Object() {
+            public Scheme getSchemeFor(Project project) {
+                return new Scheme(1L, "PermissionScheme", "Default Permission Scheme", grants);
+            }
+        });
+        PermissionVerdictCache permissionCache = new PermissionVerdictCache(permissionManager,
+                permissionSchemeManager, Stubs.stub(EventPublisher.class, null));
+        IndexPathManager indexPathManager = Stubs.stub(IndexPathManager.class, new Object() {
+            public String getPluginIndexRootPath() {
+                return root.getPath();
+            }
+        });
+        indexer = new RevisionIndexer(manager, null, issueManager, permissionManager, permissionCache, null, null,
+                new DefaultLuceneIndexAccessor(), indexPathManager);
+    }
+
+    @After
+    public void tearDown() {
+        indexer.stop();
+        Stubs.delete(root);
+    }
+
+    @Test
+    public void pagesThroughTheChangedFilesRecorded() throws Exception {
+        writeDocuments(document(1, "TST-1", 5));
+
+        FileDiffPage first = indexer.getChangedPaths(1, revision(1), user, 0, 2);
+        assertPaths(first, "file0", "file1");
+        assertEquals(5, first.getTotal());
+        assertTrue(first.hasNext());
+
+        FileDiffPage middle = indexer.getChangedPaths(1, revision(1), user, first.getNextOffset(), 2);
+        assertPaths(middle, "file2", "file3");
+        assertEquals(2, middle.getOffset());
+        assertEquals(PARENT, middle.getDiffs()[0].getParentRevision());
+
+        FileDiffPage last = indexer.getChangedPaths(1, revision(1), user, middle.getNextOffset(), 2);
+        assertPaths(last, "file4");
+        assertFalse(last.hasNext());
+
+        assertPaths(indexer.getChangedPaths(1, revision(1), user, 5, 2));
+    }
+
+    @Test
+    public void asksTheRepositoryForTheChangedFilesNotRecorded() throws Exception {
+        writeDocuments(document(1, "TST-1", -1), document(2, "TST-1", -1));
+
+        assertSame(repositoryPage, indexer.getChangedPaths(1, revision(1), user, 0, 2));
+        // the repository is gone
+        assertNull(indexer.getChangedPaths(2, revision(1), user, 0, 2));
+    }
+
+    @Test
+    public void hidesTheCommitsOfIssuesTheUserMayNotSee() throws Exception {
+        writeDocuments(document(1, "TST-2", 5));
+
+        assertNull(indexer.getChangedPaths(1, revision(1), user, 0, 2));
+        assertNull(indexer.getChangedPaths(1, revision(2), user, 0, 2));
+    }
+
+    private static void assertPaths(FileDiffPage page, String... paths) {
+        assertEquals(paths.length, page.getDiffs().length);
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], page.getDiffs()[i].getPath());
+        }
+    }
+
+    private Issue issue(final Long id) {
+        return Stubs.stub(Issue.class, new Object() {
+            public Long getId() {
+                return id;
+            }
+
+            public Project getProjectObject() {
+                return project;
+            }
+        });
+    }
+
+    private static String revision(int n) {
+        return String.format("%040x", n);
+    }
+
+    /**
+     * @param changes the number of files the commit changed, or -1 if they weren't recorded.
+     */
+    private static Document document(int repoId, String issueKey, int changes) {
+        Document doc = new Document();
+        doc.add(new Field(RevisionIndexer.FIELD_REPOSITORY, Integer.toString(repoId), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REVISIONNUMBER, revision(1), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_ISSUEKEY, issueKey, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_COMMIT, RevisionIndexer.getCommitKey(repoId, revision(1)),
+                Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_SCHEMA, RevisionIndexer.SCHEMA_VERSION, Field.Store.NO,
+                Field.Index.NOT_ANALYZED));
+        if (changes >= 0) {
+            doc.add(new Field(RevisionIndexer.FIELD_PARENT, PARENT, Field.Store.YES, Field.Index.NO));
+            for (int i = 0; i < changes; i++) {
+                doc.add(new Field(RevisionIndexer.FIELD_PATH, "file" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+                doc.add(new Field(RevisionIndexer.FIELD_CHANGE, "MODIFY " + i + " " + BLOB + ":100644 " + BLOB
+                        + ":100644", Field.Store.YES, Field.Index.NO));
+            }
+            doc.add(new Field(RevisionIndexer.FIELD_CHANGE_COUNT, Integer.toString(changes), Field.Store.YES,
+                    Field.Index.NO));
+        }
+        return doc;
+    }
+
+    private void writeDocuments(Document... docs) throws IOException {
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexer.getIndexPath())),
+                RevisionIndexer.ANALYZER, true, IndexWriter.MaxFieldLength.LIMITED);
+        try {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.config.util.IndexPathManager;
+import com.xiplink.jira.git.CommitSummaryCache;
+import com.xiplink.jira.git.FileDiffCache;
+import com.xiplink.jira.git.GitManager;
+import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.Stubs;
+
+public class RevisionIndexerMigrationTest {
+    private static final String REVISION_1 = "1111111111111111111111111111111111111111";
+    private static final String REVISION_2 = "2222222222222222222222222222222222222222";
+    private static final String REVISION_3 = "3333333333333333333333333333333333333333";
+    private static final String REVISION_4 = "4444444444444444444444444444444444444444";
+
+    // 2012-01-01 12:00:00 UTC
+    private static final int COMMIT_TIME = 1325419200;
+
+    // The date layouts before version 3 stored for it: the seconds taken as milliseconds, truncated to the second
+    private static final int LEGACY_COMMIT_TIME = COMMIT_TIME / 1000 * 1000;
+
+    private File root;
+    private RevisionIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Stubs.createTempDirectory("git-index");
+        final FileDiffCache fileDiffCache = new FileDiffCache(0);
+        final CommitSummaryCache commitCache = new CommitSummaryCache(0);
+        MultipleGitRepositoryManager manager = Stubs.stub(MultipleGitRepositoryManager.class, new Object() {
+            public FileDiffCache getFileDiffCache() {
+                return fileDiffCache;
+            }
+
+            public CommitSummaryCache getCommitCache() {
+                return commitCache;
+            }
+
+            public GitManager getRepository(long repoId) {
+                throw new AssertionError("The migration must not read the repositories");
+            }
+        });
+        IndexPathManager indexPathManager = Stubs.stub(IndexPathManager.class, new Object() {
+            public String getPluginIndexRootPath() {
+                return root.getPath();
+            }
+        });
+        indexer = new RevisionIndexer(manager, null, null, null, null, null, null, new DefaultLuceneIndexAccessor(),
+                indexPathManager);
+    }
+
+    @After
+    public void tearDown() {
+        indexer.stop();
+        Stubs.delete(root);
+    }
+
+    @Test
+    public void keepsTheDatesOfLayoutsFromVersion3On() throws IOException {
+        String date = DateTools.timeToString(COMMIT_TIME * 1000L, DateTools.Resolution.SECOND);
+        writeLegacyDocuments(document(REVISION_3, "3", date, "master"), document(REVISION_4, "4", date, "master"));
+
+        indexer.migrateIndexIfNeeded();
+
+        Map<String, Document> docs = readDocuments();
+        assertEquals(date, docs.get(REVISION_3).get(RevisionIndexer.FIELD_DATE));
+        assertEquals(date, docs.get(REVISION_4).get(RevisionIndexer.FIELD_DATE));
+        assertEquals(2, countCommitTime(COMMIT_TIME));
+    }
+
+    @Test
+    public void fixesTheDatesOfOlderLayouts() throws IOException {
+        // before version 3, the commit time in seconds was passed as milliseconds
+        String wrongDate = DateTools.timeToString(COMMIT_TIME, DateTools.Resolution.SECOND);
+        writeLegacyDocuments(document(REVISION_1, null, wrongDate, "master"),
+                document(REVISION_2, "2", wrongDate, "master"));
+
+        indexer.migrateIndexIfNeeded();
+
+        String date = DateTools.timeToString(LEGACY_COMMIT_TIME * 1000L, DateTools.Resolution.SECOND);
+        Map<String, Document> docs = readDocuments();
+        assertEquals(date, docs.get(REVISION_1).get(RevisionIndexer.FIELD_DATE));
+        assertEquals(date, docs.get(REVISION_2).get(RevisionIndexer.FIELD_DATE));
+        assertEquals(2, countCommitTime(LEGACY_COMMIT_TIME));
+    }
+
+    @Test
+    public void mergesTheBranchesOfACommitIntoOneDocument() throws IOException {
+        String wrongDate = DateTools.timeToString(COMMIT_TIME, DateTools.Resolution.SECOND);
+        writeLegacyDocuments(document(REVISION_1, null, wrongDate, "master"),
+                document(REVISION_1, null, wrongDate, "feature"));
+
+        indexer.migrateIndexIfNeeded();
+
+        Map<String, Document> docs = readDocuments();
+        assertEquals(1, docs.size());
+        assertEquals(new HashSet<String>(Arrays.asList("master", "feature")), new HashSet<String>(
+                Arrays.asList(docs.get(REVISION_1).getValues(RevisionIndexer.FIELD_BRANCH))));
+    }
+
+    @Test
+    public void leavesTheChangedFilesToBeLookedUpLater() throws IOException {
+        String date = DateTools.timeToString(COMMIT_TIME * 1000L, DateTools.Resolution.SECOND);
+        writeLegacyDocuments(document(REVISION_4, "4", date, "master"));
+
+        indexer.migrateIndexIfNeeded();
+
+        assertNull(readDocuments().get(REVISION_4).get(RevisionIndexer.FIELD_CHANGE_COUNT));
+    }
+
+    private static Document document(String revision, String schema, String date, String branch) {
+        Document doc = new Document();
+        doc.add(new Field(RevisionIndexer.FIELD_MESSAGE, "TST-1 fix", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REPOSITORY, "1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REVISIONNUMBER, revision, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_DATE, date, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_ISSUEKEY, "TST-1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_BRANCH, branch, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        if (schema != null) {
+            doc.add(new Field(RevisionIndexer.FIELD_SCHEMA, schema, Field.Store.NO, Field.Index.NOT_ANALYZED));
+        }
+        return doc;
+    }
+
+    private void writeLegacyDocuments(Document... docs) throws IOException {
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexer.getIndexPath())),
+                RevisionIndexer.ANALYZER, true, IndexWriter.MaxFieldLength.LIMITED);
+        try {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private Map<String, Document> readDocuments() throws IOException {
+        indexer.stop();
+        Map<String, Document> docs = new HashMap<String, Document>();
+        IndexReader reader = IndexReader.open(FSDirectory.open(new File(indexer.getIndexPath())));
+        try {
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (!reader.isDeleted(i)) {
+                    Document doc = reader.document(i);
+                    docs.put(doc.get(RevisionIndexer.FIELD_REVISIONNUMBER), doc);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return docs;
+    }
+
+    private int countCommitTime(int commitTime) throws IOException {
+        IndexReader reader = IndexReader.open(FSDirectory.open(new File(indexer.getIndexPath())));
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            return searcher.search(NumericRangeQuery.newIntRange(RevisionIndexer.FIELD_COMMIT_TIME, commitTime,
+                    commitTime, true, true), 10).totalHits;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.config.util.IndexPathManager;
+import com.atlassian.jira.issue.Issue;
+import com.xiplink.jira.git.CommitSummaryCache;
+import com.xiplink.jira.git.FileDiffCache;
+import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.Stubs;
+
+public class RevisionIndexerPagingTest {
+    // 2012-01-01 12:00:00 UTC
+    private static final int COMMIT_TIME = 1325419200;
+
+    private final Issue issue = Stubs.stub(Issue.class, new Object() {
+        public String getKey() {
+            return "TST-1";
+        }
+    });
+
+    private File root;
+    private RevisionIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Stubs.createTempDirectory("git-index");
+        final FileDiffCache fileDiffCache = new FileDiffCache(0);
+        final CommitSummaryCache commitCache = new CommitSummaryCache(0);
+        MultipleGitRepositoryManager manager = Stubs.stub(MultipleGitRepositoryManager.class, new Object() {
+            public FileDiffCache getFileDiffCache() {
+                return fileDiffCache;
+            }
+
+            public CommitSummaryCache getCommitCache() {
+                return commitCache;
+            }
+        });
+        IndexPathManager indexPathManager = Stubs.stub(IndexPathManager.class, new Object() {
+            public String getPluginIndexRootPath() {
+                return root.getPath();
+            }
+        });
+        indexer = new RevisionIndexer(manager, null, null, null, null, null, null, new DefaultLuceneIndexAccessor(),
+                indexPathManager);
+    }
+
+    @After
+    public void tearDown() {
+        indexer.stop();
+        Stubs.delete(root);
+    }
+
+    @Test
+    public void listsCommitsNewestFirstAndThenByKey() throws Exception {
+        // added in the reverse of the order they are listed in, so that the document numbers don't give it away
+        writeDocuments(document(2, 1, COMMIT_TIME - 10), document(1, 9, COMMIT_TIME), document(1, 3, COMMIT_TIME),
+                document(2, 2, COMMIT_TIME), document(1, 5, COMMIT_TIME + 10));
+
+        RevisionPage page = indexer.getLogEntriesByRepository(issue, null, 10);
+
+        assertEquals(list("1:5", "1:3", "1:9", "2:2", "2:1"), keys(page));
+        assertNull(page.getNext());
+    }
+
+    @Test
+    public void pagesThroughCommitsMadeInTheSameSecond() throws Exception {
+        List<String> expected = new ArrayList<String>();
+        Document[] docs = new Document[7];
+        for (int i = 0; i < docs.length; i++) {
+            // the last two are older
+            docs[i] = document(1, docs.length - i, i < 5 ? COMMIT_TIME : COMMIT_TIME - i);
+        }
+        for (int i = 4; i >= 0; i--) {
+            expected.add(key(1, docs.length - i));
+        }
+        expected.add(key(1, 2));
+        expected.add(key(1, 1));
+        writeDocuments(docs);
+
+        assertEquals(expected, walk(2));
+    }
+
+    @Test
+    public void pagesThroughMoreCommitsInASecondThanABatchHolds() throws Exception {
+        List<String> expected = new ArrayList<String>();
+        Document[] docs = new Document[150];
+        for (int i = 0; i < docs.length; i++) {
+            // the odd ones first, so that the document numbers and the order disagree
+            int n = i < 75 ? 2 * i + 1 : 2 * (i - 75);
+            docs[i] = document(1, n, COMMIT_TIME);
+        }
+        for (int n = 0; n < docs.length; n++) {
+            expected.add(key(1, n));
+        }
+        writeDocuments(docs);
+
+        // a batch holds 80 hits, so the hits kept are cut in the middle of the second
+        assertEquals(expected, walk(40));
+    }
+
+    @Test
+    public void parsesTheCursorsItPrints() {
+        RevisionCursor cursor = RevisionCursor.parse(new RevisionCursor(COMMIT_TIME, "1:abc").toString());
+
+        assertNotNull(cursor);
+        assertEquals(COMMIT_TIME, cursor.getCommitTime());
+        assertEquals("1:abc", cursor.getCommitKey());
+        assertNull(RevisionCursor.parse(null));
+        assertNull(RevisionCursor.parse("1325419200"));
+        assertNull(RevisionCursor.parse("1325419200_"));
+        assertNull(RevisionCursor.parse("x_1:abc"));
+    }
+
+    /**
+     * @return the keys of all the commits of the issue, walked page by page through the printed cursors.
+     */
+    private List<String> walk(int pageSize) throws Exception {
+        List<String> keys = new ArrayList<String>();
+        RevisionCursor cursor = null;
+        do {
+            RevisionPage page = indexer.getLogEntriesByRepository(issue, cursor, pageSize);
+            keys.addAll(keys(page));
+            cursor = page.getNext() != null ? RevisionCursor.parse(page.getNext().toString()) : null;
+        } while (cursor != null);
+        return keys;
+    }
+
+    private static List<String> keys(RevisionPage page) {
+        List<String> keys = new ArrayList<String>();
+        for (RevisionInfo entry : page.getEntries()) {
+            keys.add(RevisionIndexer.getCommitKey(entry.getRepositoryId(), entry.getCommit().getId()));
+        }
+        return keys;
+    }
+
+    private static List<String> list(String... keys) {
+        List<String> list = new ArrayList<String>();
+        for (String key : keys) {
+            String[] parts = key.split(":");
+            list.add(key(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+        }
+        return list;
+    }
+
+    private static String key(int repoId, int n) {
+        return RevisionIndexer.getCommitKey(repoId, revision(n));
+    }
+
+    private static String revision(int n) {
+        return String.format("%040x", n);
+    }
+
+    private static Document document(int repoId, int n, int commitTime) {
+        Document doc = new Document();
+        doc.add(new Field(RevisionIndexer.FIELD_MESSAGE, "TST-1 fix", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REPOSITORY, Integer.toString(repoId), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REVISIONNUMBER, revision(n), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_DATE, DateTools.timeToString(commitTime * 1000L,
+                DateTools.Resolution.SECOND), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new NumericField(RevisionIndexer.FIELD_COMMIT_TIME).setIntValue(commitTime));
+        doc.add(new Field(RevisionIndexer.FIELD_ISSUEKEY, "TST-1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_COMMIT, key(repoId, n), Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_SCHEMA, RevisionIndexer.SCHEMA_VERSION, Field.Store.NO,
+                Field.Index.NOT_ANALYZED));
+        return doc;
+    }
+
+    private void writeDocuments(Document... docs) throws IOException {
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexer.getIndexPath())),
+                RevisionIndexer.ANALYZER, true, IndexWriter.MaxFieldLength.LIMITED);
+        try {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
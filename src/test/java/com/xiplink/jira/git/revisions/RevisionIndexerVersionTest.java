@@ -0,0 +1,180 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.config.util.IndexPathManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.permission.PermissionSchemeManager;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.version.Version;
+import com.atlassian.jira.project.version.VersionManager;
+import com.atlassian.jira.security.PermissionManager;
+import com.xiplink.jira.git.CommitSummaryCache;
+import com.xiplink.jira.git.FileDiffCache;
+import com.xiplink.jira.git.MultipleGitRepositoryManager;
+import com.xiplink.jira.git.PermissionVerdictCache;
+import com.xiplink.jira.git.Stubs;
+
+public class RevisionIndexerVersionTest {
+    // 2012-01-01 12:00:00 UTC
+    private static final int COMMIT_TIME = 1325419200;
+
+    private final Project project = Stubs.stub(Project.class, new Object() {
+        public Long getId() {
+            return 10L;
+        }
+    });
+    private final Version version = Stubs.stub(Version.class, new Object() {
+        public Long getId() {
+            return 100L;
+        }
+    });
+    private final User user = Stubs.stub(User.class, new Object() {
+        public String getName() {
+            return "fred";
+        }
+    });
+
+    // the security level the issue is on as JIRA has it now, and whether it lets the user in
+    private Long securityLevelId;
+    private boolean permitted = true;
+
+    private File root;
+    private RevisionIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Stubs.createTempDirectory("git-index");
+        final FileDiffCache fileDiffCache = new FileDiffCache(0);
+        final CommitSummaryCache commitCache = new CommitSummaryCache(0);
+        MultipleGitRepositoryManager manager = Stubs.stub(MultipleGitRepositoryManager.class, new Object() {
+            public FileDiffCache getFileDiffCache() {
+                return fileDiffCache;
+            }
+
+            public CommitSummaryCache getCommitCache() {
+                return commitCache;
+            }
+        });
+        // the version manager hands out the issue as it was when the version was first viewed
+        final Issue original = issue();
+        VersionManager versionManager = Stubs.stub(VersionManager.class, new Object() {
+            public Collection<Issue> getIssuesWithFixVersion(Version version) {
+                return Collections.singletonList(original);
+            }
+
+            public Collection<Issue> getIssuesWithAffectsVersion(Version version) {
+                return Collections.emptyList();
+            }
+        });
+        IssueManager issueManager = Stubs.stub(IssueManager.class, new Object() {
+            public Issue getIssueObject(Long id) {
+                return id.longValue() == 1L ? issue() : null;
+            }
+        });
+        PermissionManager permissionManager = Stubs.stub(PermissionManager.class, new Object() {
+            public boolean hasPermission(int permission, Issue issue, User user) {
+                return permitted;
+            }
+        });
+        PermissionVerdictCache permissionCache = new PermissionVerdictCache(permissionManager, Stubs.stub(
+                PermissionSchemeManager.class, null), Stubs.stub(EventPublisher.class, null));
+        IndexPathManager indexPathManager = Stubs.stub(IndexPathManager.class, new Object() {
+            public String getPluginIndexRootPath() {
+                return root.getPath();
+            }
+        });
+        indexer = new RevisionIndexer(manager, versionManager, issueManager, permissionManager, permissionCache,
+                null, null, new DefaultLuceneIndexAccessor(), indexPathManager);
+    }
+
+    @After
+    public void tearDown() {
+        indexer.stop();
+        Stubs.delete(root);
+    }
+
+    @Test
+    public void checksTheIssuesOfAVersionAsTheyAreNow() throws Exception {
+        writeDocuments(document(1, "TST-1"), document(2, "TST-1"));
+        assertEquals(2, indexer.getLogEntriesByVersion(version, user, 10, null).getEntries().size());
+
+        // the issue is moved to a security level the user isn't allowed on, while the version's issues are cached
+        securityLevelId = 10000L;
+        permitted = false;
+        assertEquals(0, indexer.getLogEntriesByVersion(version, user, 10, null).getEntries().size());
+    }
+
+    private Issue issue() {
+        final Long level = securityLevelId;
+        return Stubs.stub(Issue.class, new Object() {
+            public Long getId() {
+                return 1L;
+            }
+
+            public String getKey() {
+                return "TST-1";
+            }
+
+            public Long getSecurityLevelId() {
+                return level;
+            }
+
+            public Project getProjectObject() {
+                return project;
+            }
+        });
+    }
+
+    private static String revision(int n) {
+        return String.format("%040x", n);
+    }
+
+    private static Document document(int n, String issueKey) {
+        Document doc = new Document();
+        doc.add(new Field(RevisionIndexer.FIELD_MESSAGE, issueKey + " fix", Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REPOSITORY, "1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_REVISIONNUMBER, revision(n), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_DATE, DateTools.timeToString((COMMIT_TIME + n) * 1000L,
+                DateTools.Resolution.SECOND), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new NumericField(RevisionIndexer.FIELD_COMMIT_TIME).setIntValue(COMMIT_TIME + n));
+        doc.add(new Field(RevisionIndexer.FIELD_ISSUEKEY, issueKey, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_COMMIT, RevisionIndexer.getCommitKey(1, revision(n)),
+                Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(RevisionIndexer.FIELD_SCHEMA, RevisionIndexer.SCHEMA_VERSION, Field.Store.NO,
+                Field.Index.NOT_ANALYZED));
+        return doc;
+    }
+
+    private void writeDocuments(Document... docs) throws IOException {
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexer.getIndexPath())),
+                RevisionIndexer.ANALYZER, true, IndexWriter.MaxFieldLength.LIMITED);
+        try {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.xiplink.jira.git.revisions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevisionSearcherManagerTest {
+    private IndexWriter writer;
+    private RevisionSearcherManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        writer = new IndexWriter(new RAMDirectory(), RevisionIndexer.ANALYZER, true,
+                IndexWriter.MaxFieldLength.LIMITED);
+        addDocument(1);
+        manager = new RevisionSearcherManager(writer, new DefaultLuceneIndexAccessor(), new SortField(
+                RevisionIndexer.FIELD_COMMIT_TIME, SortField.INT, true));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.close();
+        writer.close();
+    }
+
+    @Test
+    public void sharesTheSearcherUntilTheIndexChanges() throws IOException {
+        IndexSearcher first = manager.acquire();
+        IndexSearcher second = manager.acquire();
+        try {
+            assertSame(first, second);
+            assertFalse(manager.maybeReopen());
+        } finally {
+            manager.release(first);
+            manager.release(second);
+        }
+
+        addDocument(2);
+        assertTrue(manager.maybeReopen());
+        IndexSearcher reopened = manager.acquire();
+        try {
+            assertNotSame(first, reopened);
+            assertEquals(2, reopened.maxDoc());
+        } finally {
+            manager.release(reopened);
+        }
+    }
+
+    @Test
+    public void keepsAReplacedSearcherOpenUntilReleased() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        addDocument(2);
+        manager.maybeReopen();
+
+        assertEquals(1, searcher.getIndexReader().getRefCount());
+        assertEquals(1, searcher.maxDoc());
+        manager.release(searcher);
+        assertEquals(0, searcher.getIndexReader().getRefCount());
+    }
+
+    @Test
+    public void refusesSearchersOnceClosed() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        manager.close();
+        manager.close();
+
+        // the searchers handed out before keep working
+        assertEquals(1, searcher.maxDoc());
+        manager.release(searcher);
+        try {
+            manager.acquire();
+            fail("acquired a searcher from a closed manager");
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+        try {
+            manager.maybeReopen();
+            fail("reopened a closed manager");
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+    }
+
+    private void addDocument(int commitTime) throws IOException {
+        Document doc = new Document();
+        doc.add(new NumericField(RevisionIndexer.FIELD_COMMIT_TIME).setIntValue(commitTime));
+        writer.addDocument(doc);
+    }
+}